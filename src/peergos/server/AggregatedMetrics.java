@@ -1,11 +1,18 @@
 package peergos.server;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import peergos.server.util.*;
+import peergos.shared.storage.*;
 
 import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -25,6 +32,7 @@ public class AggregatedMetrics {
     public static final Counter DHT_ID  = build("dht_id", "Total id calls.");
     public static final Counter DHT_BLOCK_PUT  = build("dht_block_put", "Total DHT block puts.");
     public static final Counter DHT_BLOCK_GET  = build("dht_block_get", "Total DHT block gets.");
+    public static final Counter DHT_BLOCK_GET_ALL  = build("dht_block_get_all", "Total DHT bulk block gets.");
     public static final Counter DHT_BLOCK_STAT  = build("dht_block_stat", "Total DHT block stats.");
     public static final Counter DHT_BLOCK_REFS  = build("dht_block_refs", "Total DHT block refs.");
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
@@ -52,6 +60,34 @@ public class AggregatedMetrics {
 
 
 
+    private static final Map<String, Supplier<BlockCache.Stats>> blockCaches = new ConcurrentHashMap<>();
+
+    /** Export the statistics of a block cache, read whenever the metrics are scraped.
+     *
+     * @param name the prefix of the metric names
+     * @param stats
+     */
+    public static synchronized void registerBlockCache(String name, Supplier<BlockCache.Stats> stats) {
+        // there can be more than one server in a jvm in tests, the latest one wins
+        boolean registered = blockCaches.containsKey(name);
+        blockCaches.put(name, stats);
+        if (registered)
+            return;
+        new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                BlockCache.Stats s = blockCaches.get(name).get();
+                return Arrays.asList(
+                        new CounterMetricFamily(name + "_hits", "Block cache hits.", s.hits),
+                        new CounterMetricFamily(name + "_misses", "Block cache misses.", s.misses),
+                        new CounterMetricFamily(name + "_evictions", "Blocks evicted from the block cache.", s.evictions),
+                        new CounterMetricFamily(name + "_rejections", "Blocks not admitted to the block cache.", s.rejections),
+                        new GaugeMetricFamily(name + "_bytes", "Total size of cached blocks.", s.sizeInBytes),
+                        new GaugeMetricFamily(name + "_blocks", "Number of cached blocks.", s.blockCount));
+            }
+        }.register();
+    }
+
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
         HTTPServer server = new HTTPServer(address, port);
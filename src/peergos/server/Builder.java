@@ -54,7 +54,8 @@ public class Builder {
     public static Crypto initCrypto() {
         try {
             JniTweetNacl nativeNacl = JniTweetNacl.build();
-            Salsa20Poly1305 symmetricProvider = new JniTweetNacl.Symmetric(nativeNacl);
+            // the pure Java secretbox is faster than the native TweetNaCl one
+            Salsa20Poly1305 symmetricProvider = new Salsa20Poly1305Java();
             Ed25519 signer = new JniTweetNacl.Signer(nativeNacl);
             Curve25519 boxer = new Curve25519Java();
             return initNativeCrypto(symmetricProvider, signer, boxer);
@@ -138,6 +139,21 @@ public class Builder {
         return new JavaPoster(ipfsGatewayAddress, false);
     }
 
+    /** Put a memory mapped block cache in front of the given storage, if one is configured. Blocks deleted from
+     *  the local store are dropped from the cache.
+     */
+    public static ContentAddressedStorage withMappedBlockCache(Args a,
+                                                               ContentAddressedStorage target,
+                                                               DeletionPropagatingStorage localDeletions) {
+        if (! a.hasArg("mapped-block-cache-mb"))
+            return target;
+        long size = a.getLong("mapped-block-cache-mb") * 1024 * 1024;
+        Path dir = a.fromPeergosDir("mapped-block-cache-dir", "block-cache");
+        MappedBlockCache cache = new MappedBlockCache(target, dir, size);
+        localDeletions.addListener(cache::invalidate);
+        return cache;
+    }
+
     /**
      * Create path to local blockstore directory from Args.
      *
@@ -173,8 +189,15 @@ public class Builder {
                 Optional<String> authedUrl = Optional.of("https://" + config.getHost() + "/");
                 BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl, authedUrl);
                 return new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), props, transactions, ipfs);
+            } else if (a.getBoolean("blockstore.packfiles", false)) {
+                return new PackfileBlockStorage(blockstorePath(a).resolve("packs"), transactions,
+                        a.getLong("blockstore.pack-size", PackfileBlockStorage.DEFAULT_MAX_PACK_SIZE),
+                        PackfileBlockStorage.DEFAULT_MAX_DEAD_FRACTION,
+                        a.getBoolean("blockstore.fsync", false));
             } else {
-                return new FileContentAddressedStorage(blockstorePath(a), transactions);
+                return new FileContentAddressedStorage(blockstorePath(a), transactions,
+                        a.getInt("blockstore.write-parallelism", FileContentAddressedStorage.DEFAULT_WRITE_PARALLELISM),
+                        a.getBoolean("blockstore.fsync", false));
             }
         }
     }
@@ -271,7 +294,8 @@ public class Builder {
     }
 
     public static JdbcIpnsAndSocial buildRawPointers(Args a, Supplier<Connection> dbConnectionPool) {
-        return new JdbcIpnsAndSocial(dbConnectionPool, getSqlCommands(a));
+        return new JdbcIpnsAndSocial(dbConnectionPool, getSqlCommands(a),
+                a.getInt("pointer-cache-size", JdbcIpnsAndSocial.DEFAULT_POINTER_CACHE_SIZE));
     }
 
 
@@ -290,14 +314,38 @@ public class Builder {
     public static CompletableFuture<NetworkAccess> buildJavaNetworkAccess(URL target,
                                                                           boolean isPublicServer,
                                                                           Optional<String> basicAuth) {
-        return buildNonCachingJavaNetworkAccess(target, isPublicServer, basicAuth)
+        return buildJavaNetworkAccess(target, isPublicServer, basicAuth, false);
+    }
+
+    /**
+     *
+     * @param target
+     * @param isPublicServer
+     * @param basicAuth
+     * @param useHttp2 use an async poster which reuses connections and multiplexes requests over HTTP/2
+     * @return
+     */
+    public static CompletableFuture<NetworkAccess> buildJavaNetworkAccess(URL target,
+                                                                          boolean isPublicServer,
+                                                                          Optional<String> basicAuth,
+                                                                          boolean useHttp2) {
+        return buildNonCachingJavaNetworkAccess(target, isPublicServer, basicAuth, useHttp2)
                 .thenApply(e -> e.withMutablePointerCache(7_000));
     }
 
     public static CompletableFuture<NetworkAccess> buildNonCachingJavaNetworkAccess(URL target,
                                                                                     boolean isPublicServer,
                                                                                     Optional<String> basicAuth) {
-        JavaPoster poster = new JavaPoster(target, isPublicServer, basicAuth);
+        return buildNonCachingJavaNetworkAccess(target, isPublicServer, basicAuth, false);
+    }
+
+    public static CompletableFuture<NetworkAccess> buildNonCachingJavaNetworkAccess(URL target,
+                                                                                    boolean isPublicServer,
+                                                                                    Optional<String> basicAuth,
+                                                                                    boolean useHttp2) {
+        HttpPoster poster = useHttp2 ?
+                new Http2Poster(target, isPublicServer, basicAuth) :
+                new JavaPoster(target, isPublicServer, basicAuth);
         Multihash pkiNodeId = null; // This is not required when talking to a Peergos server
         ContentAddressedStorage localDht = NetworkAccess.buildLocalDht(poster, true);
         return NetworkAccess.build(poster, poster, pkiNodeId, localDht, new ScryptJava(), false);
@@ -414,13 +414,22 @@ public class Main extends Builder {
             DeletableContentAddressedStorage localStorage = buildLocalStorage(a, transactions);
             JdbcIpnsAndSocial rawPointers = buildRawPointers(a,
                     getDBConnector(a, "mutable-pointers-file", dbConnectionPool));
+            // lets caches of the local store drop blocks that are garbage collected
+            DeletionPropagatingStorage gcStorage = new DeletionPropagatingStorage(localStorage);
             boolean enableGC = a.getBoolean("enable-gc", false);
             GarbageCollector gc = null;
             if (enableGC) {
                 if (S3Config.useS3(a))
                     throw new IllegalStateException("GC should be run separately when using S3!");
-                gc = new GarbageCollector(localStorage, rawPointers);
-                gc.start(a.getInt("gc.period.millis", 60 * 60 * 1000), s -> Futures.of(true));
+                if (a.getBoolean("gc.concurrent", false) && ! localStorage.supportsWriteEpochs())
+                    throw new IllegalStateException("This block store doesn't support gc.concurrent!");
+                gc = new GarbageCollector(gcStorage, rawPointers,
+                        a.getInt("gc.mark.parallelism", GarbageCollector.DEFAULT_MARK_PARALLELISM),
+                        a.getInt("gc.delete.parallelism", GarbageCollector.DEFAULT_DELETE_PARALLELISM),
+                        a.getBoolean("gc.concurrent", false),
+                        a.hasArg("gc.bloom.false-positive-rate") ?
+                                a.getDouble("gc.bloom.false-positive-rate") :
+                                GarbageCollector.DEFAULT_FALSE_POSITIVE_RATE);
             }
 
             String hostname = a.getArg("domain");
@@ -437,19 +446,42 @@ public class Main extends Builder {
             CoreNode signupFilter = new SignUpFilter(core, userQuotas, nodeId);
 
             Supplier<Connection> usageDb = getDBConnector(a, "space-usage-sql-file", dbConnectionPool);
-            UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
+            UsageStore usageStore = new WriteBehindUsageStore(new JdbcUsageStore(usageDb, sqlCommands),
+                    a.getLong("space-usage.flush-interval-millis", WriteBehindUsageStore.DEFAULT_FLUSH_INTERVAL_MILLIS));
             Hasher hasher = crypto.hasher;
-            SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher);
-            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localStorage,
-                    hasher, userQuotas, usageStore);
+            SizeIndexingStorage sizeIndexedStorage = new SizeIndexingStorage(localStorage,
+                    new JdbcRecursiveSizes(usageDb, sqlCommands),
+                    a.getInt("recursive-size-cache-entries", SizeIndexingStorage.DEFAULT_MEMORY_ENTRIES));
+            gcStorage.addListener(sizeIndexedStorage::invalidate);
+            SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, sizeIndexedStorage,
+                    hasher, userQuotas, usageStore,
+                    a.getInt("space-usage.reconcile.parallelism", SpaceCheckingKeyFilter.DEFAULT_RECONCILE_PARALLELISM),
+                    a.getInt("space-usage.event-workers", SpaceCheckingKeyFilter.DEFAULT_EVENT_WORKERS));
+            spaceChecker.addLocalUsers();
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
             corePropagator.addListener(spaceChecker::accept);
             MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
             localMutable.addListener(spaceChecker::accept);
+            IncrementalGarbageCollector incrementalGc = null;
+            if (a.getBoolean("gc.incremental", false)) {
+                if (! localStorage.supportsWriteEpochs())
+                    throw new IllegalStateException("This block store doesn't support gc.incremental! (IPFS requires enable-gc)");
+                JdbcBlockReferences blockRefs = new JdbcBlockReferences(
+                        getDBConnector(a, "gc-references-sql-file", dbConnectionPool), sqlCommands);
+                incrementalGc = new IncrementalGarbageCollector(gcStorage, localPointers,
+                        blockRefs, a.getLong("gc.incremental.grace.millis", 60 * 60 * 1000L));
+                localMutable.addListener(incrementalGc::accept);
+            }
 
             ContentAddressedStorage filteringDht = new WriteFilter(localStorage, spaceChecker::allowWrite);
             ContentAddressedStorageProxy proxingDht = new ContentAddressedStorageProxy.HTTP(p2pHttpProxy);
-            ContentAddressedStorage p2pDht = new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core);
+            ContentAddressedStorage p2pDht = Builder.withMappedBlockCache(a,
+                    new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core), gcStorage);
+            // only start collecting once every cache of the local store is listening for deletions
+            if (gc != null)
+                gc.start(a.getInt("gc.period.millis", 60 * 60 * 1000), s -> Futures.of(true));
+            if (incrementalGc != null)
+                incrementalGc.start(rawPointers, a.getLong("gc.incremental.period.millis", 10 * 60 * 1000L));
 
             Path blacklistPath = a.fromPeergosDir("blacklist_file", "blacklist.txt");
             PublicKeyBlackList blacklist = new UserBasedBlacklist(blacklistPath, core, localMutable, p2pDht, hasher);
@@ -471,7 +503,10 @@ public class Main extends Builder {
             Admin storageAdmin = new Admin(adminUsernames, userQuotas, core, localStorage, enableWaitlist);
             HttpSpaceUsage httpSpaceUsage = new HttpSpaceUsage(p2pHttpProxy, p2pHttpProxy);
             ProxyingSpaceUsage p2pSpaceUsage = new ProxyingSpaceUsage(nodeId, corePropagator, spaceChecker, httpSpaceUsage);
-            UserService peergos = new UserService(p2pDht, crypto, corePropagator, p2pSocial, p2mMutable, storageAdmin,
+            Optional<FileBlockSource> localBlockFiles = localStorage instanceof FileBlockSource ?
+                    Optional.of((FileBlockSource) localStorage) :
+                    Optional.empty();
+            UserService peergos = new UserService(p2pDht, localBlockFiles, crypto, corePropagator, p2pSocial, p2mMutable, storageAdmin,
                     p2pSpaceUsage, new ServerMessageStore(getDBConnector(a, "server-messages-sql-file", dbConnectionPool),
                     sqlCommands, core, p2pDht), gc);
             InetSocketAddress localAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
@@ -495,6 +530,7 @@ public class Main extends Builder {
                 ipfsWrapper.connectToNode(new InetSocketAddress(pkiNodeIpAddress, pkiNodeSwarmPort), pkiServerNodeId);
                 ((MirrorCoreNode) core).start();
             }
+            spaceChecker.reconcile();
             spaceChecker.calculateUsage();
 
             if (a.hasArg("mirror.node.id")) {
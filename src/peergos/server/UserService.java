@@ -77,6 +77,7 @@ public class UserService {
     }
 
     public final ContentAddressedStorage storage;
+    private final Optional<FileBlockSource> localBlockFiles;
     public final Crypto crypto;
     public final CoreNode coreNode;
     public final SocialNetwork social;
@@ -87,6 +88,7 @@ public class UserService {
     public final GarbageCollector gc; // not exposed
 
     public UserService(ContentAddressedStorage storage,
+                       Optional<FileBlockSource> localBlockFiles,
                        Crypto crypto,
                        CoreNode coreNode,
                        SocialNetwork social,
@@ -95,7 +97,10 @@ public class UserService {
                        SpaceUsage usage,
                        ServerMessageStore serverMessages,
                        GarbageCollector gc) {
-        this.storage = new CachingStorage(storage, 1000, 50 * 1024);
+        CachingStorage cachingStorage = new CachingStorage(storage, 64 * 1024 * 1024, 50 * 1024);
+        AggregatedMetrics.registerBlockCache("dht_block_cache", cachingStorage::cacheStats);
+        this.storage = cachingStorage;
+        this.localBlockFiles = localBlockFiles;
         this.crypto = crypto;
         this.coreNode = coreNode;
         this.social = social;
@@ -223,7 +228,7 @@ public class UserService {
             }
         };
 
-        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer));
+        addHandler.accept(Constants.DHT_URL, new DHTHandler(storage, localBlockFiles, crypto.hasher, (h, i) -> true, isPublicServer));
         addHandler.accept("/" + Constants.CORE_URL,
                 new CoreNodeHandler(this.coreNode, isPublicServer));
         addHandler.accept("/" + Constants.SOCIAL_URL,
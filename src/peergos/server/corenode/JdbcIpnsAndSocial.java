@@ -2,6 +2,9 @@ package peergos.server.corenode;
 import java.util.function.*;
 import java.util.logging.*;
 
+import io.prometheus.client.*;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import peergos.server.sql.*;
 import peergos.server.util.Logging;
 
@@ -19,9 +22,42 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.*;
 
+/** Stores mutable pointers and follow requests.
+ *
+ *  Pointers can be cached in memory, in which case the cache is kept exactly up to date by setPointer. When several
+ *  servers share a postgres database, each successful update is broadcast with NOTIFY, and the other servers drop
+ *  their cached value. Callers can also wait for a pointer to change, rather than polling it.
+ */
 public class JdbcIpnsAndSocial {
 
     private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_POINTER_CACHE_SIZE = 100_000;
+    private static final String POINTER_CHANNEL = "pointers";
+    private static final int LOCK_STRIPES = 256;
+
+    private static final Counter pointerCacheHits = Counter.build()
+            .name("pointer_cache_hits")
+            .help("Number of mutable pointer reads answered from the pointer cache")
+            .register();
+    private static final Counter pointerCacheMisses = Counter.build()
+            .name("pointer_cache_misses")
+            .help("Number of mutable pointer reads which went to the database")
+            .register();
+    private static final ScheduledThreadPoolExecutor watchTimeouts = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "Pointer watch timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        // most watches complete early, so don't keep their timeouts queued
+        watchTimeouts.setRemoveOnCancelPolicy(true);
+    }
+    // watches are completed on these threads, because completing one writes the response to the watching client
+    private static final ExecutorService watchCompletions = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Pointer watch completions");
+        t.setDaemon(true);
+        return t;
+    });
 
     private static final String FOLLOW_REQUEST_USER_NAME = "name";
     private static final String FOLLOW_REQUEST_DATA_NAME = "followrequest";
@@ -105,10 +141,35 @@ public class JdbcIpnsAndSocial {
 
     private volatile boolean isClosed;
     private Supplier<Connection> conn;
+    private final Optional<PointerCache> pointerCache;
+    // a cache miss and an update to the same writer hold the same lock, so a stale read can't overwrite a newer value
+    private final Object[] pointerLocks = new Object[LOCK_STRIPES];
+    private final ConcurrentHashMap<PublicKeyHash, List<CompletableFuture<Optional<byte[]>>>> watchers = new ConcurrentHashMap<>();
+    private final boolean notifyOtherServers;
+    private final String serverId = UUID.randomUUID().toString();
 
     public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands) {
+        this(conn, commands, 0);
+    }
+
+    /**
+     *
+     * @param pointerCacheSize The maximum number of pointers to cache in memory, or 0 for no cache
+     */
+    public JdbcIpnsAndSocial(Supplier<Connection> conn, SqlSupplier commands, int pointerCacheSize) {
         this.conn = conn;
+        this.pointerCache = pointerCacheSize > 0 ?
+                Optional.of(new PointerCache(pointerCacheSize)) :
+                Optional.empty();
+        for (int i=0; i < pointerLocks.length; i++)
+            pointerLocks[i] = new Object();
+        this.notifyOtherServers = pointerCache.isPresent() && commands instanceof PostgresCommands;
         init(commands);
+        if (notifyOtherServers) {
+            Thread listener = new Thread(this::listenForPointerChanges, "Pointer change listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
     }
 
     private Connection getConnection() {
@@ -164,40 +225,133 @@ public class JdbcIpnsAndSocial {
         return CompletableFuture.completedFuture(resp.serialize());
     }
 
+    private static int stripe(PublicKeyHash writer) {
+        return (writer.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+    }
+
+    private Object lock(PublicKeyHash writer) {
+        return pointerLocks[stripe(writer)];
+    }
+
+    /** An LRU cache of pointers, split into the same stripes as the pointer locks, so that concurrent reads of
+     *  different writers don't contend on a single monitor
+     */
+    private static class PointerCache {
+        private final List<Map<PublicKeyHash, Optional<byte[]>>> stripes = new ArrayList<>(LOCK_STRIPES);
+
+        PointerCache(int maxSize) {
+            for (int i=0; i < LOCK_STRIPES; i++)
+                stripes.add(Collections.synchronizedMap(new LRUCache<>(maxSize / LOCK_STRIPES + 1)));
+        }
+
+        Optional<byte[]> get(PublicKeyHash writer) {
+            return stripes.get(stripe(writer)).get(writer);
+        }
+
+        void put(PublicKeyHash writer, Optional<byte[]> value) {
+            stripes.get(stripe(writer)).put(writer, value);
+        }
+
+        void remove(PublicKeyHash writer) {
+            stripes.get(stripe(writer)).remove(writer);
+        }
+
+        void clear() {
+            stripes.forEach(Map::clear);
+        }
+    }
+
+    private static String encodeKey(PublicKeyHash writingKey) {
+        return new String(Base64.getEncoder().encode(writingKey.serialize()));
+    }
+
     public CompletableFuture<Boolean> setPointer(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
-        if (existingCas.isPresent()) {
-            try (Connection conn = getConnection();
-                 PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
-                conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-                String key = new String(Base64.getEncoder().encode(writingKey.serialize()));
-
-                insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
-                insert.setString(2, key);
-                insert.setString(3, new String(Base64.getEncoder().encode(existingCas.get())));
-                int changed = insert.executeUpdate();
-                return CompletableFuture.completedFuture(changed > 0);
+        boolean success;
+        synchronized (lock(writingKey)) {
+            success = setPointerInDb(writingKey, existingCas, newCas);
+            if (success)
+                pointerCache.ifPresent(c -> c.put(writingKey, Optional.of(newCas)));
+            else // our cached value may be stale
+                pointerCache.ifPresent(c -> c.remove(writingKey));
+        }
+        if (success)
+            notifyWatchers(writingKey, Optional.of(newCas));
+        return CompletableFuture.completedFuture(success);
+    }
+
+    private boolean setPointerInDb(PublicKeyHash writingKey, Optional<byte[]> existingCas, byte[] newCas) {
+        try (Connection conn = getConnection()) {
+            // other servers are notified in the same transaction, so a notification is sent if and only if the change
+            // is committed
+            if (notifyOtherServers)
+                conn.setAutoCommit(false);
+            try {
+                boolean success = existingCas.isPresent() ?
+                        updatePointer(conn, writingKey, existingCas.get(), newCas) :
+                        createPointer(conn, writingKey, newCas);
+                if (notifyOtherServers) {
+                    if (success)
+                        notifyOtherServers(conn, writingKey);
+                    conn.commit();
+                }
+                return success;
             } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
-            }
-        } else {
-            try (Connection conn = getConnection();
-                 PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
-                stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
-                stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
-                stmt.executeUpdate();
-                return CompletableFuture.completedFuture(true);
-            } catch (SQLException sqe) {
-                LOG.log(Level.WARNING, sqe.getMessage(), sqe);
-                return CompletableFuture.completedFuture(false);
+                if (notifyOtherServers)
+                    conn.rollback();
+                throw sqe;
             }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            return false;
+        }
+    }
+
+    private static boolean updatePointer(Connection conn, PublicKeyHash writingKey, byte[] existingCas, byte[] newCas) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(IPNS_UPDATE)) {
+            insert.setString(1, new String(Base64.getEncoder().encode(newCas)));
+            insert.setString(2, encodeKey(writingKey));
+            insert.setString(3, new String(Base64.getEncoder().encode(existingCas)));
+            int changed = insert.executeUpdate();
+            return changed > 0;
+        }
+    }
+
+    private static boolean createPointer(Connection conn, PublicKeyHash writingKey, byte[] newCas) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(IPNS_CREATE)) {
+            stmt.setString(1, encodeKey(writingKey));
+            stmt.setString(2, new String(Base64.getEncoder().encode(newCas)));
+            stmt.executeUpdate();
+            return true;
         }
     }
 
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writingKey) {
+        if (! pointerCache.isPresent())
+            return getPointerFromDb(writingKey);
+        PointerCache cache = pointerCache.get();
+        Optional<byte[]> cached = cache.get(writingKey);
+        if (cached != null) {
+            pointerCacheHits.inc();
+            return CompletableFuture.completedFuture(cached);
+        }
+        synchronized (lock(writingKey)) {
+            cached = cache.get(writingKey);
+            if (cached != null) {
+                pointerCacheHits.inc();
+                return CompletableFuture.completedFuture(cached);
+            }
+            pointerCacheMisses.inc();
+            CompletableFuture<Optional<byte[]>> res = getPointerFromDb(writingKey);
+            if (! res.isCompletedExceptionally())
+                cache.put(writingKey, res.join());
+            return res;
+        }
+    }
+
+    private CompletableFuture<Optional<byte[]>> getPointerFromDb(PublicKeyHash writingKey) {
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement(IPNS_GET)) {
-            stmt.setString(1, new String(Base64.getEncoder().encode(writingKey.serialize())));
+            stmt.setString(1, encodeKey(writingKey));
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 return CompletableFuture.completedFuture(Optional.of(Base64.getDecoder().decode(rs.getString(IPNS_TARGET_NAME))));
@@ -210,6 +364,106 @@ public class JdbcIpnsAndSocial {
         }
     }
 
+    /** Wait for a pointer to change from a given value
+     *
+     * @param writingKey
+     * @param current The value the caller already has
+     * @param timeoutMillis
+     * @return The new value as soon as it differs from current, otherwise the current value after the timeout
+     */
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash writingKey,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        // register before reading, so a change between the two isn't missed
+        watchers.computeIfAbsent(writingKey, k -> new CopyOnWriteArrayList<>()).add(res);
+        getPointer(writingKey).thenAccept(latest -> {
+            if (! equal(latest, current))
+                res.complete(latest);
+        }).exceptionally(t -> {
+            res.completeExceptionally(t);
+            return null;
+        });
+        ScheduledFuture<?> timeout = watchTimeouts.schedule(() -> res.completeAsync(() -> current, watchCompletions),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        return res.whenComplete((r, t) -> {
+            // don't hold on to the watch until the timeout if it completed early
+            timeout.cancel(false);
+            watchers.computeIfPresent(writingKey, (k, waiting) -> {
+                waiting.remove(res);
+                return waiting.isEmpty() ? null : waiting;
+            });
+        });
+    }
+
+    private static boolean equal(Optional<byte[]> a, Optional<byte[]> b) {
+        return a.isPresent() == b.isPresent() && (! a.isPresent() || Arrays.equals(a.get(), b.get()));
+    }
+
+    private void notifyWatchers(PublicKeyHash writingKey, Optional<byte[]> updated) {
+        List<CompletableFuture<Optional<byte[]>>> waiting = watchers.get(writingKey);
+        if (waiting != null)
+            for (CompletableFuture<Optional<byte[]>> watcher : waiting)
+                watcher.completeAsync(() -> updated, watchCompletions);
+    }
+
+    /** Postgres delivers the notification when the transaction on conn commits, and drops it if it rolls back
+     */
+    private void notifyOtherServers(Connection conn, PublicKeyHash writingKey) throws SQLException {
+        try (PreparedStatement notify = conn.prepareStatement("SELECT pg_notify(?, ?);")) {
+            notify.setString(1, POINTER_CHANNEL);
+            notify.setString(2, serverId + ":" + encodeKey(writingKey));
+            notify.execute();
+        }
+    }
+
+    private void pointerChangedElsewhere(PublicKeyHash writingKey) {
+        synchronized (lock(writingKey)) {
+            pointerCache.ifPresent(c -> c.remove(writingKey));
+        }
+        if (watchers.containsKey(writingKey))
+            getPointer(writingKey).thenAccept(updated -> notifyWatchers(writingKey, updated));
+    }
+
+    private void listenForPointerChanges() {
+        while (! isClosed) {
+            try (Connection conn = getConnection()) {
+                try (Statement listen = conn.createStatement()) {
+                    listen.execute("LISTEN " + POINTER_CHANNEL + ";");
+                    // we may have missed changes while we weren't listening
+                    pointerCache.ifPresent(PointerCache::clear);
+                    PGConnection pg = conn.unwrap(PGConnection.class);
+                    while (! isClosed) {
+                        PGNotification[] notifications = pg.getNotifications(1_000);
+                        if (notifications == null)
+                            continue;
+                        for (PGNotification notification : notifications) {
+                            String payload = notification.getParameter();
+                            int split = payload.indexOf(":");
+                            if (payload.substring(0, split).equals(serverId))
+                                continue;
+                            byte[] key = Base64.getDecoder().decode(payload.substring(split + 1));
+                            pointerChangedElsewhere(PublicKeyHash.fromCbor(CborObject.fromByteArray(key)));
+                        }
+                    }
+                } finally {
+                    // the connection goes back to the pool, where it mustn't stay subscribed
+                    try (Statement unlisten = conn.createStatement()) {
+                        unlisten.execute("UNLISTEN *;");
+                    } catch (SQLException e) {
+                        LOG.log(Level.WARNING, "Error unsubscribing from pointer changes: " + e.getMessage(), e);
+                    }
+                }
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error listening for pointer changes: " + t.getMessage(), t);
+                pointerCache.ifPresent(PointerCache::clear);
+                try {
+                    Thread.sleep(5_000);
+                } catch (InterruptedException e) {}
+            }
+        }
+    }
+
     public List<Multihash> getAllTargets(ContentAddressedStorage ipfs) {
         try (Connection conn = getConnection();
              PreparedStatement stmt = conn.prepareStatement("SELECT * FROM metadatablobs")) {
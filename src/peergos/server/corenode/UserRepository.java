@@ -54,6 +54,14 @@ public class UserRepository implements SocialNetwork, MutablePointers {
         return store.getPointer(writer);
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return store.watchPointer(writer, current, timeoutMillis);
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         return getPointer(owner, writer)
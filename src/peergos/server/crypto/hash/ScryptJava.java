@@ -3,7 +3,8 @@ import java.util.*;
 import java.util.logging.*;
 
 import java.security.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
@@ -15,6 +16,27 @@ import peergos.shared.util.*;
 public class ScryptJava implements Hasher {
 	private static final Logger LOG = Logger.getGlobal();
     private static final int LOG_2_MIN_RAM = 17;
+    public static final int DEFAULT_MIN_PARALLEL_DIFFICULTY = 16;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int minParallelDifficulty;
+
+    /**
+     *
+     * @param pool The pool to run proof of work solvers in
+     * @param parallelism The maximum number of solvers to run concurrently
+     * @param minParallelDifficulty The minimum difficulty which is worth solving in parallel
+     */
+    public ScryptJava(ForkJoinPool pool, int parallelism, int minParallelDifficulty) {
+        this.pool = pool;
+        this.parallelism = Math.max(1, parallelism);
+        this.minParallelDifficulty = minParallelDifficulty;
+    }
+
+    public ScryptJava() {
+        this(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors(), DEFAULT_MIN_PARALLEL_DIFFICULTY);
+    }
 
     @Override
     public CompletableFuture<byte[]> hashToKeyBytes(String username, String password, SecretGenerationAlgorithm algorithm) {
@@ -42,18 +64,37 @@ public class ScryptJava implements Hasher {
         throw new IllegalStateException("Unknown user generation algorithm: " + algorithm);
     }
 
+    /** Search for a prefix which gives a hash with at least difficulty leading zero bits. Above the minimum parallel
+     *  difficulty the counter space is interleaved across the pool, and all solvers stop once any one finds a prefix.
+     */
     @Override
     public CompletableFuture<ProofOfWork> generateProofOfWork(int difficulty, byte[] data) {
+        int solvers = difficulty < minParallelDifficulty ? 1 : parallelism;
+        AtomicBoolean found = new AtomicBoolean(false);
+        List<ForkJoinTask<Optional<byte[]>>> tasks = new ArrayList<>();
+        for (int i=1; i < solvers; i++) {
+            int start = i;
+            tasks.add(pool.submit(() -> solve(difficulty, data, start, solvers, found)));
+        }
+        Optional<byte[]> res = solve(difficulty, data, 0, solvers, found);
+        for (ForkJoinTask<Optional<byte[]>> task : tasks) {
+            Optional<byte[]> prefix = task.join();
+            if (res.isEmpty())
+                res = prefix;
+        }
+        return Futures.of(new ProofOfWork(res.get(), Multihash.Type.sha2_256));
+    }
+
+    /** Try the counters start, start + step, start + 2*step.. until one satisfies the difficulty or found is set
+     *
+     * @return the prefix if this solver found one
+     */
+    private static Optional<byte[]> solve(int difficulty, byte[] data, long start, int step, AtomicBoolean found) {
+        MessageDigest md = sha256();
         byte[] combined = new byte[data.length + ProofOfWork.PREFIX_BYTES];
         System.arraycopy(data, 0, combined, ProofOfWork.PREFIX_BYTES, data.length);
-        long counter = 0;
-        while (true) {
-            byte[] hash = Hash.sha256(combined);
-            if (ProofOfWork.satisfiesDifficulty(difficulty, hash)) {
-                byte[] prefix = Arrays.copyOfRange(combined, 0, ProofOfWork.PREFIX_BYTES);
-                return Futures.of(new ProofOfWork(prefix, Multihash.Type.sha2_256));
-            }
-            counter++;
+        byte[] hash = new byte[md.getDigestLength()];
+        for (long counter = start; ! found.get(); counter += step) {
             combined[0] = (byte) counter;
             combined[1] = (byte) (counter >> 8);
             combined[2] = (byte) (counter >> 16);
@@ -62,6 +103,25 @@ public class ScryptJava implements Hasher {
             combined[5] = (byte) (counter >> 40);
             combined[6] = (byte) (counter >> 48);
             combined[7] = (byte) (counter >> 56);
+            md.update(combined);
+            try {
+                md.digest(hash, 0, hash.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            if (ProofOfWork.satisfiesDifficulty(difficulty, hash)) {
+                found.set(true);
+                return Optional.of(Arrays.copyOfRange(combined, 0, ProofOfWork.PREFIX_BYTES));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(Hash.HASH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
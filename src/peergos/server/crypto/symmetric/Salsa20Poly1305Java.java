@@ -1,17 +1,375 @@
 package peergos.server.crypto.symmetric;
 
-import peergos.server.crypto.*;
+import peergos.shared.crypto.*;
 import peergos.shared.crypto.symmetric.*;
 
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A pure Java XSalsa20Poly1305 secretbox, compatible with TweetNaCl, that works on 32 bit words and can write into
+ *  caller supplied buffers. Large payloads are split into segments which are encrypted and authenticated in parallel.
+ *  The Poly1305 results for each segment are combined using powers of the key, r, so the output is identical to a
+ *  sequential computation.
+ */
 public class Salsa20Poly1305Java implements Salsa20Poly1305 {
+    public static final int OVERHEAD_BYTES = 16;
+    public static final int DEFAULT_MIN_PARALLEL_SEGMENT = 256 * 1024;
+
+    private static final VarHandle LE_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int SIGMA0 = 0x61707865, SIGMA1 = 0x3320646e, SIGMA2 = 0x79622d32, SIGMA3 = 0x6b206574;
+    private static final long MASK26 = 0x3ffffff;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int minSegmentSize;
+
+    /**
+     *
+     * @param pool The pool to process segments in
+     * @param parallelism The maximum number of segments to split a payload into
+     * @param minSegmentSize The minimum number of bytes in a segment
+     */
+    public Salsa20Poly1305Java(ForkJoinPool pool, int parallelism, int minSegmentSize) {
+        this.pool = pool;
+        this.parallelism = Math.max(1, parallelism);
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    public Salsa20Poly1305Java() {
+        this(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors(), DEFAULT_MIN_PARALLEL_SEGMENT);
+    }
 
     @Override
     public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
-        return TweetNaCl.secretbox(data, nonce, key);
+        byte[] res = new byte[data.length + OVERHEAD_BYTES];
+        secretbox(data, 0, data.length, nonce, key, res, 0);
+        return res;
     }
 
     @Override
     public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
-        return TweetNaCl.secretbox_open(cipher, nonce, key);
+        if (cipher.length < OVERHEAD_BYTES)
+            throw new InvalidCipherTextException("Invalid encryption! Cipher text too short: " + cipher.length);
+        byte[] res = new byte[cipher.length - OVERHEAD_BYTES];
+        secretbox_open(cipher, 0, cipher.length, nonce, key, res, 0);
+        return res;
+    }
+
+    /** Encrypt and authenticate len bytes of data, writing the 16 byte tag followed by the cipher text to out
+     *
+     * @param out A buffer with room for len + 16 bytes from outOff
+     */
+    public void secretbox(byte[] data, int dataOff, int len, byte[] nonce, byte[] key, byte[] out, int outOff) {
+        int[] subkey = hsalsa20(nonce, key);
+        byte[] polyKey = polyKey(subkey, nonce);
+        long[] partial = process(subkey, nonce, polyKey, data, dataOff, out, outOff + OVERHEAD_BYTES, len, true);
+        byte[] tag = finish(partial, polyKey);
+        System.arraycopy(tag, 0, out, outOff, OVERHEAD_BYTES);
+    }
+
+    /** Verify and decrypt a tag followed by cipher text, writing the plain text to out
+     *
+     * @param len The length of the tag plus cipher text
+     * @param out A buffer with room for len - 16 bytes from outOff
+     */
+    public void secretbox_open(byte[] cipher, int cipherOff, int len, byte[] nonce, byte[] key, byte[] out, int outOff) {
+        if (len < OVERHEAD_BYTES)
+            throw new InvalidCipherTextException("Invalid encryption! Cipher text too short: " + len);
+        int[] subkey = hsalsa20(nonce, key);
+        int textLen = len - OVERHEAD_BYTES;
+        byte[] polyKey = polyKey(subkey, nonce);
+        long[] partial = process(subkey, nonce, polyKey, cipher, cipherOff + OVERHEAD_BYTES, out, outOff, textLen, false);
+        byte[] tag = finish(partial, polyKey);
+        int diff = 0;
+        for (int i=0; i < OVERHEAD_BYTES; i++)
+            diff |= tag[i] ^ cipher[cipherOff + i];
+        if (diff != 0) {
+            Arrays.fill(out, outOff, outOff + textLen, (byte) 0);
+            throw new InvalidCipherTextException("Invalid encryption! [" + len + "]");
+        }
+    }
+
+    /** XOR the key stream over the input, and compute the Poly1305 accumulator over the cipher text, in parallel
+     *  segments for large inputs.
+     *
+     * @return The Poly1305 accumulator, before the final reduction
+     */
+    private long[] process(int[] subkey,
+                           byte[] nonce,
+                           byte[] polyKey,
+                           byte[] in,
+                           int inOff,
+                           byte[] out,
+                           int outOff,
+                           int len,
+                           boolean encrypt) {
+        long[] r = polyR(polyKey);
+        // Segment boundaries must be on both a Poly1305 block (16 bytes) and a Salsa20 block (64 bytes). The message
+        // starts 32 bytes into the first key stream block.
+        int segments = Math.min(parallelism, len / minSegmentSize);
+        if (segments <= 1)
+            return segment(subkey, nonce, r, in, inOff, out, outOff, 0, len, encrypt);
+
+        int blocksPerSegment = (len - 32) / 64 / segments;
+        int[] starts = new int[segments + 1];
+        for (int i=1; i < segments; i++)
+            starts[i] = 32 + 64 * blocksPerSegment * i;
+        starts[segments] = len;
+
+        List<ForkJoinTask<long[]>> tasks = new ArrayList<>();
+        for (int i=1; i < segments; i++) {
+            int start = starts[i], end = starts[i + 1];
+            tasks.add(pool.submit(() -> segment(subkey, nonce, r, in, inOff, out, outOff, start, end, encrypt)));
+        }
+        long[] acc = segment(subkey, nonce, r, in, inOff, out, outOff, 0, starts[1], encrypt);
+        for (int i=1; i < segments; i++) {
+            long[] h = tasks.get(i - 1).join();
+            int blocks = (starts[i + 1] - starts[i] + 15) / 16;
+            acc = add(mul(acc, pow(r, blocks)), h);
+        }
+        return acc;
+    }
+
+    /** Process the message bytes [start, end) */
+    private static long[] segment(int[] subkey, byte[] nonce, long[] r, byte[] in, int inOff, byte[] out, int outOff,
+                                  int start, int end, boolean encrypt) {
+        long[] h = new long[5];
+        if (! encrypt)
+            poly1305Blocks(h, r, in, inOff + start, end - start);
+        xorKeyStream(subkey, nonce, in, inOff, out, outOff, start, end);
+        if (encrypt)
+            poly1305Blocks(h, r, out, outOff + start, end - start);
+        return h;
+    }
+
+    private static void xorKeyStream(int[] subkey, byte[] nonce, byte[] in, int inOff, byte[] out, int outOff, int start, int end) {
+        int[] x = new int[16];
+        byte[] stream = new byte[64];
+        int n0 = (int) LE_INT.get(nonce, 16), n1 = (int) LE_INT.get(nonce, 20);
+        long position = start + 32L;
+        long counter = position / 64;
+        int offset = (int) (position % 64);
+        int i = start;
+        while (i < end) {
+            salsa20(subkey, n0, n1, counter++, x);
+            if (offset == 0 && end - i >= 64) {
+                for (int w=0; w < 16; w++) {
+                    int j = 4 * w;
+                    LE_INT.set(out, outOff + i + j, x[w] ^ (int) LE_INT.get(in, inOff + i + j));
+                }
+                i += 64;
+            } else {
+                for (int w=0; w < 16; w++)
+                    LE_INT.set(stream, 4 * w, x[w]);
+                int n = Math.min(64 - offset, end - i);
+                for (int j=0; j < n; j++)
+                    out[outOff + i + j] = (byte) (in[inOff + i + j] ^ stream[offset + j]);
+                i += n;
+                offset = 0;
+            }
+        }
+    }
+
+    private static byte[] polyKey(int[] subkey, byte[] nonce) {
+        int[] x = new int[16];
+        salsa20(subkey, (int) LE_INT.get(nonce, 16), (int) LE_INT.get(nonce, 20), 0, x);
+        byte[] res = new byte[32];
+        for (int w=0; w < 8; w++)
+            LE_INT.set(res, 4 * w, x[w]);
+        return res;
+    }
+
+    private static int[] hsalsa20(byte[] nonce, byte[] key) {
+        int[] k = new int[8];
+        for (int i=0; i < 8; i++)
+            k[i] = (int) LE_INT.get(key, 4 * i);
+        int[] x = {
+                SIGMA0, k[0], k[1], k[2],
+                k[3], SIGMA1, (int) LE_INT.get(nonce, 0), (int) LE_INT.get(nonce, 4),
+                (int) LE_INT.get(nonce, 8), (int) LE_INT.get(nonce, 12), SIGMA2, k[4],
+                k[5], k[6], k[7], SIGMA3};
+        rounds(x);
+        return new int[] {x[0], x[5], x[10], x[15], x[6], x[7], x[8], x[9]};
+    }
+
+    private static void salsa20(int[] k, int n0, int n1, long counter, int[] out) {
+        int[] x = out;
+        x[0] = SIGMA0; x[1] = k[0]; x[2] = k[1]; x[3] = k[2];
+        x[4] = k[3]; x[5] = SIGMA1; x[6] = n0; x[7] = n1;
+        x[8] = (int) counter; x[9] = (int) (counter >>> 32); x[10] = SIGMA2; x[11] = k[4];
+        x[12] = k[5]; x[13] = k[6]; x[14] = k[7]; x[15] = SIGMA3;
+        int j0 = x[0], j1 = x[1], j2 = x[2], j3 = x[3], j4 = x[4], j5 = x[5], j6 = x[6], j7 = x[7],
+                j8 = x[8], j9 = x[9], j10 = x[10], j11 = x[11], j12 = x[12], j13 = x[13], j14 = x[14], j15 = x[15];
+        rounds(x);
+        x[0] += j0; x[1] += j1; x[2] += j2; x[3] += j3; x[4] += j4; x[5] += j5; x[6] += j6; x[7] += j7;
+        x[8] += j8; x[9] += j9; x[10] += j10; x[11] += j11; x[12] += j12; x[13] += j13; x[14] += j14; x[15] += j15;
+    }
+
+    /** 20 rounds of the Salsa20 core, in place, without the final addition */
+    private static void rounds(int[] s) {
+        int x0 = s[0], x1 = s[1], x2 = s[2], x3 = s[3], x4 = s[4], x5 = s[5], x6 = s[6], x7 = s[7],
+                x8 = s[8], x9 = s[9], x10 = s[10], x11 = s[11], x12 = s[12], x13 = s[13], x14 = s[14], x15 = s[15];
+        for (int i=0; i < 10; i++) {
+            // column round
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);  x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13); x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);   x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13); x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7); x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13); x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7); x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13); x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // row round
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);   x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);  x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);   x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);  x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7); x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13); x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        s[0] = x0; s[1] = x1; s[2] = x2; s[3] = x3; s[4] = x4; s[5] = x5; s[6] = x6; s[7] = x7;
+        s[8] = x8; s[9] = x9; s[10] = x10; s[11] = x11; s[12] = x12; s[13] = x13; s[14] = x14; s[15] = x15;
+    }
+
+    /* Poly1305 with 26 bit limbs, after poly1305-donna */
+
+    private static long le32(byte[] b, int off) {
+        return ((int) LE_INT.get(b, off)) & 0xffffffffL;
+    }
+
+    private static long[] polyR(byte[] key) {
+        return new long[] {
+                le32(key, 0) & 0x3ffffff,
+                (le32(key, 3) >> 2) & 0x3ffff03,
+                (le32(key, 6) >> 4) & 0x3ffc0ff,
+                (le32(key, 9) >> 6) & 0x3f03fff,
+                (le32(key, 12) >> 8) & 0x00fffff
+        };
+    }
+
+    private static void poly1305Blocks(long[] h, long[] r, byte[] m, int off, int len) {
+        long r0 = r[0], r1 = r[1], r2 = r[2], r3 = r[3], r4 = r[4];
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+        byte[] last = null;
+        int end = off + len;
+        while (off < end) {
+            long hibit = 1 << 24;
+            byte[] block = m;
+            int b = off;
+            if (end - off < 16) {
+                last = new byte[16];
+                System.arraycopy(m, off, last, 0, end - off);
+                last[end - off] = 1;
+                hibit = 0;
+                block = last;
+                b = 0;
+            }
+            h0 += le32(block, b) & MASK26;
+            h1 += (le32(block, b + 3) >> 2) & MASK26;
+            h2 += (le32(block, b + 6) >> 4) & MASK26;
+            h3 += (le32(block, b + 9) >> 6) & MASK26;
+            h4 += (le32(block, b + 12) >> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26; h0 = d0 & MASK26;
+            d1 += c; c = d1 >>> 26; h1 = d1 & MASK26;
+            d2 += c; c = d2 >>> 26; h2 = d2 & MASK26;
+            d3 += c; c = d3 >>> 26; h3 = d3 & MASK26;
+            d4 += c; c = d4 >>> 26; h4 = d4 & MASK26;
+            h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+            h1 += c;
+            off += 16;
+        }
+        h[0] = h0; h[1] = h1; h[2] = h2; h[3] = h3; h[4] = h4;
+    }
+
+    /** Multiply two field elements modulo 2^130 - 5 */
+    private static long[] mul(long[] a, long[] b) {
+        long h0 = a[0], h1 = a[1], h2 = a[2], h3 = a[3], h4 = a[4];
+        long r0 = b[0], r1 = b[1], r2 = b[2], r3 = b[3], r4 = b[4];
+        long s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+        long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+        long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+        long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+        long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+        long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+        return carry(d0, d1, d2, d3, d4);
+    }
+
+    private static long[] add(long[] a, long[] b) {
+        return carry(a[0] + b[0], a[1] + b[1], a[2] + b[2], a[3] + b[3], a[4] + b[4]);
+    }
+
+    private static long[] carry(long d0, long d1, long d2, long d3, long d4) {
+        long c = d0 >>> 26; d0 &= MASK26;
+        d1 += c; c = d1 >>> 26; d1 &= MASK26;
+        d2 += c; c = d2 >>> 26; d2 &= MASK26;
+        d3 += c; c = d3 >>> 26; d3 &= MASK26;
+        d4 += c; c = d4 >>> 26; d4 &= MASK26;
+        d0 += c * 5; c = d0 >>> 26; d0 &= MASK26;
+        d1 += c;
+        return new long[] {d0, d1, d2, d3, d4};
+    }
+
+    private static long[] pow(long[] r, int exponent) {
+        long[] res = {1, 0, 0, 0, 0};
+        long[] base = r;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0)
+                res = mul(res, base);
+            base = mul(base, base);
+            exponent >>= 1;
+        }
+        return res;
+    }
+
+    /** Fully reduce the accumulator and add the second half of the one time key */
+    private static byte[] finish(long[] acc, byte[] key) {
+        long h0 = acc[0], h1 = acc[1], h2 = acc[2], h3 = acc[3], h4 = acc[4];
+        long c = h1 >>> 26; h1 &= MASK26;
+        h2 += c; c = h2 >>> 26; h2 &= MASK26;
+        h3 += c; c = h3 >>> 26; h3 &= MASK26;
+        h4 += c; c = h4 >>> 26; h4 &= MASK26;
+        h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+        h1 += c;
+
+        // compute h - p and select it if it is non negative
+        long g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK26;
+        long g1 = h1 + c; c = g1 >>> 26; g1 &= MASK26;
+        long g2 = h2 + c; c = g2 >>> 26; g2 &= MASK26;
+        long g3 = h3 + c; c = g3 >>> 26; g3 &= MASK26;
+        long g4 = h4 + c - (1L << 26);
+        long select = (g4 >>> 63) - 1; // all ones if g4 >= 0
+        h0 = (h0 & ~select) | (g0 & select);
+        h1 = (h1 & ~select) | (g1 & select);
+        h2 = (h2 & ~select) | (g2 & select);
+        h3 = (h3 & ~select) | (g3 & select);
+        h4 = (h4 & ~select) | (g4 & select);
+
+        long f0 = ((h0) | (h1 << 26)) & 0xffffffffL;
+        long f1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        long f2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        long f3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        long f = f0 + le32(key, 16);
+        byte[] tag = new byte[16];
+        LE_INT.set(tag, 0, (int) f);
+        f = f1 + le32(key, 20) + (f >>> 32);
+        LE_INT.set(tag, 4, (int) f);
+        f = f2 + le32(key, 24) + (f >>> 32);
+        LE_INT.set(tag, 8, (int) f);
+        f = f3 + le32(key, 28) + (f >>> 32);
+        LE_INT.set(tag, 12, (int) f);
+        return tag;
     }
 }
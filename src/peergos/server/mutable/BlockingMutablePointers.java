@@ -24,6 +24,18 @@ public class BlockingMutablePointers implements MutablePointers {
         return res;
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        if (blacklist.isAllowed(writer))
+            return source.watchPointer(owner, writer, current, timeoutMillis);
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        res.completeExceptionally(new IllegalStateException("This Peergos subspace has been banned from this server"));
+        return res;
+    }
+
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         if (blacklist.isAllowed(writer))
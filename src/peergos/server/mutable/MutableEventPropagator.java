@@ -38,4 +38,12 @@ public class MutableEventPropagator implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return target.watchPointer(owner, writer, current, timeoutMillis);
+    }
 }
@@ -0,0 +1,237 @@
+package peergos.server.mutable;
+
+import io.prometheus.client.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** A bounded queue of mutable pointer updates, which are processed by a fixed set of worker threads.
+ *
+ *  Owners are partitioned across the workers, so the updates for all of an owner's writers are processed in order,
+ *  one at a time, and waiting for the updates to an owner only needs to wait for its partition. An update for a writer
+ *  which already has an update waiting is coalesced with it, so a burst of updates is processed as a single change from
+ *  the root before the first to the root after the last. When a partition is full, adding a new writer to it blocks
+ *  until a worker makes room.
+ */
+public class MutableEventQueue {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final Gauge queueDepth = Gauge.build()
+            .name("mutable_event_queue_depth")
+            .help("Number of writers with mutable pointer updates waiting to be processed")
+            .register();
+    private static final Gauge queueLag = Gauge.build()
+            .name("mutable_event_queue_lag_millis")
+            .help("Time the most recently processed mutable pointer update spent waiting in the queue")
+            .register();
+    private static final Counter coalesced = Counter.build()
+            .name("mutable_event_queue_coalesced")
+            .help("Number of mutable pointer updates merged into an update which was already waiting")
+            .register();
+
+    /** All the updates to a writer which were waiting together
+     */
+    public static final class Update {
+        public final PublicKeyHash owner, writer;
+        public final MutableEvent first, last;
+        public final int count;
+
+        public Update(MutableEvent first, MutableEvent last, int count) {
+            this.owner = last.owner;
+            this.writer = last.writer;
+            this.first = first;
+            this.last = last;
+            this.count = count;
+        }
+    }
+
+    private static final class Pending {
+        final long id, queuedMillis;
+        final MutableEvent first;
+        MutableEvent last;
+        int count = 1;
+
+        Pending(long id, MutableEvent first) {
+            this.id = id;
+            this.queuedMillis = System.currentTimeMillis();
+            this.first = first;
+            this.last = first;
+        }
+    }
+
+    private final Consumer<Update> processor;
+    private final int capacityPerPartition;
+    private final Partition[] partitions;
+    private volatile boolean isRunning = true;
+
+    /**
+     *
+     * @param name The name of the worker threads
+     * @param processor What to do with each update
+     * @param workers The number of partitions, each with its own worker thread
+     * @param capacity The maximum number of writers with waiting updates
+     */
+    public MutableEventQueue(String name, Consumer<Update> processor, int workers, int capacity) {
+        this.processor = processor;
+        this.partitions = new Partition[Math.max(1, workers)];
+        this.capacityPerPartition = Math.max(1, capacity / partitions.length);
+        for (int i=0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+            Thread worker = new Thread(partitions[i], name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private Partition partition(PublicKeyHash owner) {
+        return partitions[(owner.hashCode() & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    public void add(MutableEvent event) {
+        try {
+            partition(event.owner).add(event);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warning("Interrupted queueing update to writer " + event.writer);
+        }
+    }
+
+    /** Wait for all the updates which have already been added to be processed
+     *
+     * @param timeoutMillis
+     * @return whether they were all processed within the timeout
+     */
+    public boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long[] targets = new long[partitions.length];
+        for (int i=0; i < partitions.length; i++)
+            targets[i] = partitions[i].lastAdded();
+        try {
+            for (int i=0; i < partitions.length; i++)
+                if (! partitions[i].awaitProcessed(targets[i], deadline))
+                    return false;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Wait for the updates to an owner's writers which have already been added to be processed
+     *
+     * @param owner
+     * @param timeoutMillis
+     * @return whether they were all processed within the timeout
+     */
+    public boolean flush(PublicKeyHash owner, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Partition partition = partition(owner);
+        try {
+            return partition.awaitProcessed(partition.lastAdded(), deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Stop the workers. Updates which are still waiting are dropped, and the writers they were for are logged, so
+     *  their usage can be reconciled later.
+     */
+    public void shutdown() {
+        isRunning = false;
+        for (Partition partition : partitions)
+            partition.drop();
+    }
+
+    private final class Partition implements Runnable {
+        // in order of the first waiting update to each writer
+        private final LinkedHashMap<PublicKeyHash, Pending> waiting = new LinkedHashMap<>();
+        private long added, processed;
+
+        synchronized void add(MutableEvent event) throws InterruptedException {
+            while (true) {
+                if (! isRunning) {
+                    LOG.warning("Dropping update to writer " + event.writer + " after shutdown");
+                    return;
+                }
+                Pending existing = waiting.get(event.writer);
+                if (existing != null) {
+                    existing.last = event;
+                    existing.count++;
+                    coalesced.inc();
+                    return;
+                }
+                if (waiting.size() < capacityPerPartition)
+                    break;
+                wait();
+            }
+            waiting.put(event.writer, new Pending(++added, event));
+            queueDepth.inc();
+            notifyAll();
+        }
+
+        synchronized long lastAdded() {
+            return added;
+        }
+
+        synchronized boolean awaitProcessed(long target, long deadline) throws InterruptedException {
+            while (processed < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+            return true;
+        }
+
+        synchronized void drop() {
+            if (! waiting.isEmpty()) {
+                LOG.warning("Dropping updates to " + waiting.size() + " writers on shutdown: " + waiting.keySet());
+                queueDepth.dec(waiting.size());
+                waiting.clear();
+            }
+            notifyAll();
+        }
+
+        private synchronized Optional<Pending> take() throws InterruptedException {
+            while (waiting.isEmpty() && isRunning)
+                wait();
+            if (! isRunning)
+                return Optional.empty();
+            Iterator<Pending> it = waiting.values().iterator();
+            Pending next = it.next();
+            it.remove();
+            queueDepth.dec();
+            notifyAll();
+            return Optional.of(next);
+        }
+
+        private synchronized void done(Pending update) {
+            processed = update.id;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    Optional<Pending> next = take();
+                    if (! next.isPresent())
+                        return;
+                    Pending update = next.get();
+                    queueLag.set(System.currentTimeMillis() - update.queuedMillis);
+                    try {
+                        processor.accept(new Update(update.first, update.last, update.count));
+                    } catch (Throwable t) {
+                        LOG.log(Level.WARNING, "Error processing update to writer " + update.first.writer, t);
+                    } finally {
+                        done(update);
+                    }
+                } catch (InterruptedException e) {}
+            }
+        }
+    }
+}
@@ -76,4 +76,12 @@ public class PinningMutablePointers implements MutablePointers {
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer) {
         return target.getPointer(owner, writer);
     }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return target.watchPointer(owner, writer, current, timeoutMillis);
+    }
 }
@@ -2,6 +2,7 @@ package peergos.server.net;
 import java.util.logging.*;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -17,7 +18,9 @@ import peergos.shared.util.*;
 import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -26,17 +29,29 @@ public class DHTHandler implements HttpHandler {
 
     private static final boolean LOGGING = true;
     private final ContentAddressedStorage dht;
+    private final Optional<FileBlockSource> localFiles;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
     private final boolean isPublicServer;
 
+    /**
+     *
+     * @param dht
+     * @param localFiles if present, raw blocks found here are streamed directly from disk
+     * @param hasher
+     * @param keyFilter
+     * @param apiPrefix
+     * @param isPublicServer
+     */
     public DHTHandler(ContentAddressedStorage dht,
+                      Optional<FileBlockSource> localFiles,
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       String apiPrefix,
                       boolean isPublicServer) {
         this.dht = dht;
+        this.localFiles = localFiles;
         this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
@@ -47,7 +62,15 @@ public class DHTHandler implements HttpHandler {
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       boolean isPublicServer) {
-        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer);
+        this(dht, Optional.empty(), hasher, keyFilter, "/api/v0/", isPublicServer);
+    }
+
+    public DHTHandler(ContentAddressedStorage dht,
+                      Optional<FileBlockSource> localFiles,
+                      Hasher hasher,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      boolean isPublicServer) {
+        this(dht, localFiles, hasher, keyFilter, "/api/v0/", isPublicServer);
     }
 
     @Override
@@ -189,14 +212,60 @@ public class DHTHandler implements HttpHandler {
                 case BLOCK_GET:{
                     AggregatedMetrics.DHT_BLOCK_GET.inc();
                     Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
-                            .thenAccept(opt -> replyBytes(httpExchange,
-                                    opt.orElse(new byte[0]), opt.map(x -> hash)))
+                    boolean isRaw = hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+                    // Raw blocks are large, and not worth caching, so stream them straight from disk if we can
+                    if (isRaw && localFiles.isPresent()) {
+                        Optional<FileBlockSource.BlockRegion> region = localFiles.get().openBlock(hash);
+                        if (region.isPresent()) {
+                            try (FileBlockSource.BlockRegion block = region.get()) {
+                                replyBlock(httpExchange, block, hash);
+                            }
+                            break;
+                        }
+                    }
+                    getBlock(hash)
+                            .thenAccept(opt -> {
+                                if (opt.isPresent())
+                                    replyBlock(httpExchange, opt.get(), hash);
+                                else
+                                    replyBytes(httpExchange, new byte[0], Optional.empty());
+                            })
                             .exceptionally(Futures::logAndThrow).get();
                     break;
                 }
+                case BLOCK_GET_ALL: {
+                    AggregatedMetrics.DHT_BLOCK_GET_ALL.inc();
+                    byte[] reqBody = Serialize.readFully(httpExchange.getRequestBody());
+                    List<Multihash> hashes = ((CborObject.CborList) CborObject.fromByteArray(reqBody)).value.stream()
+                            .map(c -> Cid.cast(((CborObject.CborByteArray) c).value))
+                            .distinct()
+                            .collect(Collectors.toList());
+                    if (hashes.size() > MAX_BLOCKS_PER_GET_ALL)
+                        throw new IllegalStateException("Too many blocks requested: " + hashes.size());
+                    // stream each block as soon as it is retrieved
+                    httpExchange.sendResponseHeaders(200, 0);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(httpExchange.getResponseBody()));
+                    List<CompletableFuture<Boolean>> written = hashes.stream()
+                            .map(hash -> getBlock(hash).thenApply(opt -> {
+                                if (opt.isPresent()) {
+                                    synchronized (out) {
+                                        try {
+                                            writeBlockFrame(out, hash, opt.get());
+                                            out.flush();
+                                        } catch (IOException e) {
+                                            throw new RuntimeException(e.getMessage(), e);
+                                        }
+                                    }
+                                }
+                                return true;
+                            }))
+                            .collect(Collectors.toList());
+                    // on failure the response is left unterminated, so the client doesn't mistake it for missing blocks
+                    Futures.combineAll(written).exceptionally(Futures::logAndThrow).get();
+                    writeBlockFramesEnd(out);
+                    out.close();
+                    break;
+                }
                 case BLOCK_STAT: {
                     AggregatedMetrics.DHT_BLOCK_STAT.inc();
                     Multihash block = Cid.decode(args.get(0));
@@ -271,6 +340,109 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    /** An inclusive range of bytes, from a Range header.
+     */
+    private static class ByteRange {
+        public final long start, end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        /**
+         *
+         * @param header
+         * @param size
+         * @return the requested range, the full range if the header is absent or unsupported, or empty if the
+         *         range can't be satisfied
+         */
+        public static Optional<ByteRange> parse(Optional<String> header, long size) {
+            ByteRange all = new ByteRange(0, size - 1);
+            if (! header.isPresent() || ! header.get().startsWith("bytes="))
+                return Optional.of(all);
+            String spec = header.get().substring("bytes=".length()).trim();
+            if (spec.contains(","))
+                return Optional.of(all); // we don't support multipart responses, and are allowed to ignore the header
+            int dash = spec.indexOf("-");
+            if (dash < 0)
+                return Optional.of(all);
+            try {
+                String from = spec.substring(0, dash).trim(), to = spec.substring(dash + 1).trim();
+                if (from.isEmpty()) {
+                    long suffix = Long.parseLong(to);
+                    if (suffix <= 0)
+                        return Optional.empty();
+                    return Optional.of(new ByteRange(Math.max(0, size - suffix), size - 1));
+                }
+                long start = Long.parseLong(from);
+                long end = to.isEmpty() ? size - 1 : Math.min(Long.parseLong(to), size - 1);
+                if (start >= size || end < start)
+                    return Optional.empty();
+                return Optional.of(new ByteRange(start, end));
+            } catch (NumberFormatException e) {
+                return Optional.of(all);
+            }
+        }
+    }
+
+    private interface BlockWriter {
+        void write(long start, long length, OutputStream out) throws IOException;
+    }
+
+    private static void replyBlock(HttpExchange exchange, FileBlockSource.BlockRegion block, Multihash key) {
+        replyBlock(exchange, block.length, key, (start, length, out) -> {
+            WritableByteChannel target = Channels.newChannel(out);
+            block.transferTo(start, length, target);
+        });
+    }
+
+    private static void replyBlock(HttpExchange exchange, byte[] block, Multihash key) {
+        replyBlock(exchange, block.length, key, (start, length, out) -> out.write(block, (int) start, (int) length));
+    }
+
+    /** Reply with a block, or the part of it requested by a Range header.
+     */
+    private static void replyBlock(HttpExchange exchange, long size, Multihash key, BlockWriter writer) {
+        try {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Cache-Control", "public, max-age=31622400 immutable");
+            headers.set("ETag", "\"" + key.toString() + "\"");
+            headers.set("Accept-Ranges", "bytes");
+            Optional<String> rangeHeader = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Range"));
+            Optional<ByteRange> range = ByteRange.parse(rangeHeader.filter(r -> size > 0), size);
+            if (! range.isPresent()) {
+                headers.set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            ByteRange r = range.get();
+            boolean partial = rangeHeader.isPresent() && r.length() < size;
+            if (partial)
+                headers.set("Content-Range", "bytes " + r.start + "-" + r.end + "/" + size);
+            long length = size == 0 ? 0 : r.length();
+            exchange.sendResponseHeaders(partial ? 206 : 200, length);
+            OutputStream out = exchange.getResponseBody();
+            if (length > 0)
+                writer.write(r.start, length, out);
+            out.flush();
+            out.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
+    private CompletableFuture<Optional<byte[]>> getBlock(Multihash hash) {
+        boolean isRaw = hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+        return isRaw ?
+                dht.getRaw(hash) :
+                dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray));
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
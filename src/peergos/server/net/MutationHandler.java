@@ -43,6 +43,7 @@ public class MutationHandler implements HttpHandler {
         Map<String, List<String>> params = HttpUtil.parseQuery(exchange.getRequestURI().getQuery());
         PublicKeyHash owner = PublicKeyHash.fromString(params.get("owner").get(0));
         PublicKeyHash writer = PublicKeyHash.fromString(params.get("writer").get(0));
+        boolean isAsync = false;
         try {
             if (! HttpUtil.allowedQuery(exchange, isPublicServer)) {
                 exchange.sendResponseHeaders(405, 0);
@@ -61,6 +62,31 @@ public class MutationHandler implements HttpHandler {
                     byte[] metadataBlob = mutable.getPointer(owner, writer).get().orElse(new byte[0]);
                     dout.write(metadataBlob);
                     break;
+                case "watchPointer":
+                    AggregatedMetrics.MUTABLE_POINTERS_GET.inc();
+                    byte[] current = Serialize.readFully(din, 1024);
+                    long timeout = Math.min(HttpMutablePointers.MAX_WATCH_MILLIS, Long.parseLong(params.get("timeout").get(0)));
+                    // reply when the pointer changes, without holding a handler thread while we wait
+                    mutable.watchPointer(owner, writer, current.length == 0 ? Optional.empty() : Optional.of(current), timeout)
+                            .whenComplete((res, t) -> {
+                                try {
+                                    if (t != null) {
+                                        HttpUtil.replyError(exchange, t);
+                                        return;
+                                    }
+                                    byte[] updated = res.orElse(new byte[0]);
+                                    exchange.sendResponseHeaders(200, updated.length);
+                                    exchange.getResponseBody().write(updated);
+                                } catch (Exception e) {
+                                    HttpUtil.replyError(exchange, e);
+                                } finally {
+                                    exchange.close();
+                                    long t2 = System.currentTimeMillis();
+                                    LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+                                }
+                            });
+                    isAsync = true;
+                    return;
                 default:
                     throw new IOException("Unknown method in mutable pointers!");
             }
@@ -71,9 +97,11 @@ public class MutationHandler implements HttpHandler {
         } catch (Exception e) {
             HttpUtil.replyError(exchange, e);
         } finally {
-            exchange.close();
-            long t2 = System.currentTimeMillis();
-            LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+            if (! isAsync) {
+                exchange.close();
+                long t2 = System.currentTimeMillis();
+                LOG.info("Mutable pointers server handled " + method + " request in: " + (t2 - t1) + " mS");
+            }
         }
     }
 }
@@ -57,6 +57,45 @@ public class JdbcUsageStore implements UsageStore {
         // TODO can we remove this method?
     }
 
+    @Override
+    public Set<PublicKeyHash> getReconciledWriters() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement("SELECT w.key_hash FROM writers w, reconciledwriters r WHERE w.id = r.writer_id;")) {
+            Set<PublicKeyHash> res = new HashSet<>();
+            ResultSet resultSet = select.executeQuery();
+            while (resultSet.next())
+                res.add(PublicKeyHash.decode(resultSet.getBytes(1)));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void addReconciledWriter(PublicKeyHash writer) {
+        int writerId = getWriterId(writer);
+        try (Connection conn = getConnection(true, false);
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO reconciledwriters (writer_id) VALUES(?)"))) {
+            insert.setInt(1, writerId);
+            insert.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    @Override
+    public void clearReconciledWriters() {
+        try (Connection conn = getConnection(true, false);
+             PreparedStatement delete = conn.prepareStatement("DELETE FROM reconciledwriters;")) {
+            delete.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public void addUserIfAbsent(String username) {
         try (Connection conn = getConnection(true, false);
@@ -110,7 +149,7 @@ public class JdbcUsageStore implements UsageStore {
     }
 
     @Override
-    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+    public void addPendingUsage(String username, PublicKeyHash writer, long size) {
         int writerId = getWriterId(writer);
         try (Connection conn = getConnection(true, false);
              PreparedStatement insert = conn.prepareStatement("UPDATE pendingusage SET pending_bytes = pending_bytes + ? " +
@@ -126,6 +165,39 @@ public class JdbcUsageStore implements UsageStore {
         }
     }
 
+    @Override
+    public void addPendingUsage(Map<PublicKeyHash, Long> pending) {
+        if (pending.isEmpty())
+            return;
+        try (Connection conn = getConnection(false, false);
+             PreparedStatement update = conn.prepareStatement("UPDATE pendingusage SET pending_bytes = pending_bytes + ? " +
+                     "WHERE writer_id = (SELECT id FROM writers WHERE key_hash = ?);")) {
+            conn.setAutoCommit(false);
+            try {
+                List<PublicKeyHash> writers = new ArrayList<>(pending.keySet());
+                for (PublicKeyHash writer : writers) {
+                    update.setLong(1, pending.get(writer));
+                    update.setBytes(2, writer.toBytes());
+                    update.addBatch();
+                }
+                int[] counts = update.executeBatch();
+                // a writer we don't know about only loses its own pending usage, rather than failing the batch
+                for (int i=0; i < counts.length; i++)
+                    if (counts[i] == 0)
+                        LOG.warning("Dropping pending usage of unknown writer " + writers.get(i));
+                conn.commit();
+            } catch (SQLException sqe) {
+                conn.rollback();
+                throw sqe;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public UserUsage getUsage(String username) {
         int userId = getUserId(username);
@@ -18,6 +18,7 @@ public class RamUsageStore implements UsageStore {
     private final State state;
     private final Path statePath;
     private boolean initializedFully = false;
+    private final Set<PublicKeyHash> reconciled = ConcurrentHashMap.newKeySet();
 
     public RamUsageStore(State state, Path statePath) {
         this.state = state;
@@ -67,7 +68,7 @@ public class RamUsageStore implements UsageStore {
     }
 
     @Override
-    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+    public void addPendingUsage(String username, PublicKeyHash writer, long size) {
         state.usage.get(username).addPending(writer, size);
     }
 
@@ -76,6 +77,21 @@ public class RamUsageStore implements UsageStore {
         this.initializedFully = true;
     }
 
+    @Override
+    public Set<PublicKeyHash> getReconciledWriters() {
+        return new HashSet<>(reconciled);
+    }
+
+    @Override
+    public void addReconciledWriter(PublicKeyHash writer) {
+        reconciled.add(writer);
+    }
+
+    @Override
+    public void clearReconciledWriters() {
+        reconciled.clear();
+    }
+
     /**
      * Write current view of usages to this.statePath, completing any pending operations
      */
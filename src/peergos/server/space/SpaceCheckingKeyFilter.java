@@ -1,5 +1,7 @@
 package peergos.server.space;
 
+import io.prometheus.client.*;
+
 import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 
@@ -20,6 +22,7 @@ import peergos.shared.util.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.Collectors;
 
 /** This class checks whether a given user is using more storage space than their quota
@@ -28,35 +31,60 @@ import java.util.stream.Collectors;
 public class SpaceCheckingKeyFilter implements SpaceUsage {
     private static final Logger LOG = Logging.LOG();
     private static final long USAGE_TOLERANCE = 1024 * 1024;
+    public static final int DEFAULT_RECONCILE_PARALLELISM = 8;
+    public static final int DEFAULT_EVENT_WORKERS = 4;
+    private static final int EVENT_QUEUE_CAPACITY = 1000;
+    // how long a write from an unknown writer waits for its owner's queued updates, which may register it
+    private static final long NEW_WRITER_TIMEOUT_MILLIS = 30_000;
+    private static final long QUOTA_CACHE_MILLIS = 10_000;
+
+    private static final Gauge reconcileWriters = Gauge.build()
+            .name("usage_reconcile_writers")
+            .help("Number of writers to check in the current startup usage reconciliation")
+            .register();
+    private static final Gauge reconciledWriters = Gauge.build()
+            .name("usage_reconcile_writers_done")
+            .help("Number of writers checked so far in the current startup usage reconciliation")
+            .register();
+    private static final Gauge reconcileWritersPerSecond = Gauge.build()
+            .name("usage_reconcile_writers_per_second")
+            .help("Rate at which writers have been checked in the current startup usage reconciliation")
+            .register();
     private final CoreNode core;
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private final Hasher hasher;
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
-    private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    private final MutableEventQueue mutableQueue;
+    // Serialises updates to the usage of each writer between the event workers and the reconciliation pool
+    private final ConcurrentHashMap<PublicKeyHash, Object> writerLocks = new ConcurrentHashMap<>();
+    private final int reconcileParallelism;
+    // username -> (quota, expiry time), so quota checks on each block put don't go to the quota store
+    private final ConcurrentHashMap<String, Pair<Long, Long>> quotas = new ConcurrentHashMap<>();
 
+    /**
+     *
+     * @param reconcileParallelism The number of users or writers to reconcile concurrently at startup
+     * @param eventWorkers The number of threads processing mutable pointer updates
+     */
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   ContentAddressedStorage dht,
                                   Hasher hasher,
                                   QuotaAdmin quotaAdmin,
-                                  UsageStore usageStore) {
+                                  UsageStore usageStore,
+                                  int reconcileParallelism,
+                                  int eventWorkers) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-            }
-        }, "SpaceCheckingKeyFilter").start();
+        this.reconcileParallelism = Math.max(1, reconcileParallelism);
+        this.mutableQueue = new MutableEventQueue("SpaceCheckingKeyFilter", this::processMutablePointerEvent,
+                eventWorkers, EVENT_QUEUE_CAPACITY);
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -65,7 +93,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
      * Write current view of usages to this.statePath, completing any pending operations
      */
     private synchronized void close() {
-        isRunning.set(false);
+        mutableQueue.shutdown();
         usageStore.close();
     }
 
@@ -76,9 +104,9 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         try {
             List<String> usernames = quotaAdmin.getLocalUsernames();
             Logging.LOG().info("Calculating space usage for " + usernames.size() + " local users...");
-            long done = 0;
-            for (String username : usernames) {
-                Logging.LOG().info("Calculating space usage of " + username + " (" + done++ + "/" + usernames.size() + ")");
+            AtomicLong done = new AtomicLong(0);
+            inPool(usernames, username -> {
+                Logging.LOG().info("Calculating space usage of " + username + " (" + done.incrementAndGet() + "/" + usernames.size() + ")");
                 try {
                     Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
                     if (identity.isPresent()) {
@@ -93,7 +121,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     e.printStackTrace();
                     LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
                 }
-            }
+            });
             usageStore.initialized();
             Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users...");
         } catch (Exception e) {
@@ -101,57 +129,108 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
-    public static void update(UsageStore store,
-                              QuotaAdmin quotas,
-                              CoreNode core,
-                              MutablePointers mutable,
-                              ContentAddressedStorage dht,
-                              Hasher hasher) {
+    /** Apply an action to every element, reconcileParallelism at a time, and wait for them all to finish
+     */
+    private <T> void inPool(Collection<T> elements, Consumer<T> action) {
+        ForkJoinPool pool = new ForkJoinPool(reconcileParallelism);
+        try {
+            pool.submit(() -> elements.parallelStream().forEach(action)).join();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Register all local users and their identity keys. This must complete before writes are accepted.
+     */
+    public void addLocalUsers() {
         Logging.LOG().info("Checking for updated usage for users...");
-        List<String> localUsernames = quotas.getLocalUsernames();
-        for (String username : localUsernames) {
-            store.addUserIfAbsent(username);
+        inPool(quotaAdmin.getLocalUsernames(), username -> {
+            usageStore.addUserIfAbsent(username);
             Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
             if (identity.isPresent())
-                store.addWriter(username, identity.get());
-        }
+                usageStore.addWriter(username, identity.get());
+        });
+    }
 
+    /** Bring the recorded usage of every known writer up to date with its current root. Writers are processed
+     *  concurrently, and each is charged the change in size from its last recorded target, rather than resized from
+     *  scratch. Each reconciled writer is recorded in the usage store, so an interrupted run resumes where it stopped.
+     *  Quota checks continue to use the last recorded usage while this runs.
+     */
+    public void reconcile() {
         Logging.LOG().info("Checking for updated mutable pointers...");
         long t1 = System.currentTimeMillis();
-        Set<PublicKeyHash> writers = store.getAllWriters();
-        for (PublicKeyHash writerKey : writers) {
-            WriterUsage writerUsage = store.getUsage(writerKey);
-            Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
+        Set<PublicKeyHash> writers = usageStore.getAllWriters();
+        Set<PublicKeyHash> done = ConcurrentHashMap.newKeySet();
+        done.addAll(usageStore.getReconciledWriters());
+        if (! done.isEmpty())
+            Logging.LOG().info("Resuming usage reconciliation with " + done.size() + " of " + writers.size() + " writers done");
+        List<PublicKeyHash> todo = writers.stream()
+                .filter(w -> ! done.contains(w))
+                .collect(Collectors.toList());
+        reconcileWriters.set(writers.size());
+        reconciledWriters.set(done.size());
+        AtomicLong checked = new AtomicLong(0);
+        AtomicLong failed = new AtomicLong(0);
+        inPool(todo, writer -> {
+            if (! reconcileWriter(writer, done)) {
+                failed.incrementAndGet();
+                return;
+            }
+            long count = checked.incrementAndGet();
+            reconciledWriters.inc();
+            reconcileWritersPerSecond.set(count * 1000.0 / Math.max(1, System.currentTimeMillis() - t1));
+            if (count % 1000 == 0)
+                Logging.LOG().info("Reconciled usage of " + count + " / " + todo.size() + " writers");
+        });
+        if (failed.get() > 0) {
+            // leave the checkpoint so the failed writers are retried on the next run
+            Logging.LOG().warning("Failed to reconcile usage of " + failed.get() + " writers");
+        } else
+            usageStore.clearReconciledWriters();
+        long t2 = System.currentTimeMillis();
+        Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
+    }
 
-            try {
-                PublicKeyHash owner = writerKey; //NB: owner is a dummy value
-                MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join();
-                boolean isChanged = ! writerUsage.target().equals(rootHash);
-                if (isChanged) {
-                    Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
-                    long updatedSize = dht.getRecursiveBlockSize(rootHash.get()).get();
-                    long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
-                    store.confirmUsage(writerUsage.owner, writerKey, deltaUsage, false);
-                    Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(owner, writerKey, mutable, dht, hasher).join();
-                    List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
-                            .filter(key -> !writerUsage.ownedKeys().contains(key))
-                            .collect(Collectors.toList());
-                    for (PublicKeyHash newOwnedKey : newOwnedKeys) {
-                        store.addWriter(writerUsage.owner, newOwnedKey);
-                        processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
-                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher);
-                    }
-                    HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
-                    removedOwnedKeys.removeAll(directOwnedKeys);
-                    store.updateWriterUsage(writerKey, rootHash, removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize);
-                    Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
+    /** Bring the usage of a writer, and any writers new to us that it owns, up to date with its current root. If the
+     *  change can't be calculated from the recorded root, because it is missing or unreadable, the usage is
+     *  recalculated from scratch. The writer is only recorded as reconciled if this succeeds.
+     *
+     * @return whether the writer and any new owned writers were reconciled
+     */
+    private boolean reconcileWriter(PublicKeyHash writerKey, Set<PublicKeyHash> done) {
+        if (! done.add(writerKey))
+            return true;
+        try {
+            WriterUsage writerUsage = usageStore.getUsage(writerKey);
+            Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
+            PublicKeyHash owner = writerKey; //NB: owner is a dummy value
+            MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join();
+            boolean success = true;
+            if (! writerUsage.target().equals(rootHash)) {
+                Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
+                try {
+                    processMutablePointerEvent(owner, writerKey, writerUsage.target(), rootHash, false);
+                } catch (Exception e) {
+                    Logging.LOG().log(Level.WARNING, "Couldn't calculate change in usage of " + writerKey
+                            + " from " + writerUsage.target() + ", recalculating from scratch", e);
+                    processMutablePointerEvent(owner, writerKey, writerUsage.target(), rootHash, true);
                 }
-            } catch (Throwable t) {
-                Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerUsage.owner, t);
+                // writers which are new to us will not be in the initial list, so reconcile them here
+                for (PublicKeyHash owned : usageStore.getUsage(writerKey).ownedKeys())
+                    if (! writerUsage.ownedKeys().contains(owned))
+                        success &= reconcileWriter(owned, done);
             }
+            if (success)
+                usageStore.addReconciledWriter(writerKey);
+            else
+                done.remove(writerKey);
+            return success;
+        } catch (Throwable t) {
+            done.remove(writerKey);
+            Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerKey, t);
+            return false;
         }
-        long t2 = System.currentTimeMillis();
-        Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
     }
 
     public void accept(CorenodeEvent event) {
@@ -175,7 +254,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     .collect(Collectors.toSet());
             WriterUsage current = usageStore.getUsage(writer);
             MaybeMultihash updatedRoot = mutable.getPointerTarget(writer, writer, dht).get();
-            processMutablePointerEvent(usageStore, writer, writer, current.target(), updatedRoot, mutable, dht, hasher);
+            processMutablePointerEvent(writer, writer, current.target(), updatedRoot, false);
             for (PublicKeyHash childKey : childrenKeys) {
                 processCorenodeEvent(username, childKey);
             }
@@ -185,95 +264,105 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Queue the update for accounting, so that it doesn't add to the latency of the pointer update. Any new owned
+     *  keys are registered when it is processed.
+     */
     public void accept(MutableEvent event) {
         mutableQueue.add(event);
-        try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            Set<PublicKeyHash> updatedOwned =
-                    WriterData.getDirectOwnedKeys(event.writer, hashCasPair.updated, dht, hasher).join();
-            WriterUsage current = usageStore.getUsage(event.writer);
-            for (PublicKeyHash owned : updatedOwned) {
-                usageStore.addWriter(current.owner, owned);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
     }
 
-    private void processMutablePointerEvent(MutableEvent event) {
+    private HashCasPair decode(MutableEvent event) throws Exception {
+        return dht.getSigningKey(event.writer)
+                .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
+                        .unsignMessage(event.writerSignedBtreeRootHash)))).get();
+    }
+
+    /** Apply a burst of updates to a writer as a single change from the original root of the first to the updated root
+     *  of the last
+     */
+    private void processMutablePointerEvent(MutableEventQueue.Update update) {
         try {
-            HashCasPair hashCasPair = dht.getSigningKey(event.writer)
-                    .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
-                            .unsignMessage(event.writerSignedBtreeRootHash)))).get();
-            processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
-                    mutable, dht, hasher);
+            MaybeMultihash original = decode(update.first).original;
+            MaybeMultihash updated = decode(update.last).updated;
+            try {
+                processMutablePointerEvent(update.owner, update.writer, original, updated, false);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Couldn't calculate change in usage of " + update.writer
+                        + " from " + original + ", recalculating from scratch", e);
+                processMutablePointerEvent(update.owner, update.writer, original, updated, true);
+            }
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
     }
 
-    private static void processMutablePointerEvent(UsageStore state,
-                                                   PublicKeyHash owner,
-                                                   PublicKeyHash writer,
-                                                   MaybeMultihash existingRoot,
-                                                   MaybeMultihash newRoot,
-                                                   MutablePointers mutable,
-                                                   ContentAddressedStorage dht,
-                                                   Hasher hasher) {
+    /** Charge a writer for the change from its recorded root to a new root
+     *
+     * @param existingRoot the recorded root when the new root was read, if the recorded root has changed since then,
+     *                     the current pointer target is used instead of the new root
+     * @param fromScratch recalculate the size of the new root, rather than diffing it against the recorded root
+     */
+    private void processMutablePointerEvent(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            MaybeMultihash existingRoot,
+                                            MaybeMultihash newRoot,
+                                            boolean fromScratch) {
         if (existingRoot.equals(newRoot))
             return;
-        WriterUsage current = state.getUsage(writer);
-        if (current == null)
-            throw new IllegalStateException("Unknown writer key hash: " + writer);
-        if (! newRoot.isPresent()) {
-            state.updateWriterUsage(writer, MaybeMultihash.empty(), Collections.emptySet(), Collections.emptySet(), 0);
-            if (existingRoot.isPresent()) {
-                try {
-                    // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
-                    Set<PublicKeyHash> updatedOwned =
-                            WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
-                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, hasher);
-                } catch (Exception e) {
-                    LOG.log(Level.WARNING, e.getMessage(), e);
+        synchronized (writerLocks.computeIfAbsent(writer, w -> new Object())) {
+            WriterUsage current = usageStore.getUsage(writer);
+            if (current == null)
+                throw new IllegalStateException("Unknown writer key hash: " + writer);
+            if (newRoot.isPresent() && ! current.target().equals(existingRoot)) {
+                // the recorded root changed after the caller read the new root, which may now be older than it
+                newRoot = mutable.getPointerTarget(owner, writer, dht).join();
+                if (current.target().equals(newRoot))
+                    return;
+            }
+            if (! newRoot.isPresent()) {
+                usageStore.updateWriterUsage(writer, MaybeMultihash.empty(), Collections.emptySet(), Collections.emptySet(), 0);
+                if (existingRoot.isPresent()) {
+                    try {
+                        // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
+                        Set<PublicKeyHash> updatedOwned =
+                                WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
+                        processRemovedOwnedKeys(owner, updatedOwned);
+                    } catch (Exception e) {
+                        LOG.log(Level.WARNING, e.getMessage(), e);
+                    }
                 }
+                return;
             }
-            return;
-        }
 
-        try {
-            synchronized (current) {
-                long changeInStorage = dht.getChangeInContainedSize(current.target(), newRoot.get()).get();
+            try {
+                // register new owned keys before sizing the change, as writes to them wait for it
                 Set<PublicKeyHash> updatedOwned =
                         WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
                 for (PublicKeyHash owned : updatedOwned) {
-                    state.addWriter(current.owner, owned);
+                    usageStore.addWriter(current.owner, owned);
                 }
-                state.confirmUsage(current.owner, writer, changeInStorage, false);
+                long changeInStorage = fromScratch ?
+                        dht.getRecursiveBlockSize(newRoot.get()).get() - current.directRetainedStorage() :
+                        dht.getChangeInContainedSize(current.target(), newRoot.get()).get();
+                usageStore.confirmUsage(current.owner, writer, changeInStorage, false);
 
                 HashSet<PublicKeyHash> removedChildren = new HashSet<>(current.ownedKeys());
                 removedChildren.removeAll(updatedOwned);
-                processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, hasher);
+                processRemovedOwnedKeys(owner, removedChildren);
                 HashSet<PublicKeyHash> addedOwnedKeys = new HashSet<>(updatedOwned);
                 addedOwnedKeys.removeAll(current.ownedKeys());
-                state.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
+                usageStore.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
+            } catch (Exception e) {
+                throw new RuntimeException("Error updating usage of writer " + writer, Exceptions.getRootCause(e));
             }
-        } catch (Exception e) {
-            Exceptions.getRootCause(e).printStackTrace();
         }
     }
 
-    private static void processRemovedOwnedKeys(UsageStore state,
-                                                PublicKeyHash owner,
-                                                Set<PublicKeyHash> removed,
-                                                MutablePointers mutable,
-                                                ContentAddressedStorage dht,
-                                                Hasher hasher) {
+    private void processRemovedOwnedKeys(PublicKeyHash owner, Set<PublicKeyHash> removed) {
         for (PublicKeyHash ownedKey : removed) {
             try {
                 MaybeMultihash currentTarget = mutable.getPointerTarget(owner, ownedKey, dht).get();
-                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, hasher);
+                processMutablePointerEvent(owner, ownedKey, currentTarget, MaybeMultihash.empty(), false);
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             }
@@ -310,13 +399,38 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         return quotaAdmin.requestQuota(owner, signedRequest);
     }
 
-    public boolean allowWrite(PublicKeyHash writer, int size) {
-        WriterUsage writerUsage = usageStore.getUsage(writer);
-        if (writerUsage == null)
+    private Optional<WriterUsage> getWriterUsage(PublicKeyHash writer) {
+        try {
+            return Optional.ofNullable(usageStore.getUsage(writer));
+        } catch (IllegalStateException e) {
+            return Optional.empty();
+        }
+    }
+
+    private long getQuota(String username) {
+        long now = System.currentTimeMillis();
+        Pair<Long, Long> cached = quotas.get(username);
+        if (cached != null && cached.right > now)
+            return cached.left;
+        long quota = quotaAdmin.getQuota(username);
+        quotas.put(username, new Pair<>(quota, now + QUOTA_CACHE_MILLIS));
+        return quota;
+    }
+
+    public boolean allowWrite(PublicKeyHash owner, PublicKeyHash writer, int size) {
+        Optional<WriterUsage> known = getWriterUsage(writer);
+        if (! known.isPresent()) {
+            // a new writer is registered when the update which adds it to its parent is processed, which is queued
+            // with the other updates to the same owner
+            mutableQueue.flush(owner, NEW_WRITER_TIMEOUT_MILLIS);
+            known = getWriterUsage(writer);
+        }
+        if (! known.isPresent())
             throw new IllegalStateException("Unknown writing key hash: " + writer);
+        WriterUsage writerUsage = known.get();
 
         UserUsage usage = usageStore.getUsage(writerUsage.owner);
-        long quota = quotaAdmin.getQuota(writerUsage.owner);
+        long quota = getQuota(writerUsage.owner);
         long expectedUsage = usage.expectedUsage();
         boolean errored = usage.isErrored();
         if ((! errored && expectedUsage + size > quota) || (errored && expectedUsage + size > quota + USAGE_TOLERANCE)) {
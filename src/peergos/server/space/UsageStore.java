@@ -1,8 +1,22 @@
 package peergos.server.space;
 
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+
 public interface UsageStore extends WriterUsageStore, UserUsageStore {
 
     void initialized();
 
+    /**
+     *
+     * @return The writers which have been reconciled in the current startup reconciliation, if it was interrupted
+     */
+    Set<PublicKeyHash> getReconciledWriters();
+
+    void addReconciledWriter(PublicKeyHash writer);
+
+    void clearReconciledWriters();
+
     void close();
 }
@@ -56,6 +56,10 @@ public class UserUsage implements Cborable {
         return errored;
     }
 
+    protected synchronized UserUsage copy() {
+        return new UserUsage(totalBytes, errored, new HashMap<>(pending));
+    }
+
     @Override
     public CborObject toCbor() {
         return new CborObject.CborLong(totalBytes);
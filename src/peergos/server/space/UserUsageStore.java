@@ -2,6 +2,8 @@ package peergos.server.space;
 
 import peergos.shared.crypto.hash.*;
 
+import java.util.*;
+
 public interface UserUsageStore extends WriterUsageStore {
 
     void addUserIfAbsent(String username);
@@ -10,6 +12,19 @@ public interface UserUsageStore extends WriterUsageStore {
 
     void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored);
 
-    void addPendingUsage(String username, PublicKeyHash writer, int size);
+    void addPendingUsage(String username, PublicKeyHash writer, long size);
+
+    /** Add pending usage to many writers at once. Writers which are unknown to this store are skipped, so they don't
+     *  stop the others being added.
+     *
+     * @param pending The size to add for each writer
+     */
+    default void addPendingUsage(Map<PublicKeyHash, Long> pending) {
+        pending.forEach((writer, size) -> {
+            WriterUsage usage = getUsage(writer);
+            if (usage != null)
+                addPendingUsage(usage.owner, writer, size);
+        });
+    }
 
 }
@@ -0,0 +1,219 @@
+package peergos.server.space;
+
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/** Keeps the usage of each user, and of each writer, in memory, so quota checks on a block put don't touch the
+ *  underlying store.
+ *
+ *  Confirmed usage and writer state are written through. Pending usage is only an estimate of writes which haven't yet
+ *  been committed to a pointer, so it is added in memory and the deltas are written behind, in a single batch, on a
+ *  short interval and on close. A crash can lose at most one interval of pending deltas, which only makes the estimate
+ *  low until the writer's next commit, when pending usage is reset, or the startup reconciliation.
+ */
+public class WriteBehindUsageStore implements UsageStore {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1_000;
+    private static final int LOCK_STRIPES = 256;
+
+    private final UsageStore target;
+    private final ConcurrentHashMap<String, UserUsage> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PublicKeyHash, WriterUsage> writers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PublicKeyHash, AtomicLong> unflushed = new ConcurrentHashMap<>();
+    // confirming usage resets the pending usage of a writer, so it can't overlap with a flush of that writer's deltas
+    private final Object[] writerLocks = new Object[LOCK_STRIPES];
+    // writers whose deltas have been taken by the flush in progress, guarded by its own monitor
+    private final Set<PublicKeyHash> flushing = new HashSet<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    public WriteBehindUsageStore(UsageStore target, long flushIntervalMillis) {
+        this.target = target;
+        for (int i=0; i < writerLocks.length; i++)
+            writerLocks[i] = new Object();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Usage flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flushSafely, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Error flushing pending usage", t);
+        }
+    }
+
+    private Object lock(PublicKeyHash writer) {
+        return writerLocks[(writer.hashCode() & Integer.MAX_VALUE) % writerLocks.length];
+    }
+
+    /** Write all the pending usage deltas to the underlying store. Each writer is only locked while its delta is
+     *  taken, and only confirmations of the writers in the batch wait for the write to the underlying store.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<PublicKeyHash, Long> batch = new HashMap<>();
+            for (Map.Entry<PublicKeyHash, AtomicLong> e : unflushed.entrySet()) {
+                PublicKeyHash writer = e.getKey();
+                synchronized (lock(writer)) {
+                    long delta = e.getValue().getAndSet(0);
+                    if (delta == 0)
+                        continue;
+                    batch.put(writer, delta);
+                    synchronized (flushing) {
+                        flushing.add(writer);
+                    }
+                }
+            }
+            try {
+                target.addPendingUsage(batch);
+            } catch (RuntimeException e) {
+                // put them back to retry on the next flush
+                batch.forEach((writer, delta) -> unflushed.computeIfAbsent(writer, w -> new AtomicLong()).addAndGet(delta));
+                throw e;
+            } finally {
+                synchronized (flushing) {
+                    flushing.clear();
+                    flushing.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean isFlushing(PublicKeyHash writer) {
+        synchronized (flushing) {
+            return flushing.contains(writer);
+        }
+    }
+
+    private void awaitFlushOf(PublicKeyHash writer) {
+        synchronized (flushing) {
+            try {
+                while (flushing.contains(writer))
+                    flushing.wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void addUserIfAbsent(String username) {
+        target.addUserIfAbsent(username);
+    }
+
+    @Override
+    public UserUsage getUsage(String username) {
+        UserUsage cached = users.get(username);
+        if (cached != null)
+            return cached;
+        UserUsage stored = target.getUsage(username);
+        // a user without any writers has no usage to cache yet
+        if (stored == null || stored.totalUsage() < 0)
+            return stored;
+        UserUsage copy = stored.copy();
+        UserUsage existing = users.putIfAbsent(username, copy);
+        return existing != null ? existing : copy;
+    }
+
+    @Override
+    public void addPendingUsage(String username, PublicKeyHash writer, long size) {
+        getUsage(username).addPending(writer, size);
+        unflushed.computeIfAbsent(writer, w -> new AtomicLong()).addAndGet(size);
+    }
+
+    @Override
+    public void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored) {
+        while (true) {
+            synchronized (lock(writer)) {
+                // a delta written after the reset would make the pending usage too high
+                if (! isFlushing(writer)) {
+                    AtomicLong delta = unflushed.get(writer);
+                    if (delta != null)
+                        delta.set(0);
+                    target.confirmUsage(username, writer, usageDelta, errored);
+                    UserUsage usage = users.get(username);
+                    if (usage != null) {
+                        usage.confirmUsage(writer, usageDelta);
+                        usage.clearPending(writer);
+                        usage.setErrored(errored);
+                    }
+                    return;
+                }
+            }
+            // don't hold the writer's lock while waiting, as the flush may need it for another writer
+            awaitFlushOf(writer);
+        }
+    }
+
+    @Override
+    public void addWriter(String owner, PublicKeyHash writer) {
+        target.addWriter(owner, writer);
+    }
+
+    @Override
+    public Set<PublicKeyHash> getAllWriters() {
+        return target.getAllWriters();
+    }
+
+    @Override
+    public WriterUsage getUsage(PublicKeyHash writer) {
+        WriterUsage cached = writers.get(writer);
+        if (cached != null)
+            return cached;
+        WriterUsage stored = target.getUsage(writer);
+        if (stored == null)
+            return null;
+        WriterUsage existing = writers.putIfAbsent(writer, stored);
+        return existing != null ? existing : stored;
+    }
+
+    @Override
+    public void updateWriterUsage(PublicKeyHash writer,
+                                  MaybeMultihash root,
+                                  Set<PublicKeyHash> removedOwnedKeys,
+                                  Set<PublicKeyHash> addedOwnedKeys,
+                                  long retainedStorage) {
+        target.updateWriterUsage(writer, root, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+        WriterUsage cached = writers.get(writer);
+        if (cached != null)
+            cached.update(root, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+    }
+
+    @Override
+    public void initialized() {
+        target.initialized();
+    }
+
+    @Override
+    public Set<PublicKeyHash> getReconciledWriters() {
+        return target.getReconciledWriters();
+    }
+
+    @Override
+    public void addReconciledWriter(PublicKeyHash writer) {
+        target.addReconciledWriter(writer);
+    }
+
+    @Override
+    public void clearReconciledWriters() {
+        target.clearReconciledWriters();
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flushSafely();
+        target.close();
+    }
+}
@@ -48,6 +48,28 @@ public interface SqlSupplier {
 
     String insertOrIgnoreCommand(String prefix, String suffix);
 
+    default String createBlockReferencesTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS gcrefs (" +
+                "hash " + getByteArrayType() + " PRIMARY KEY NOT NULL," +
+                "refs BIGINT NOT NULL" +
+                ");" +
+                "CREATE TABLE IF NOT EXISTS gcroots (" +
+                "writer " + getByteArrayType() + " PRIMARY KEY NOT NULL," +
+                "target " + getByteArrayType() +
+                ");" +
+                "CREATE TABLE IF NOT EXISTS gcqueue (" +
+                "hash " + getByteArrayType() + " PRIMARY KEY NOT NULL," +
+                "queued BIGINT NOT NULL" +
+                ");";
+    }
+
+    default String createRecursiveSizesTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS recursivesizes (" +
+                "hash " + getByteArrayType() + " PRIMARY KEY NOT NULL," +
+                "size BIGINT NOT NULL" +
+                ");";
+    }
+
     default String createUsageTablesCommand() {
         return "CREATE TABLE IF NOT EXISTS users (" +
                 "id " + getSerialIdType() + " PRIMARY KEY NOT NULL," +
@@ -80,6 +102,9 @@ public interface SqlSupplier {
                 "CREATE TABLE IF NOT EXISTS ownedkeys (" +
                 "parent_id INTEGER REFERENCES writers(id)," +
                 "owned_id INTEGER REFERENCES writers(id)" +
+                ");" +
+                "CREATE TABLE IF NOT EXISTS reconciledwriters (" +
+                "writer_id INTEGER REFERENCES writers(id) PRIMARY KEY" +
                 ");";
     }
 
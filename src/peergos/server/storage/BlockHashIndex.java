@@ -0,0 +1,266 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/** A compact set of block hashes with a concurrent mark bit per entry, used by the garbage collector.
+ *
+ *  Sha2-256 hashes of v1 cbor and raw cids, and of v0 multihashes, are stored inline as 4 longs per slot of an
+ *  open-addressing table. This is several times smaller than a collection of Cid objects and gives O(1) lookups.
+ *  Any other kind of hash falls back to a concurrent map. The size of each block can optionally be stored too, so
+ *  the sweep doesn't need to read it back from the store.
+ *
+ *  All adds must happen (from a single thread) before any concurrent marking starts.
+ */
+public class BlockHashIndex {
+    private static final int SEGMENT_BITS = 20;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_BITS;
+    private static final int WORDS_PER_HASH = 4;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static final byte EMPTY = 0, CBOR = 1, RAW = 2, V0 = 3;
+
+    private int capacity, mask;
+    private long size;
+    private long[][] keys;
+    private byte[][] kinds;
+    private int[][] sizes; // size + 1, so that 0 means unknown
+    private AtomicLongArray marks;
+    private final Map<Multihash, Boolean> other = new ConcurrentHashMap<>();
+    private final Map<Multihash, Integer> otherSizes = new ConcurrentHashMap<>();
+
+    public BlockHashIndex() {
+        this(1 << 16);
+    }
+
+    public BlockHashIndex(int initialCapacity) {
+        int cap = 64;
+        while (cap < initialCapacity && cap < MAX_CAPACITY)
+            cap <<= 1;
+        allocate(cap);
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        int segments = Math.max(1, capacity >> SEGMENT_BITS);
+        int segmentSlots = Math.min(capacity, SEGMENT_SLOTS);
+        this.keys = new long[segments][segmentSlots * WORDS_PER_HASH];
+        this.kinds = new byte[segments][segmentSlots];
+        this.sizes = new int[segments][segmentSlots];
+        this.marks = new AtomicLongArray(Math.max(1, capacity / 64));
+    }
+
+    private static byte kind(Multihash h) {
+        if (h.type != Multihash.Type.sha2_256)
+            return EMPTY;
+        if (! (h instanceof Cid))
+            return V0;
+        Cid cid = (Cid) h;
+        if (cid.version == Cid.V0)
+            return V0;
+        if (cid.version != Cid.V1)
+            return EMPTY;
+        if (cid.codec == Cid.Codec.DagCbor)
+            return CBOR;
+        if (cid.codec == Cid.Codec.Raw)
+            return RAW;
+        return EMPTY;
+    }
+
+    private static long word(byte[] hash, int index) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (hash[index * 8 + i] & 0xFF);
+        return res;
+    }
+
+    private int slotFor(long firstWord, byte kind) {
+        // sha256 output is uniformly distributed, so its first word is already a good hash
+        return (int) ((firstWord ^ (firstWord >>> 32) ^ kind) & mask);
+    }
+
+    private boolean matches(int slot, long[] words, byte kind) {
+        long[] segment = keys[slot >>> SEGMENT_BITS];
+        int offset = (slot & (SEGMENT_SLOTS - 1)) * WORDS_PER_HASH;
+        return kinds[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)] == kind &&
+                segment[offset] == words[0] &&
+                segment[offset + 1] == words[1] &&
+                segment[offset + 2] == words[2] &&
+                segment[offset + 3] == words[3];
+    }
+
+    private byte kindAt(int slot) {
+        return kinds[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)];
+    }
+
+    private static long[] words(Multihash h) {
+        byte[] hash = h.getHash();
+        return new long[] {word(hash, 0), word(hash, 1), word(hash, 2), word(hash, 3)};
+    }
+
+    /**
+     *
+     * @return the slot containing the hash, or (-slot - 1) for the empty slot where it would be inserted
+     */
+    private int find(long[] words, byte kind) {
+        int slot = slotFor(words[0], kind);
+        while (true) {
+            byte existing = kindAt(slot);
+            if (existing == EMPTY)
+                return -slot - 1;
+            if (matches(slot, words, kind))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insertAt(int slot, long[] words, byte kind, int sizePlusOne) {
+        long[] segment = keys[slot >>> SEGMENT_BITS];
+        int offset = (slot & (SEGMENT_SLOTS - 1)) * WORDS_PER_HASH;
+        System.arraycopy(words, 0, segment, offset, WORDS_PER_HASH);
+        kinds[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)] = kind;
+        sizes[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)] = sizePlusOne;
+    }
+
+    private long[] wordsAt(int slot) {
+        long[] segment = keys[slot >>> SEGMENT_BITS];
+        int offset = (slot & (SEGMENT_SLOTS - 1)) * WORDS_PER_HASH;
+        return Arrays.copyOfRange(segment, offset, offset + WORDS_PER_HASH);
+    }
+
+    private void grow() {
+        if (capacity >= MAX_CAPACITY)
+            throw new IllegalStateException("Block hash index is full!");
+        int oldCapacity = capacity;
+        long[][] oldKeys = keys;
+        byte[][] oldKinds = kinds;
+        int[][] oldSizes = sizes;
+        allocate(capacity << 1);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            byte kind = oldKinds[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)];
+            if (kind == EMPTY)
+                continue;
+            int offset = (slot & (SEGMENT_SLOTS - 1)) * WORDS_PER_HASH;
+            long[] words = Arrays.copyOfRange(oldKeys[slot >>> SEGMENT_BITS], offset, offset + WORDS_PER_HASH);
+            insertAt(-find(words, kind) - 1, words, kind, oldSizes[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)]);
+        }
+    }
+
+    /** Not thread safe. Must not be called concurrently with any other method.
+     *
+     * @param h
+     */
+    public void add(Multihash h) {
+        add(h, -1);
+    }
+
+    /** Not thread safe. Must not be called concurrently with any other method.
+     *
+     * @param h
+     * @param blockSize the size of the block, or -1 if unknown
+     */
+    public void add(Multihash h, int blockSize) {
+        byte kind = kind(h);
+        if (kind == EMPTY) {
+            if (other.putIfAbsent(h, false) == null)
+                size++;
+            if (blockSize >= 0)
+                otherSizes.put(h, blockSize);
+            return;
+        }
+        if ((size + 1) * 4 > (long) capacity * 3)
+            grow();
+        long[] words = words(h);
+        int slot = find(words, kind);
+        if (slot >= 0)
+            return;
+        insertAt(-slot - 1, words, kind, blockSize < 0 ? 0 : blockSize + 1);
+        size++;
+    }
+
+    public boolean contains(Multihash h) {
+        byte kind = kind(h);
+        if (kind == EMPTY)
+            return other.containsKey(h);
+        return find(words(h), kind) >= 0;
+    }
+
+    /** Thread safe.
+     *
+     * @param h
+     * @return true if h is in this index and was not previously marked
+     */
+    public boolean mark(Multihash h) {
+        byte kind = kind(h);
+        if (kind == EMPTY)
+            return other.replace(h, false, true);
+        int slot = find(words(h), kind);
+        if (slot < 0)
+            return false;
+        int word = slot >>> 6;
+        long bit = 1L << (slot & 63);
+        while (true) {
+            long current = marks.get(word);
+            if ((current & bit) != 0)
+                return false;
+            if (marks.compareAndSet(word, current, current | bit))
+                return true;
+        }
+    }
+
+    public boolean isMarked(Multihash h) {
+        byte kind = kind(h);
+        if (kind == EMPTY)
+            return other.getOrDefault(h, false);
+        int slot = find(words(h), kind);
+        return slot >= 0 && (marks.get(slot >>> 6) & (1L << (slot & 63))) != 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private static Multihash toMultihash(long[] words, byte kind) {
+        byte[] hash = new byte[WORDS_PER_HASH * 8];
+        for (int w = 0; w < WORDS_PER_HASH; w++)
+            for (int i = 0; i < 8; i++)
+                hash[w * 8 + i] = (byte) (words[w] >>> (56 - 8 * i));
+        if (kind == V0)
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        return new Cid(Cid.V1, kind == RAW ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash);
+    }
+
+    /** Stream every hash which has not been marked to the consumer.
+     *
+     * @param consumer
+     */
+    public void forEachUnmarked(Consumer<Multihash> consumer) {
+        forEachUnmarked((h, blockSize) -> consumer.accept(h));
+    }
+
+    /** Stream every hash which has not been marked to the consumer, with its size, or -1 if that is unknown.
+     *
+     * @param consumer
+     */
+    public void forEachUnmarked(BiConsumer<Multihash, Integer> consumer) {
+        for (int word = 0; word * 64 < capacity; word++) {
+            long marked = marks.get(word);
+            for (int slot = word * 64; slot < Math.min(capacity, (word + 1) * 64); slot++) {
+                byte kind = kindAt(slot);
+                if (kind == EMPTY || (marked & (1L << (slot & 63))) != 0)
+                    continue;
+                consumer.accept(toMultihash(wordsAt(slot), kind), sizes[slot >>> SEGMENT_BITS][slot & (SEGMENT_SLOTS - 1)] - 1);
+            }
+        }
+        other.forEach((h, marked) -> {
+            if (! marked)
+                consumer.accept(h, otherSizes.getOrDefault(h, -1));
+        });
+    }
+}
@@ -0,0 +1,107 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread safe bloom filter over block hashes.
+ *
+ *  Only the hash bytes are used (not the cid codec), so a positive for one codec is a positive for all of them.
+ *  This is always safe for garbage collection.
+ */
+public class BloomFilter {
+    private static final int MAX_BITS = Integer.MAX_VALUE - 63;
+
+    private final AtomicLongArray bits;
+    private final long nBits;
+    private final int nHashes;
+    private final AtomicLong added = new AtomicLong(0);
+
+    public BloomFilter(long nBits, int nHashes) {
+        if (nBits <= 0 || nBits > MAX_BITS)
+            throw new IllegalStateException("Invalid bloom filter size: " + nBits);
+        this.bits = new AtomicLongArray((int) ((nBits + 63) / 64));
+        this.nBits = bits.length() * 64L;
+        this.nHashes = Math.max(1, nHashes);
+    }
+
+    /**
+     *
+     * @param expectedItems
+     * @param falsePositiveRate
+     * @return a bloom filter with the optimal number of bits and hashes for the given number of items
+     */
+    public static BloomFilter build(long expectedItems, double falsePositiveRate) {
+        long n = Math.max(1, expectedItems);
+        double ln2 = Math.log(2);
+        long nBits = Math.min(MAX_BITS, Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2))));
+        int nHashes = (int) Math.round((double) nBits / n * ln2);
+        return new BloomFilter(nBits, nHashes);
+    }
+
+    private static long word(byte[] hash, int offset) {
+        long res = 0;
+        for (int i = 0; i < 8; i++)
+            res = (res << 8) | (offset + i < hash.length ? hash[offset + i] & 0xFF : 0);
+        return res;
+    }
+
+    private static long[] baseHashes(Multihash h) {
+        byte[] hash = h.getHash();
+        if (h.type != Multihash.Type.sha2_256)
+            hash = RAMStorage.hash(h.toBytes());
+        // sha256 output is already uniformly distributed, so use it directly for double hashing
+        return new long[] {word(hash, 0), word(hash, 8) | 1};
+    }
+
+    private long index(long[] base, int i) {
+        return Long.remainderUnsigned(base[0] + i * base[1], nBits);
+    }
+
+    public void add(Multihash h) {
+        long[] base = baseHashes(h);
+        boolean changed = false;
+        for (int i = 0; i < nHashes; i++) {
+            long index = index(base, i);
+            int word = (int) (index >>> 6);
+            long bit = 1L << (index & 63);
+            while (true) {
+                long current = bits.get(word);
+                if ((current & bit) != 0)
+                    break;
+                if (bits.compareAndSet(word, current, current | bit)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed)
+            added.incrementAndGet();
+    }
+
+    public boolean mightContain(Multihash h) {
+        long[] base = baseHashes(h);
+        for (int i = 0; i < nHashes; i++) {
+            long index = index(base, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public long sizeInBytes() {
+        return nBits / 8;
+    }
+
+    /**
+     *
+     * @return the number of distinct items added (duplicates which were already fully present aren't counted)
+     */
+    public long itemCount() {
+        return added.get();
+    }
+
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) nHashes * itemCount() / nBits), nHashes);
+    }
+}
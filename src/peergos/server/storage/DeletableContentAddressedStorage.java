@@ -5,6 +5,7 @@ import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.stream.*;
@@ -17,10 +18,55 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
 
     Stream<Multihash> getAllBlockHashes();
 
+    /**
+     *
+     * @return every block hash with its size, or -1 where the size isn't known without reading the block
+     */
+    default Stream<Pair<Multihash, Integer>> getAllBlockHashesAndSizes() {
+        return getAllBlockHashes().map(h -> new Pair<>(h, -1));
+    }
+
     void delete(Multihash hash);
 
+    /** Delete a batch of blocks, in as few requests as the store allows.
+     *
+     * @param hashes
+     * @return the blocks which were deleted
+     */
+    default List<Multihash> bulkDelete(List<Multihash> hashes) {
+        for (Multihash hash : hashes)
+            delete(hash);
+        return hashes;
+    }
+
     List<Multihash> getOpenTransactionBlocks();
 
+    /** Reclaim the space used by deleted blocks, for stores where a delete doesn't do so itself. This is called at
+     *  the end of a garbage collection.
+     *
+     * @return the number of bytes reclaimed
+     */
+    default long compact() {
+        return 0;
+    }
+
+    /**
+     *
+     * @return whether startWriteEpoch is implemented, which is required by the concurrent and incremental GCs
+     */
+    default boolean supportsWriteEpochs() {
+        return false;
+    }
+
+    /** Record every block written from now until the returned epoch is closed. This allows a garbage collection to
+     *  run concurrently with writes.
+     *
+     * @return the new epoch
+     */
+    default WriteEpochs.Epoch startWriteEpoch() {
+        throw new IllegalStateException("Unimplemented!");
+    }
+
     class HTTP extends ContentAddressedStorage.HTTP implements DeletableContentAddressedStorage {
 
         private final HttpPoster poster;
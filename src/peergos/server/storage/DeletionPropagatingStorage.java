@@ -0,0 +1,82 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Tells listeners which blocks have been deleted from a block store, so that caches of it can drop them.
+ */
+public class DeletionPropagatingStorage extends DelegatingStorage implements DeletableContentAddressedStorage {
+
+    private final DeletableContentAddressedStorage target;
+    private final List<Consumer<List<Multihash>>> listeners = new CopyOnWriteArrayList<>();
+
+    public DeletionPropagatingStorage(DeletableContentAddressedStorage target) {
+        super(target);
+        this.target = target;
+    }
+
+    public void addListener(Consumer<List<Multihash>> listener) {
+        listeners.add(listener);
+    }
+
+    private void deleted(List<Multihash> hashes) {
+        if (hashes.isEmpty())
+            return;
+        for (Consumer<List<Multihash>> listener : listeners)
+            listener.accept(hashes);
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public Stream<Multihash> getAllBlockHashes() {
+        return target.getAllBlockHashes();
+    }
+
+    @Override
+    public Stream<Pair<Multihash, Integer>> getAllBlockHashesAndSizes() {
+        return target.getAllBlockHashesAndSizes();
+    }
+
+    @Override
+    public void delete(Multihash hash) {
+        target.delete(hash);
+        deleted(Collections.singletonList(hash));
+    }
+
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        List<Multihash> res = target.bulkDelete(hashes);
+        deleted(res);
+        return res;
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return target.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public long compact() {
+        return target.compact();
+    }
+
+    @Override
+    public boolean supportsWriteEpochs() {
+        return target.supportsWriteEpochs();
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return target.startWriteEpoch();
+    }
+}
@@ -0,0 +1,57 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** A block store which keeps blocks in local files, and can serve them directly from a file channel, without
+ *  copying them onto the heap.
+ */
+public interface FileBlockSource {
+
+    /**
+     *
+     * @param hash
+     * @return the region of a file containing the block, or empty if the block isn't present. The caller must close it.
+     * @throws IOException
+     */
+    Optional<BlockRegion> openBlock(Multihash hash) throws IOException;
+
+    class BlockRegion implements Closeable {
+        private final FileChannel channel;
+        private final long offset;
+        public final long length;
+
+        public BlockRegion(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Write part of the block to the target.
+         *
+         * @param start the index within the block to start at
+         * @param count the number of bytes to write
+         * @param target
+         * @throws IOException
+         */
+        public void transferTo(long start, long count, WritableByteChannel target) throws IOException {
+            if (start < 0 || count < 0 || start + count > length)
+                throw new IllegalArgumentException("Invalid range " + start + "+" + count + " of block of size " + length);
+            long done = 0;
+            while (done < count) {
+                long written = channel.transferTo(offset + start + done, count - done, target);
+                if (written <= 0)
+                    throw new EOFException("Block file truncated at " + (start + done));
+                done += written;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
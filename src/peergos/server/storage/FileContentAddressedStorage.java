@@ -9,6 +9,7 @@ import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.nio.*;
 import java.nio.channels.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
@@ -21,16 +22,38 @@ import java.util.stream.*;
 /** A local directory implementation of ContentAddressedStorage. Only used for testing.
  *
  */
-public class FileContentAddressedStorage implements DeletableContentAddressedStorage {
+public class FileContentAddressedStorage implements DeletableContentAddressedStorage, FileBlockSource {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
+    public static final int DEFAULT_WRITE_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
     private final Path root;
     private final TransactionStore transactions;
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+    private final ExecutorService writers;
+    private final boolean fsync;
+    private final boolean posix;
+    // shard directories which we've already created and made writable
+    private final Set<Path> knownDirectories = ConcurrentHashMap.newKeySet();
 
-    public FileContentAddressedStorage(Path root, TransactionStore transactions) {
+    /**
+     *
+     * @param root
+     * @param transactions
+     * @param writeParallelism the maximum number of blocks written concurrently in a multi block put
+     * @param fsync whether to sync blocks, and their directory entries, to disk before a put completes. Syncs for
+     *              a multi block put are grouped so each directory is only synced once.
+     */
+    public FileContentAddressedStorage(Path root, TransactionStore transactions, int writeParallelism, boolean fsync) {
         this.root = root;
         this.transactions = transactions;
+        this.fsync = fsync;
+        this.posix = root.getFileSystem().supportedFileAttributeViews().contains("posix");
+        this.writers = Executors.newFixedThreadPool(writeParallelism, r -> {
+            Thread t = new Thread(r, "Block writer");
+            t.setDaemon(true);
+            return t;
+        });
         File rootDir = root.toFile();
         if (!rootDir.exists()) {
             final boolean mkdirs = root.toFile().mkdirs();
@@ -41,6 +64,10 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
             throw new IllegalStateException("File store path must be a directory! " + root);
     }
 
+    public FileContentAddressedStorage(Path root, TransactionStore transactions) {
+        this(root, transactions, DEFAULT_WRITE_PARALLELISM, false);
+    }
+
     @Override
     public ContentAddressedStorage directToOrigin() {
         return this;
@@ -72,6 +99,16 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         return transactions.getOpenTransactionBlocks();
     }
 
+    @Override
+    public boolean supportsWriteEpochs() {
+        return true;
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return writeEpochs.start();
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
                                                   PublicKeyHash writer,
@@ -97,9 +134,38 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        if (blocks.size() == 1)
+            return Futures.of(Collections.singletonList(put(blocks.get(0), isRaw, tid, owner)));
+        // hash in parallel, record all the blocks in the transaction, then write with bounded parallelism
+        List<Cid> cids = blocks.parallelStream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        transactions.addBlocks(new ArrayList<>(cids), tid, owner);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            Cid cid = cids.get(i);
+            byte[] block = blocks.get(i);
+            writes.add(writers.submit(() -> write(cid, block)));
+        }
+        try {
+            for (Future<?> write : writes)
+                write.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        if (fsync)
+            cids.stream()
+                    .map(c -> root.resolve(getFilePath(c)).getParent())
+                    .distinct()
+                    .forEach(this::syncDirectory);
+        return Futures.of(new ArrayList<>(cids));
+    }
+
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        return new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                Multihash.Type.sha2_256, RAMStorage.hash(data));
     }
 
     @Override
@@ -161,55 +227,96 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         }
     }
 
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash hash) throws IOException {
+        if (hash.isIdentity())
+            return Optional.empty();
+        try {
+            FileChannel channel = FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ);
+            return Optional.of(new BlockRegion(channel, 0, channel.size()));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        write(cid, data);
+        if (fsync)
+            syncDirectory(root.resolve(getFilePath(cid)).getParent());
+        return cid;
+    }
+
+    /** The block must already be in an open transaction. If fsync is enabled the caller must sync the parent directory.
+     */
+    private void write(Cid cid, byte[] data) {
+        Path target = root.resolve(getFilePath(cid));
+        Path parent = target.getParent();
+        ensureDirectory(parent);
+        writeEpochs.write(cid, () -> {
+            // blocks are immutable, so if it is already here there is nothing to do
+            if (Files.exists(target))
+                return true;
+            try {
+                writeFile(data, target);
+                return true;
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        });
+    }
+
+    private void ensureDirectory(Path dir) {
+        if (knownDirectories.contains(dir))
+            return;
+        File dirFile = dir.toFile();
+        if (! dirFile.exists() && ! dirFile.mkdirs() && ! dirFile.isDirectory())
+            throw new IllegalStateException("Couldn't create directory: " + dir);
+        for (Path someParent = dir; !someParent.equals(root); someParent = someParent.getParent()) {
+            File someParentFile = someParent.toFile();
+            if (! someParentFile.canWrite()) {
+                final boolean b = someParentFile.setWritable(true, false);
+                if (!b)
+                    throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + dir.toString() + " writable");
+            }
+        }
+        knownDirectories.add(dir);
+    }
+
+    /** Write to a uniquely named temporary file and then atomically move it into place. Concurrent writers of the
+     *  same block have identical contents, so it doesn't matter which move wins.
+     */
+    private void writeFile(byte[] data, Path target) throws IOException {
+        Path tmp = root.resolve("tmp" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+        Set<OpenOption> options = new HashSet<>(Arrays.asList(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        FileAttribute<?>[] attrs = posix ?
+                new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("r--r--r--"))} :
+                new FileAttribute<?>[0];
         try {
-            Cid cid = new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
-                    Multihash.Type.sha2_256, RAMStorage.hash(data));
-            Path filePath = getFilePath(cid);
-            Path target = root.resolve(filePath);
-            Path parent = target.getParent();
-            File parentDir = parent.toFile();
-
-            if (! parentDir.exists() && ! parentDir.mkdirs())
-                throw new IllegalStateException("Couldn't create directory: " + parent);
-            for (Path someParent = parent; !someParent.equals(root); someParent = someParent.getParent()) {
-                File someParentFile = someParent.toFile();
-                if (! someParentFile.canWrite()) {
-                    final boolean b = someParentFile.setWritable(true, false);
-                    if (!b)
-                        throw new IllegalStateException("Could not make " + someParent.toString() + ", ancestor of " + parentDir.toString() + " writable");
-                }
+            try (FileChannel out = FileChannel.open(tmp, options, attrs)) {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining())
+                    out.write(buf);
+                if (fsync)
+                    out.force(true);
             }
-            transactions.addBlock(cid, tid, owner);
-            File targetFile = target.toFile();
-            Path tmp = Files.createTempFile(root, "tmp", "");
-            File tmpFile = tmp.toFile();
-            Path lockPath = parent.resolve("lock." + filePath.toFile().getName());
-            try (RandomAccessFile rw = new RandomAccessFile(lockPath.toFile(), "rw");
-                 FileLock lock = rw.getChannel().lock();
-                 DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
-
-                dout.write(data, 0, data.length);
-                boolean setWritableSuccess = tmpFile.setWritable(false, false);
-                boolean setReadableSuccess = tmpFile.setReadable(true, false);
-                boolean renameSuccess = tmpFile.renameTo(targetFile);
-                boolean deleteSuccess = lockPath.toFile().delete();
-                boolean lockExists = lockPath.toFile().exists();
-                if (!setWritableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to writable");
-                if (!setReadableSuccess)
-                    throw new IllegalStateException("Error setting " + tmpFile.getName() + " to readable");
-                if (!renameSuccess)
-                    throw new IllegalStateException("Error renaming " + tmpFile.getName() + " to " + targetFile.getName());
-                if (!deleteSuccess && lockExists)
-                    throw new IllegalStateException("Error deleting " + lockPath.toFile().getName());
-            } finally {
-                if (tmpFile.exists())
-                    tmpFile.delete();
+            if (! posix) {
+                tmp.toFile().setWritable(false, false);
+                tmp.toFile().setReadable(true, false);
             }
-            return cid;
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
         } catch (IOException e) {
-            throw new RuntimeException(e.getMessage(), e);
+            // not all platforms support syncing a directory
+            LOG.log(Level.FINE, "Couldn't sync directory " + dir, e);
         }
     }
 
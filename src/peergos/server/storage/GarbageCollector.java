@@ -1,16 +1,20 @@
 package peergos.server.storage;
 
+import io.prometheus.client.*;
 import peergos.server.corenode.*;
 import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.*;
 import java.util.stream.*;
@@ -18,16 +22,68 @@ import java.util.stream.*;
 public class GarbageCollector {
     private static final Logger LOG = Logger.getGlobal();
 
+    public static final int DEFAULT_MARK_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    public static final int DEFAULT_DELETE_PARALLELISM = 4;
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final long MIN_EXPECTED_REACHABLE = 1_000_000;
+
+    private static final Gauge bloomFilterBytes = Gauge.build()
+            .name("gc_bloom_filter_bytes")
+            .help("Size of the bloom filter of reachable blocks in the last concurrent GC")
+            .register();
+    private static final Gauge bloomFalsePositiveRate = Gauge.build()
+            .name("gc_bloom_false_positive_rate")
+            .help("Expected false positive rate of the bloom filter of reachable blocks in the last concurrent GC")
+            .register();
+    private static final Gauge retainedBlocksPerSecond = Gauge.build()
+            .name("gc_blocks_retained_per_second")
+            .help("Rate at which blocks were retained during the sweep of the last concurrent GC")
+            .register();
+
     private final DeletableContentAddressedStorage storage;
     private final JdbcIpnsAndSocial pointers;
+    private final int markParallelism, deleteParallelism;
+    private final boolean concurrent;
+    private final double falsePositiveRate;
+    private long lastReachableCount = MIN_EXPECTED_REACHABLE;
 
-    public GarbageCollector(DeletableContentAddressedStorage storage, JdbcIpnsAndSocial pointers) {
+    /**
+     *
+     * @param storage
+     * @param pointers
+     * @param markParallelism the maximum number of concurrent block reads while marking
+     * @param deleteParallelism the maximum number of concurrent batch deletes while sweeping
+     * @param concurrent whether to use a bloom filter based GC which can run concurrently with writes
+     * @param falsePositiveRate the target false positive rate of the bloom filter in concurrent mode
+     */
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            int markParallelism,
+                            int deleteParallelism,
+                            boolean concurrent,
+                            double falsePositiveRate) {
         this.storage = storage;
         this.pointers = pointers;
+        this.markParallelism = markParallelism;
+        this.deleteParallelism = deleteParallelism;
+        this.concurrent = concurrent;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage, JdbcIpnsAndSocial pointers) {
+        this(storage, pointers, DEFAULT_MARK_PARALLELISM, DEFAULT_DELETE_PARALLELISM, false, DEFAULT_FALSE_POSITIVE_RATE);
     }
 
     public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        collect(storage, pointers, snapshotSaver);
+        if (! concurrent) {
+            collect(storage, pointers, markParallelism, deleteParallelism, snapshotSaver);
+            return;
+        }
+        // size the filter for some growth since the last run, which counted exactly
+        long expectedReachable = Math.max(MIN_EXPECTED_REACHABLE, lastReachableCount * 5 / 4);
+        lastReachableCount = collectConcurrently(storage, pointers, markParallelism, deleteParallelism,
+                expectedReachable, falsePositiveRate, snapshotSaver);
     }
 
     public void start(long periodMillis, Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
@@ -43,23 +99,33 @@ public class GarbageCollector {
         }, "Garbage Collector").start();
     }
 
+    public static void collect(DeletableContentAddressedStorage storage,
+                               JdbcIpnsAndSocial pointers,
+                               Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        collect(storage, pointers, DEFAULT_MARK_PARALLELISM, DEFAULT_DELETE_PARALLELISM, snapshotSaver);
+    }
+
     /** The result of this method is a snapshot of the mutable pointers that is consistent with the blocks store
      * after GC has completed (saved to a file which can be independently backed up).
      *
      * @param storage
      * @param pointers
+     * @param markParallelism the maximum number of concurrent block reads while marking
+     * @param deleteParallelism the maximum number of concurrent batch deletes while sweeping
      * @param snapshotSaver
      * @return
      */
     public static void collect(DeletableContentAddressedStorage storage,
                                JdbcIpnsAndSocial pointers,
+                               int markParallelism,
+                               int deleteParallelism,
                                Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
         System.out.println("Starting blockstore garbage collection on node " + storage.id().join() + "...");
-        // TODO: do this more efficiently with a bloom filter, and actual streaming and multithreading
         long t0 = System.nanoTime();
-        List<Multihash> present = storage.getAllBlockHashes().collect(Collectors.toList());
+        BlockHashIndex present = new BlockHashIndex();
+        storage.getAllBlockHashesAndSizes().forEach(p -> present.add(p.left, p.right));
         long t1 = System.nanoTime();
-        System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s");
+        System.out.println("Listing block store took " + (t1-t0)/1_000_000_000 + "s, found " + present.size() + " blocks");
 
         List<Multihash> pending = storage.getOpenTransactionBlocks();
         long t2 = System.nanoTime();
@@ -70,52 +136,301 @@ public class GarbageCollector {
         long t3 = System.nanoTime();
         System.out.println("Listing pointers took " + (t3-t2)/1_000_000_000 + "s");
 
-        BitSet reachable = new BitSet(present.size());
-        for (PublicKeyHash writerHash : allPointers.keySet()) {
-            byte[] signedRawCas = allPointers.get(writerHash);
-            PublicSigningKey writer = storage.getSigningKey(writerHash).join().get();
-            byte[] bothHashes = writer.unsignMessage(signedRawCas);
-            HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
-            MaybeMultihash updated = cas.updated;
-            if (updated.isPresent())
-                markReachable(storage, updated.get(), present, reachable);
-        }
-        for (Multihash additional : pending) {
-            int index = present.indexOf(additional);
-            if (index >= 0)
-                reachable.set(index);
-        }
+        // Reachable blocks which aren't in our store still need de-duplicating
+        Set<Multihash> visitedAbsent = ConcurrentHashMap.newKeySet();
+        markReachable(storage, allPointers,
+                h -> present.contains(h) ? present.mark(h) : visitedAbsent.add(h),
+                markParallelism);
+        for (Multihash additional : pending)
+            present.mark(additional);
         long t4 = System.nanoTime();
         System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
 
         // Save pointers snapshot
         snapshotSaver.apply(allPointers.entrySet().stream()).join();
 
-        long deletedBlocks = 0;
-        long deletedSize = 0;
-        for (int i = reachable.nextClearBit(0); i >= 0 && i < present.size(); i = reachable.nextClearBit(i + 1)) {
-            Multihash hash = present.get(i);
+        BatchDeleter deleter = new BatchDeleter(storage, deleteParallelism, storage::bulkDelete);
+        try {
+            present.forEachUnmarked(deleter::add);
+        } finally {
+            deleter.close();
+        }
+        long t5 = System.nanoTime();
+        System.out.println("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
+        long reclaimed = storage.compact();
+        long t6 = System.nanoTime();
+        if (reclaimed > 0)
+            System.out.println("Compaction reclaimed " + reclaimed + " bytes in " + (t6-t5)/1_000_000_000 + "s");
+        System.out.println("GC complete. Freed " + deleter.deletedBlocks() + " blocks totalling " + deleter.deletedSize() + " bytes in " + (t6-t0)/1_000_000_000 + "s");
+    }
+
+    /** A garbage collection that can run concurrently with writes, and uses bounded memory for the sweep.
+     *
+     *  A bloom filter of all reachable blocks is built from the pointer roots, then the block store listing is
+     *  streamed through it. Blocks which are positive in the filter are kept. Negatives are only deleted if they were
+     *  not in an open transaction at the start, and were not written during the collection.
+     *
+     * @return the number of reachable blocks
+     */
+    public static long collectConcurrently(DeletableContentAddressedStorage storage,
+                                           JdbcIpnsAndSocial pointers,
+                                           int markParallelism,
+                                           int deleteParallelism,
+                                           long expectedReachable,
+                                           double falsePositiveRate,
+                                           Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        System.out.println("Starting concurrent blockstore garbage collection on node " + storage.id().join() + "...");
+        long t0 = System.nanoTime();
+        try (WriteEpochs.Epoch epoch = storage.startWriteEpoch()) {
+            // The pending blocks must be listed after starting the epoch and before listing pointers for correctness
+            Set<Multihash> pending = new HashSet<>(storage.getOpenTransactionBlocks());
+            Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+            long t1 = System.nanoTime();
+            System.out.println("Listing pending blocks and pointers took " + (t1-t0)/1_000_000_000 + "s");
+
+            BloomFilter filter = BloomFilter.build(expectedReachable, falsePositiveRate);
+            long reachableCount = markInto(filter, storage, allPointers, markParallelism);
+            if (reachableCount > expectedReachable) {
+                // An undersized filter saturates and retains almost everything, so mark again with the exact count
+                System.out.println("Found " + reachableCount + " reachable blocks, more than the expected "
+                        + expectedReachable + ", marking again with a larger bloom filter");
+                filter = BloomFilter.build(reachableCount * 5 / 4, falsePositiveRate);
+                reachableCount = markInto(filter, storage, allPointers, markParallelism);
+            }
+            BloomFilter reachable = filter;
+            long t2 = System.nanoTime();
+            bloomFilterBytes.set(reachable.sizeInBytes());
+            bloomFalsePositiveRate.set(reachable.expectedFalsePositiveRate());
+            System.out.println("Marking " + reachableCount + " reachable blocks took " + (t2-t1)/1_000_000_000
+                    + "s, bloom filter size: " + reachable.sizeInBytes() + ", expected false positive rate: "
+                    + reachable.expectedFalsePositiveRate());
+
+            // Save pointers snapshot
+            snapshotSaver.apply(allPointers.entrySet().stream()).join();
+
+            long[] retainedBlocks = new long[1];
+            BatchDeleter deleter = new BatchDeleter(storage, deleteParallelism,
+                    batch -> epoch.deleteIfNotWritten(batch, storage::bulkDelete));
+            try {
+                storage.getAllBlockHashesAndSizes().forEach(p -> {
+                    if (reachable.mightContain(p.left) || pending.contains(p.left))
+                        retainedBlocks[0]++;
+                    else
+                        deleter.add(p.left, p.right);
+                });
+            } finally {
+                deleter.close();
+            }
+            long t3 = System.nanoTime();
+            double sweepSeconds = Math.max(1, t3 - t2) / 1_000_000_000.0;
+            retainedBlocksPerSecond.set(retainedBlocks[0] / sweepSeconds);
+            System.out.println("Sweep took " + (t3-t2)/1_000_000_000 + "s, retained " + retainedBlocks[0] + " blocks, "
+                    + epoch.writeCount() + " blocks were written concurrently");
+            long reclaimed = storage.compact();
+            long t4 = System.nanoTime();
+            if (reclaimed > 0)
+                System.out.println("Compaction reclaimed " + reclaimed + " bytes in " + (t4-t3)/1_000_000_000 + "s");
+            System.out.println("GC complete. Freed " + deleter.deletedBlocks() + " blocks totalling " + deleter.deletedSize() + " bytes in " + (t4-t0)/1_000_000_000 + "s");
+            return reachableCount;
+        }
+    }
+
+    /** Add every block reachable from the pointers to a bloom filter
+     *
+     * @return the number of reachable blocks, where a raw block is counted once for each link to it
+     */
+    private static long markInto(BloomFilter reachable,
+                                 ContentAddressedStorage storage,
+                                 Map<PublicKeyHash, byte[]> allPointers,
+                                 int markParallelism) {
+        // Raw blocks have no links, so we only need to de-duplicate traversal of cbor blocks exactly
+        Set<Multihash> visitedNodes = ConcurrentHashMap.newKeySet();
+        AtomicLong count = new AtomicLong(0);
+        markReachable(storage, allPointers, h -> {
+            reachable.add(h);
+            boolean isRaw = h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw;
+            boolean traverse = ! isRaw && visitedNodes.add(h);
+            if (isRaw || traverse)
+                count.incrementAndGet();
+            return traverse;
+        }, markParallelism);
+        return count.get();
+    }
+
+    /** Mark every block reachable from any of the pointers, walking the writers in parallel.
+     *
+     * @param visit called for every reachable block, returns whether this is the first visit, and thus whether
+     *              to traverse its links
+     */
+    public static void markReachable(ContentAddressedStorage storage,
+                                     Map<PublicKeyHash, byte[]> allPointers,
+                                     Predicate<Multihash> visit,
+                                     int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<MarkTask> roots = allPointers.entrySet().stream()
+                    .map(e -> new MarkTask(storage, getRoot(storage, e.getKey(), e.getValue()), visit))
+                    .collect(Collectors.toList());
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static MaybeMultihash getRoot(ContentAddressedStorage storage, PublicKeyHash writerHash, byte[] signedRawCas) {
+        PublicSigningKey writer = storage.getSigningKey(writerHash).join().get();
+        byte[] bothHashes = writer.unsignMessage(signedRawCas);
+        HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
+        return cas.updated;
+    }
+
+    /** Groups dead blocks into batches, and deletes a bounded number of batches concurrently.
+     */
+    private static class BatchDeleter {
+        private final DeletableContentAddressedStorage storage;
+        private final Function<List<Multihash>, List<Multihash>> delete;
+        private final ExecutorService pool;
+        private final Semaphore inFlight;
+        private final int parallelism;
+        private final AtomicLong deletedBlocks = new AtomicLong(0), deletedSize = new AtomicLong(0);
+        private List<Pair<Multihash, Integer>> batch = new ArrayList<>();
+
+        /**
+         *
+         * @param storage
+         * @param parallelism
+         * @param delete deletes a batch, and returns the blocks which were actually deleted
+         */
+        public BatchDeleter(DeletableContentAddressedStorage storage,
+                            int parallelism,
+                            Function<List<Multihash>, List<Multihash>> delete) {
+            this.storage = storage;
+            this.delete = delete;
+            this.parallelism = Math.max(1, parallelism);
+            this.pool = Executors.newFixedThreadPool(this.parallelism);
+            this.inFlight = new Semaphore(this.parallelism);
+        }
+
+        /**
+         *
+         * @param hash
+         * @param size the size of the block, or -1 if unknown
+         */
+        public void add(Multihash hash, int size) {
+            batch.add(new Pair<>(hash, size));
+            if (batch.size() >= DELETE_BATCH_SIZE)
+                flush();
+        }
+
+        private void flush() {
+            if (batch.isEmpty())
+                return;
+            List<Pair<Multihash, Integer>> toDelete = batch;
+            batch = new ArrayList<>();
+            inFlight.acquireUninterruptibly();
+            pool.submit(() -> {
+                try {
+                    Map<Multihash, Integer> sizes = new HashMap<>();
+                    for (Pair<Multihash, Integer> p : toDelete)
+                        sizes.put(p.left, p.right >= 0 ? p.right : getSize(p.left));
+                    List<Multihash> hashes = toDelete.stream()
+                            .map(p -> p.left)
+                            .collect(Collectors.toList());
+                    List<Multihash> deleted = deleteEach(hashes);
+                    deletedBlocks.addAndGet(deleted.size());
+                    deletedSize.addAndGet(deleted.stream().mapToLong(sizes::get).sum());
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "GC Unable to delete batch of " + toDelete.size() + " blocks during sweep, ignoring and continuing.", t);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        /** The size is only for reporting, so a failed lookup shouldn't stop the block being deleted
+         */
+        private int getSize(Multihash h) {
             try {
-                int size = storage.getSize(hash).join().get();
-                deletedBlocks++;
-                deletedSize += size;
-                storage.delete(hash);
+                return storage.getSize(h).join().orElse(0);
             } catch (Exception e) {
-                LOG.info("GC Unable to read " + hash + " during delete phase, ignoring block and continuing.");
+                LOG.log(Level.WARNING, "GC Unable to get size of block " + h, e);
+                return 0;
+            }
+        }
+
+        /** Delete a batch, falling back to deleting one block at a time if the batch fails, so that one bad block
+         *  doesn't stop the rest of the batch being deleted
+         *
+         * @return the blocks which were deleted
+         */
+        private List<Multihash> deleteEach(List<Multihash> hashes) {
+            try {
+                return delete.apply(hashes);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "GC Unable to delete batch of " + hashes.size() + " blocks, deleting them individually", e);
+            }
+            List<Multihash> deleted = new ArrayList<>();
+            for (Multihash h : hashes) {
+                try {
+                    deleted.addAll(delete.apply(Collections.singletonList(h)));
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, "GC Unable to delete block " + h + " during sweep, ignoring and continuing.", e);
+                }
+            }
+            return deleted;
+        }
+
+        public long deletedBlocks() {
+            return deletedBlocks.get();
+        }
+
+        public long deletedSize() {
+            return deletedSize.get();
+        }
+
+        /** Delete any remaining blocks and wait for all deletes to finish
+         */
+        public void close() {
+            try {
+                flush();
+                inFlight.acquireUninterruptibly(parallelism);
+                inFlight.release(parallelism);
+            } finally {
+                pool.shutdown();
             }
         }
-        long t5 = System.nanoTime();
-        System.out.println("Deleting blocks took " + (t5-t4)/1_000_000_000 + "s");
-        System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t5-t0)/1_000_000_000 + "s");
     }
 
-    private static void markReachable(ContentAddressedStorage storage, Multihash root, List<Multihash> present, BitSet reachable) {
-        int index = present.indexOf(root);
-        if (index >= 0)
-            reachable.set(index);
-        List<Multihash> links = storage.getLinks(root).join();
-        for (Multihash link : links) {
-            markReachable(storage, link, present, reachable);
+    private static class MarkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ContentAddressedStorage storage;
+        private final MaybeMultihash block;
+        private final Predicate<Multihash> visit;
+
+        public MarkTask(ContentAddressedStorage storage,
+                        MaybeMultihash block,
+                        Predicate<Multihash> visit) {
+            this.storage = storage;
+            this.block = block;
+            this.visit = visit;
+        }
+
+        @Override
+        protected void compute() {
+            if (! block.isPresent())
+                return;
+            Multihash hash = block.get();
+            if (! visit.test(hash))
+                return;
+            List<Multihash> links = storage.getLinks(hash).join();
+            invokeAll(links.stream()
+                    .map(link -> new MarkTask(storage, MaybeMultihash.of(link), visit))
+                    .collect(Collectors.toList()));
         }
     }
 }
@@ -0,0 +1,250 @@
+package peergos.server.storage;
+
+import peergos.server.corenode.*;
+import peergos.server.mutable.*;
+import peergos.server.util.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A garbage collector whose cost is proportional to the churn in the block store rather than its total size.
+ *
+ *  It keeps a persistent reference count for every block reachable from a writer's root. When a pointer changes,
+ *  the new root is counted before the old root is discounted. Only blocks which are new to the live set, or have
+ *  left it, are ever traversed. Blocks whose count drops to zero are queued for deletion, and are deleted by a
+ *  periodic sweep once a grace period has passed, if they are still unreferenced, not in an open transaction and not
+ *  written again while the sweep is running. Queueing a block again restarts its grace period. A block which is
+ *  referenced again by a commit without being written, after its grace period, is only safe if that commit is counted
+ *  before the sweep checks the block, so the grace period should be longer than any client keeps a block it is going
+ *  to reference again without writing it.
+ *
+ *  All counting and sweeping happens on a single thread. Blocks which are written but never committed to a
+ *  pointer are not tracked, and are left for the full GarbageCollector.
+ */
+public class IncrementalGarbageCollector {
+    private static final Logger LOG = Logging.LOG();
+    private static final int SWEEP_BATCH_SIZE = 1000;
+
+    private final DeletableContentAddressedStorage storage;
+    private final MutablePointers mutable;
+    private final JdbcBlockReferences references;
+    private final long gracePeriodMillis;
+    private final Set<PublicKeyHash> queuedWriters = ConcurrentHashMap.newKeySet();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Incremental GC");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean initialised = false;
+
+    public IncrementalGarbageCollector(DeletableContentAddressedStorage storage,
+                                       MutablePointers mutable,
+                                       JdbcBlockReferences references,
+                                       long gracePeriodMillis) {
+        this.storage = storage;
+        this.mutable = mutable;
+        this.references = references;
+        this.gracePeriodMillis = gracePeriodMillis;
+    }
+
+    public void accept(MutableEvent event) {
+        if (queuedWriters.add(event.writer))
+            worker.submit(() -> {
+                queuedWriters.remove(event.writer);
+                updateWriter(event.writer);
+            });
+    }
+
+    /** Count the current roots of all writers, catching up with any changes that happened while we were not running.
+     *  This must complete before any sweep, and is a full traversal the first time it runs against a store.
+     *
+     * @param pointers
+     */
+    public void initialise(JdbcIpnsAndSocial pointers) {
+        run(() -> {
+            Set<PublicKeyHash> writers = pointers.getAllEntries().keySet();
+            LOG.info("Incremental GC: checking roots of " + writers.size() + " writers");
+            for (PublicKeyHash writer : writers)
+                updateWriter(writer);
+            initialised = true;
+            LOG.info("Incremental GC: initialised");
+            return true;
+        });
+    }
+
+    public void start(JdbcIpnsAndSocial pointers, long periodMillis) {
+        new Thread(() -> {
+            initialise(pointers);
+            while (true) {
+                try {
+                    Thread.sleep(periodMillis);
+                    sweep();
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, e, e::getMessage);
+                }
+            }
+        }, "Incremental GC sweeper").start();
+    }
+
+    private <T> T run(Callable<T> task) {
+        try {
+            return worker.submit(task).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void updateWriter(PublicKeyHash writer) {
+        try {
+            MaybeMultihash current = mutable.getPointerTarget(writer, writer, storage).join();
+            long changed = references.transaction(refs -> {
+                MaybeMultihash counted = refs.getCountedRoot(writer).orElse(MaybeMultihash.empty());
+                if (counted.equals(current))
+                    return 0L;
+                long queued = 0;
+                // count the new root before discounting the old, so shared subtrees are never traversed
+                if (current.isPresent())
+                    changeReferences(refs, current.get(), 1, 0);
+                if (counted.isPresent())
+                    queued = changeReferences(refs, counted.get(), -1, System.currentTimeMillis());
+                refs.setCountedRoot(writer, current);
+                return queued;
+            });
+            if (changed > 0)
+                LOG.fine("Incremental GC: queued " + changed + " blocks from writer " + writer);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Incremental GC: error updating references for writer " + writer, e);
+        }
+    }
+
+    /** Apply the delta to the reference count of the root, and recursively to the links of any block which has
+     *  just entered or left the live set.
+     *
+     * @return the number of blocks queued for deletion
+     */
+    private long changeReferences(JdbcBlockReferences.References refs, Multihash root, int delta, long now) {
+        long queued = 0;
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Multihash block = toVisit.pop();
+            if (block.isIdentity())
+                continue;
+            long count = refs.addReferences(block, delta);
+            boolean entered = delta > 0 && count == delta;
+            boolean left = delta < 0 && count == 0;
+            if (count < 0)
+                LOG.warning("Incremental GC: negative reference count for " + block);
+            if (left) {
+                refs.queueForDeletion(block, now);
+                queued++;
+            }
+            if (entered || left)
+                storage.getLinks(block).join().forEach(toVisit::push);
+        }
+        return queued;
+    }
+
+    /** Count any pointer updates which have arrived since this task started, rather than leave them queued behind it
+     */
+    private void catchUp() {
+        for (PublicKeyHash writer : new ArrayList<>(queuedWriters))
+            if (queuedWriters.remove(writer))
+                updateWriter(writer);
+    }
+
+    /** Delete queued blocks which are past the grace period, still unreferenced, not in an open transaction and not
+     *  written since the sweep started.
+     *
+     * @return the number of blocks deleted
+     */
+    public long sweep() {
+        if (! initialised)
+            throw new IllegalStateException("Incremental GC has not been initialised!");
+        // This runs after all previously queued pointer updates have been counted
+        return run(() -> {
+            // The epoch catches a block which is written again, and the open transactions catch one which is being
+            // written. A commit which references a queued block without writing it, e.g. restoring an old subtree, is
+            // only caught if its pointer update is counted before the reference counts of the block's batch are
+            // checked, so we catch up with pointer updates before each batch. A commit in the remaining window, or
+            // whose update hasn't reached us yet, is only protected by the grace period.
+            try (WriteEpochs.Epoch epoch = storage.startWriteEpoch()) {
+                // This must happen after starting the epoch, and before checking reference counts, for correctness
+                Set<Multihash> pending = new HashSet<>(storage.getOpenTransactionBlocks());
+                long cutoff = System.currentTimeMillis() - gracePeriodMillis;
+                long deleted = 0, deletedSize = 0, retained = 0;
+                Optional<Multihash> after = Optional.empty();
+                while (true) {
+                    List<Multihash> batch = references.getQueuedForDeletion(cutoff, after, SWEEP_BATCH_SIZE);
+                    if (batch.isEmpty())
+                        break;
+                    after = Optional.of(batch.get(batch.size() - 1));
+                    catchUp();
+                    // leave blocks in open transactions queued in case the transaction is abandoned
+                    List<Multihash> candidates = batch.stream()
+                            .filter(b -> ! pending.contains(b) && ! epoch.wasWritten(b))
+                            .collect(Collectors.toList());
+                    Map<Multihash, Long> refs = references.getReferences(candidates);
+                    List<Multihash> referenced = candidates.stream()
+                            .filter(b -> refs.getOrDefault(b, 0L) > 0)
+                            .collect(Collectors.toList());
+                    List<Multihash> unreferenced = candidates.stream()
+                            .filter(b -> refs.getOrDefault(b, 0L) <= 0)
+                            .collect(Collectors.toList());
+                    Map<Multihash, Integer> sizes = new HashMap<>();
+                    for (Multihash block : unreferenced)
+                        sizes.put(block, getSize(block));
+                    List<Multihash> deletedNow = delete(epoch, unreferenced);
+                    deleted += deletedNow.size();
+                    deletedSize += deletedNow.stream().mapToLong(sizes::get).sum();
+                    retained += referenced.size();
+                    // blocks which failed to delete, or were written during the delete, stay queued
+                    List<Multihash> dequeue = new ArrayList<>(referenced);
+                    dequeue.addAll(deletedNow);
+                    references.removeFromDeletionQueue(dequeue);
+                }
+                if (deleted > 0)
+                    storage.compact();
+                LOG.info("Incremental GC: deleted " + deleted + " blocks totalling " + deletedSize + " bytes, "
+                        + retained + " queued blocks were referenced again");
+                return deleted;
+            }
+        });
+    }
+
+    private int getSize(Multihash block) {
+        try {
+            return storage.getSize(block).join().orElse(0);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Incremental GC: unable to get size of " + block, e);
+            return 0;
+        }
+    }
+
+    /** Delete the blocks which haven't been written in this epoch, one at a time if the batch fails
+     *
+     * @return the blocks which were deleted
+     */
+    private List<Multihash> delete(WriteEpochs.Epoch epoch, List<Multihash> blocks) {
+        try {
+            return epoch.deleteIfNotWritten(blocks, storage::bulkDelete);
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Incremental GC: unable to delete batch of " + blocks.size() + " blocks, deleting them individually", e);
+        }
+        List<Multihash> deleted = new ArrayList<>();
+        for (Multihash block : blocks) {
+            try {
+                deleted.addAll(epoch.deleteIfNotWritten(Collections.singletonList(block), storage::bulkDelete));
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Incremental GC: unable to delete " + block + ", ignoring block and continuing.", e);
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,267 @@
+package peergos.server.storage;
+
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** The persistent state of the incremental garbage collector: a reference count for every live block, the root
+ *  of each writer that has been counted, and a queue of blocks which have become unreferenced.
+ */
+public class JdbcBlockReferences {
+    private static final Logger LOG = Logging.LOG();
+    // well under the default limit of 999 parameters in a sqlite statement
+    private static final int MAX_HASHES_PER_QUERY = 256;
+
+    private static final String GET_REFS = "SELECT refs FROM gcrefs WHERE hash = ?;";
+    private static final String ADD_REFS = "UPDATE gcrefs SET refs = refs + ? WHERE hash = ?;";
+    private static final String DELETE_REFS = "DELETE FROM gcrefs WHERE hash = ? AND refs <= 0;";
+    private static final String GET_ROOT = "SELECT target FROM gcroots WHERE writer = ?;";
+    private static final String UPDATE_ROOT = "UPDATE gcroots SET target = ? WHERE writer = ?;";
+    private static final String GET_QUEUED = "SELECT hash FROM gcqueue WHERE queued < ? AND hash > ? ORDER BY hash LIMIT ?;";
+    private static final String REQUEUE = "UPDATE gcqueue SET queued = ? WHERE hash = ?;";
+    private static final String DEQUEUE = "DELETE FROM gcqueue WHERE hash = ?;";
+
+    private final Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private volatile boolean isClosed;
+
+    public JdbcBlockReferences(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection(boolean autocommit) {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(autocommit);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection(true)) {
+            commands.createTable(commands.createBlockReferencesTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** All the changes made by work are applied atomically, or not at all if it throws.
+     *
+     * @param work
+     * @param <T>
+     * @return the result of work
+     */
+    public <T> T transaction(Function<References, T> work) {
+        try (Connection conn = getConnection(false)) {
+            try {
+                T res = work.apply(new References(conn));
+                conn.commit();
+                return res;
+            } catch (Throwable t) {
+                conn.rollback();
+                throw t;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public class References {
+        private final Connection conn;
+
+        private References(Connection conn) {
+            this.conn = conn;
+        }
+
+        /**
+         *
+         * @param block
+         * @param delta
+         * @return the reference count after applying delta
+         */
+        public long addReferences(Multihash block, long delta) {
+            byte[] key = block.toBytes();
+            try (PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcrefs (hash, refs) VALUES(?, ?)"));
+                 PreparedStatement update = conn.prepareStatement(ADD_REFS);
+                 PreparedStatement select = conn.prepareStatement(GET_REFS);
+                 PreparedStatement delete = conn.prepareStatement(DELETE_REFS)) {
+                insert.setBytes(1, key);
+                insert.setLong(2, 0);
+                insert.executeUpdate();
+
+                update.setLong(1, delta);
+                update.setBytes(2, key);
+                update.executeUpdate();
+
+                select.setBytes(1, key);
+                ResultSet rs = select.executeQuery();
+                rs.next();
+                long refs = rs.getLong(1);
+                if (refs <= 0) {
+                    delete.setBytes(1, key);
+                    delete.executeUpdate();
+                }
+                return refs;
+            } catch (SQLException sqe) {
+                throw new RuntimeException(sqe);
+            }
+        }
+
+        /**
+         *
+         * @param writer
+         * @return the root whose blocks are currently counted for this writer, or empty if it hasn't been counted
+         */
+        public Optional<MaybeMultihash> getCountedRoot(PublicKeyHash writer) {
+            try (PreparedStatement select = conn.prepareStatement(GET_ROOT)) {
+                select.setBytes(1, writer.toBytes());
+                ResultSet rs = select.executeQuery();
+                if (! rs.next())
+                    return Optional.empty();
+                byte[] target = rs.getBytes(1);
+                return Optional.of(target == null ? MaybeMultihash.empty() : MaybeMultihash.of(Cid.cast(target)));
+            } catch (SQLException sqe) {
+                throw new RuntimeException(sqe);
+            }
+        }
+
+        public void setCountedRoot(PublicKeyHash writer, MaybeMultihash root) {
+            try (PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcroots (writer, target) VALUES(?, ?)"));
+                 PreparedStatement update = conn.prepareStatement(UPDATE_ROOT)) {
+                byte[] target = root.isPresent() ? root.get().toBytes() : null;
+                insert.setBytes(1, writer.toBytes());
+                insert.setBytes(2, target);
+                insert.executeUpdate();
+
+                update.setBytes(1, target);
+                update.setBytes(2, writer.toBytes());
+                update.executeUpdate();
+            } catch (SQLException sqe) {
+                throw new RuntimeException(sqe);
+            }
+        }
+
+        /** Queue a block for deletion, or restart its grace period if it is already queued
+         *
+         * @param block
+         * @param timeMillis
+         */
+        public void queueForDeletion(Multihash block, long timeMillis) {
+            try (PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcqueue (hash, queued) VALUES(?, ?)"));
+                 PreparedStatement update = conn.prepareStatement(REQUEUE)) {
+                insert.setBytes(1, block.toBytes());
+                insert.setLong(2, timeMillis);
+                insert.executeUpdate();
+
+                update.setLong(1, timeMillis);
+                update.setBytes(2, block.toBytes());
+                update.executeUpdate();
+            } catch (SQLException sqe) {
+                throw new RuntimeException(sqe);
+            }
+        }
+    }
+
+    /**
+     *
+     * @param queuedBeforeMillis
+     * @param after Only return blocks whose hash sorts after this one
+     * @param maxResults
+     * @return blocks which were queued for deletion before the given time, in hash order
+     */
+    public List<Multihash> getQueuedForDeletion(long queuedBeforeMillis, Optional<Multihash> after, int maxResults) {
+        try (Connection conn = getConnection(true);
+             PreparedStatement select = conn.prepareStatement(GET_QUEUED)) {
+            select.setLong(1, queuedBeforeMillis);
+            select.setBytes(2, after.map(Multihash::toBytes).orElse(new byte[0]));
+            select.setInt(3, maxResults);
+            ResultSet rs = select.executeQuery();
+            List<Multihash> res = new ArrayList<>();
+            while (rs.next())
+                res.add(Cid.cast(rs.getBytes(1)));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @param blocks
+     * @return the reference count of each block which has any references
+     */
+    public Map<Multihash, Long> getReferences(List<Multihash> blocks) {
+        if (blocks.isEmpty())
+            return Collections.emptyMap();
+        Map<Multihash, Long> res = new HashMap<>();
+        try (Connection conn = getConnection(true)) {
+            for (List<Multihash> group : ArrayOps.group(blocks, MAX_HASHES_PER_QUERY)) {
+                String params = group.stream()
+                        .map(h -> "?")
+                        .collect(Collectors.joining(", "));
+                Map<ByteArrayWrapper, Multihash> byBytes = new HashMap<>();
+                try (PreparedStatement select = conn.prepareStatement("SELECT hash, refs FROM gcrefs WHERE hash IN (" + params + ");")) {
+                    for (int i = 0; i < group.size(); i++) {
+                        byte[] hash = group.get(i).toBytes();
+                        byBytes.put(new ByteArrayWrapper(hash), group.get(i));
+                        select.setBytes(i + 1, hash);
+                    }
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next()) {
+                        Multihash block = byBytes.get(new ByteArrayWrapper(rs.getBytes(1)));
+                        if (block != null)
+                            res.put(block, rs.getLong(2));
+                    }
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public void removeFromDeletionQueue(List<Multihash> blocks) {
+        if (blocks.isEmpty())
+            return;
+        try (Connection conn = getConnection(true);
+             PreparedStatement delete = conn.prepareStatement(DEQUEUE)) {
+            for (Multihash block : blocks) {
+                delete.setBytes(1, block.toBytes());
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+    }
+}
@@ -0,0 +1,122 @@
+package peergos.server.storage;
+
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A persistent map from a cbor block to the total size of it and every block reachable from it. Blocks are
+ *  immutable, so an entry never changes once it is written, but it is removed when its block is garbage collected.
+ */
+public class JdbcRecursiveSizes {
+    private static final Logger LOG = Logging.LOG();
+
+    // well under the default limit of 999 parameters in a sqlite statement
+    private static final int MAX_SIZES_PER_QUERY = 256;
+
+    private final Supplier<Connection> conn;
+    private final SqlSupplier commands;
+
+    public JdbcRecursiveSizes(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void init(SqlSupplier commands) {
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createRecursiveSizesTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @param blocks
+     * @return the recorded recursive sizes of those blocks which have one
+     */
+    public Map<Multihash, Long> getSizes(Collection<Multihash> blocks) {
+        if (blocks.isEmpty())
+            return Collections.emptyMap();
+        Map<Multihash, Long> res = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (List<Multihash> group : ArrayOps.group(new ArrayList<>(blocks), MAX_SIZES_PER_QUERY)) {
+                String params = group.stream()
+                        .map(h -> "?")
+                        .collect(Collectors.joining(", "));
+                Map<ByteArrayWrapper, Multihash> byBytes = new HashMap<>();
+                try (PreparedStatement select = conn.prepareStatement("SELECT hash, size FROM recursivesizes WHERE hash IN (" + params + ");")) {
+                    for (int i = 0; i < group.size(); i++) {
+                        byte[] hash = group.get(i).toBytes();
+                        byBytes.put(new ByteArrayWrapper(hash), group.get(i));
+                        select.setBytes(i + 1, hash);
+                    }
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next()) {
+                        Multihash block = byBytes.get(new ByteArrayWrapper(rs.getBytes(1)));
+                        if (block != null)
+                            res.put(block, rs.getLong(2));
+                    }
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public void setSizes(Map<Multihash, Long> sizes) {
+        if (sizes.isEmpty())
+            return;
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO recursivesizes (hash, size) VALUES(?, ?)"))) {
+            for (Map.Entry<Multihash, Long> e : sizes.entrySet()) {
+                insert.setBytes(1, e.getKey().toBytes());
+                insert.setLong(2, e.getValue());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
+    public void removeSizes(List<Multihash> blocks) {
+        if (blocks.isEmpty())
+            return;
+        try (Connection conn = getConnection()) {
+            for (List<Multihash> group : ArrayOps.group(blocks, MAX_SIZES_PER_QUERY)) {
+                String params = group.stream()
+                        .map(h -> "?")
+                        .collect(Collectors.joining(", "));
+                try (PreparedStatement delete = conn.prepareStatement("DELETE FROM recursivesizes WHERE hash IN (" + params + ");")) {
+                    for (int i = 0; i < group.size(); i++)
+                        delete.setBytes(i + 1, group.get(i).toBytes());
+                    delete.executeUpdate();
+                }
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+}
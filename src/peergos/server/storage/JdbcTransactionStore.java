@@ -69,6 +69,31 @@ public class JdbcTransactionStore implements TransactionStore {
         }
     }
 
+    @Override
+    public void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
+            conn.setAutoCommit(false);
+            try {
+                for (Multihash hash : hashes) {
+                    insert.setString(1, tid.toString());
+                    insert.setString(2, owner.toString());
+                    insert.setString(3, hash.toString());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+        }
+    }
+
     @Override
     public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
         try (Connection conn = getConnection();
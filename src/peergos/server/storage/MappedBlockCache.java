@@ -0,0 +1,327 @@
+package peergos.server.storage;
+
+import io.prometheus.client.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A large block cache in memory mapped files, outside the Java heap, which persists across restarts.
+ *
+ *  The cache is a ring of fixed size segments. Blocks are appended to the current segment, and when it is full the
+ *  oldest segment is cleared and reused. Only the index of cached blocks is on the heap, and it is rebuilt from the
+ *  segments on startup. Only metadata (cbor) blocks are cached, and only when they are read, so file data and
+ *  freshly written blocks don't evict the blocks that are actually read repeatedly. Blocks that are garbage collected
+ *  from the local store must be dropped with {@link #invalidate(List)}, otherwise they would still be served.
+ */
+public class MappedBlockCache extends DelegatingStorage {
+    private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4;
+
+    private static final Counter hits = Counter.build()
+            .name("mapped_block_cache_hits")
+            .help("Number of block reads served from the mapped block cache")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("mapped_block_cache_misses")
+            .help("Number of block reads not found in the mapped block cache")
+            .register();
+    private static final Counter evictions = Counter.build()
+            .name("mapped_block_cache_evictions")
+            .help("Number of blocks evicted from the mapped block cache")
+            .register();
+
+    private final ContentAddressedStorage target;
+    private final Path dir;
+    private final int maxBlockSize;
+    private final Segment[] segments;
+    private final Map<Multihash, Location> index = new ConcurrentHashMap<>();
+    // only accessed while synchronized on this
+    private int current;
+    private long nextGeneration;
+
+    private static final class Location {
+        public final int segment;
+        public final long generation;
+        public final int offset, length;
+
+        public Location(int segment, long generation, int offset, int length) {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        public final MappedByteBuffer buffer;
+        // incremented before a segment is reused, so readers can detect a concurrent overwrite
+        public volatile long generation;
+        public int writeOffset;
+
+        public Segment(MappedByteBuffer buffer, long generation, int writeOffset) {
+            this.buffer = buffer;
+            this.generation = generation;
+            this.writeOffset = writeOffset;
+        }
+    }
+
+    /**
+     *
+     * @param target
+     * @param dir the directory to store the cache segments in
+     * @param maxBytes the total size of the cache, rounded down to a whole number of segments
+     * @param segmentSize
+     * @param maxBlockSize larger blocks are not cached
+     */
+    public MappedBlockCache(ContentAddressedStorage target,
+                            Path dir,
+                            long maxBytes,
+                            int segmentSize,
+                            int maxBlockSize) {
+        super(target);
+        this.target = target;
+        this.dir = dir;
+        this.maxBlockSize = Math.min(maxBlockSize, segmentSize / 2);
+        int nSegments = (int) Math.max(2, maxBytes / segmentSize);
+        this.segments = new Segment[nSegments];
+        try {
+            Files.createDirectories(dir);
+            for (int i = 0; i < nSegments; i++)
+                segments[i] = load(i, segmentSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        // continue appending to the newest segment
+        for (int i = 0; i < nSegments; i++)
+            if (segments[i].generation > segments[current].generation)
+                current = i;
+        nextGeneration = segments[current].generation + 1;
+        LOG.info("Mapped block cache in " + dir + " loaded " + index.size() + " blocks from " + nSegments + " segments");
+    }
+
+    public MappedBlockCache(ContentAddressedStorage target, Path dir, long maxBytes) {
+        this(target, dir, maxBytes, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    private Segment load(int id, int segmentSize) throws IOException {
+        Path file = dir.resolve("segment-" + id);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // a mapping remains valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        long generation = buffer.getLong(0);
+        Map<Multihash, Location> found = new HashMap<>();
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+            int hashLength = buffer.getInt(offset);
+            if (hashLength <= 0 || hashLength > 256)
+                break;
+            int length = buffer.getInt(offset + 4);
+            int dataOffset = offset + RECORD_HEADER_SIZE + hashLength;
+            if (length < 0 || dataOffset + length > segmentSize)
+                break;
+            byte[] hash = new byte[hashLength];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + RECORD_HEADER_SIZE);
+            dup.get(hash);
+            try {
+                found.put(Cid.cast(hash), new Location(id, generation, offset, length));
+            } catch (RuntimeException e) {
+                break;
+            }
+            offset = dataOffset + length;
+        }
+        // a later segment's copy of a block is just as good, so the load order doesn't matter
+        index.putAll(found);
+        return new Segment(buffer, generation, offset);
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return target.directToOrigin();
+    }
+
+    private Optional<byte[]> read(Multihash h) {
+        Location loc = index.get(h);
+        if (loc == null)
+            return Optional.empty();
+        Segment segment = segments[loc.segment];
+        if (segment.generation != loc.generation)
+            return Optional.empty();
+        byte[] data = new byte[loc.length];
+        int checksum;
+        try {
+            ByteBuffer dup = segment.buffer.duplicate();
+            dup.position(loc.offset);
+            int hashLength = dup.getInt();
+            dup.getInt();
+            checksum = dup.getInt();
+            dup.position(dup.position() + hashLength);
+            dup.get(data);
+        } catch (RuntimeException e) {
+            // the record was overwritten part way through reading it
+            return Optional.empty();
+        }
+        // the segment may have been reused while we were reading
+        if (segment.generation != loc.generation)
+            return Optional.empty();
+        if (crc(data) != checksum) {
+            index.remove(h, loc);
+            return Optional.empty();
+        }
+        return Optional.of(data);
+    }
+
+    private static boolean isMetadata(Multihash h) {
+        return ! h.isIdentity() && ! (h instanceof Cid && ((Cid) h).codec == Cid.Codec.Raw);
+    }
+
+    /** Drop any cached copies of these blocks, e.g. after they have been deleted from the local store
+     *
+     * @param hashes
+     */
+    public synchronized void invalidate(List<Multihash> hashes) {
+        for (Multihash hash : hashes) {
+            Location loc = index.remove(hash);
+            if (loc == null)
+                continue;
+            Segment segment = segments[loc.segment];
+            if (segment.generation != loc.generation)
+                continue;
+            // corrupt the checksum so the record is also dropped if it is reloaded after a restart
+            int checksumOffset = loc.offset + 8;
+            segment.buffer.putInt(checksumOffset, ~segment.buffer.getInt(checksumOffset));
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private synchronized void write(Multihash h, byte[] data) {
+        if (data.length > maxBlockSize || index.containsKey(h))
+            return;
+        byte[] hash = h.toBytes();
+        int recordSize = RECORD_HEADER_SIZE + hash.length + data.length;
+        Segment segment = segments[current];
+        if (segment.writeOffset + recordSize + 4 > segment.buffer.capacity()) {
+            current = (current + 1) % segments.length;
+            segment = segments[current];
+            reuse(current, segment);
+        }
+        int offset = segment.writeOffset;
+        ByteBuffer dup = segment.buffer.duplicate();
+        dup.position(offset + 4);
+        dup.putInt(data.length);
+        dup.putInt(crc(data));
+        dup.put(hash);
+        dup.put(data);
+        // terminate the records, in case this segment has been reused
+        dup.putInt(0);
+        // write the hash length last, so a partially written record is never valid
+        segment.buffer.putInt(offset, hash.length);
+        segment.writeOffset = offset + recordSize;
+        index.put(h, new Location(current, segment.generation, offset, data.length));
+    }
+
+    private void reuse(int id, Segment segment) {
+        long generation = nextGeneration++;
+        segment.generation = generation;
+        long before = index.size();
+        index.values().removeIf(loc -> loc.segment == id);
+        evictions.inc(before - index.size());
+        segment.buffer.putLong(0, generation);
+        segment.buffer.putInt(SEGMENT_HEADER_SIZE, 0);
+        segment.writeOffset = SEGMENT_HEADER_SIZE;
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (! isMetadata(hash))
+            return target.getRaw(hash);
+        Optional<byte[]> cached = read(hash);
+        if (cached.isPresent()) {
+            hits.inc();
+            return Futures.of(cached);
+        }
+        misses.inc();
+        return target.getRaw(hash).thenApply(res -> {
+            res.ifPresent(data -> write(hash, data));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (! isMetadata(hash))
+            return target.get(hash);
+        Optional<byte[]> cached = read(hash);
+        if (cached.isPresent()) {
+            hits.inc();
+            return Futures.of(Optional.of(CborObject.fromByteArray(cached.get())));
+        }
+        misses.inc();
+        return target.get(hash).thenApply(res -> {
+            res.ifPresent(cbor -> write(hash, cbor.toByteArray()));
+            return res;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        Map<Multihash, byte[]> found = new HashMap<>();
+        List<Multihash> missing = new ArrayList<>();
+        for (Multihash hash : hashes) {
+            Optional<byte[]> cached = isMetadata(hash) ? read(hash) : Optional.empty();
+            if (cached.isPresent()) {
+                hits.inc();
+                found.put(hash, cached.get());
+            } else
+                missing.add(hash);
+        }
+        misses.inc(missing.stream().filter(MappedBlockCache::isMetadata).count());
+        CompletableFuture<List<Optional<byte[]>>> fetched = missing.isEmpty() ?
+                Futures.of(Collections.emptyList()) :
+                target.getAll(missing);
+        return fetched.thenApply(blocks -> {
+            for (int i = 0; i < missing.size(); i++) {
+                Multihash hash = missing.get(i);
+                blocks.get(i).ifPresent(data -> {
+                    found.put(hash, data);
+                    if (isMetadata(hash))
+                        write(hash, data);
+                });
+            }
+            return hashes.stream()
+                    .map(h -> Optional.ofNullable(found.get(h)))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        Location loc = index.get(block);
+        if (loc != null && segments[loc.segment].generation == loc.generation)
+            return Futures.of(Optional.of(loc.length));
+        return target.getSize(block);
+    }
+}
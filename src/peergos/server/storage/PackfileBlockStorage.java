@@ -0,0 +1,660 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A local block store which appends blocks to large pack files, rather than using a file per block.
+ *
+ *  Each pack is a log of block records and delete records. When a pack reaches its maximum size it is sealed and an
+ *  index file is written next to it. The index of every block's location is kept in memory, and rebuilt on startup
+ *  from the pack index files, plus a scan of the unsealed pack. Deletes only write a delete record, the space is
+ *  reclaimed by compact, which copies the live blocks out of mostly dead packs and then removes them.
+ *
+ *  All writes are serialised, so the order of records on disk is the order they were applied to the index.
+ */
+public class PackfileBlockStorage implements DeletableContentAddressedStorage, FileBlockSource {
+    private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_MAX_PACK_SIZE = 256 * 1024 * 1024;
+    public static final double DEFAULT_MAX_DEAD_FRACTION = 0.5;
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final byte BLOCK_RECORD = 1;
+    private static final byte DELETE_RECORD = 2;
+    private static final int MAX_READ_ATTEMPTS = 5;
+
+    private final Path root;
+    private final TransactionStore transactions;
+    private final long maxPackSize;
+    private final double maxDeadFraction;
+    private final boolean fsync;
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+    private final Map<Multihash, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Pack> packs = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    // only accessed while holding the write lock
+    private Pack current;
+
+    /**
+     *
+     * @param root the directory to store packs in
+     * @param transactions
+     * @param maxPackSize the size at which a pack is sealed and a new one started
+     * @param maxDeadFraction the fraction of a sealed pack which can be deleted records before compaction rewrites it
+     * @param fsync whether to sync every put and delete to disk before returning
+     */
+    public PackfileBlockStorage(Path root,
+                                TransactionStore transactions,
+                                long maxPackSize,
+                                double maxDeadFraction,
+                                boolean fsync) {
+        this.root = root;
+        this.transactions = transactions;
+        this.maxPackSize = maxPackSize;
+        this.maxDeadFraction = maxDeadFraction;
+        this.fsync = fsync;
+        try {
+            Files.createDirectories(root);
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PackfileBlockStorage(Path root, TransactionStore transactions) {
+        this(root, transactions, DEFAULT_MAX_PACK_SIZE, DEFAULT_MAX_DEAD_FRACTION, false);
+    }
+
+    private static class Location {
+        public final int pack;
+        public final long offset;
+        public final int length;
+
+        public Location(int pack, long offset, int length) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long recordSize(Multihash h) {
+            return offset + length - recordStart(h);
+        }
+
+        public long recordStart(Multihash h) {
+            return offset - blockHeaderSize(h);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Location that = (Location) o;
+            return pack == that.pack && offset == that.offset && length == that.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pack, offset, length);
+        }
+    }
+
+    /** A block or delete record, as stored in a pack index.
+     */
+    private static class Record {
+        public final byte type;
+        public final Multihash hash;
+        public final long offset;
+        // the length of the block, or the pack of the deleted block
+        public final int value;
+
+        public Record(byte type, Multihash hash, long offset, int value) {
+            this.type = type;
+            this.hash = hash;
+            this.offset = offset;
+            this.value = value;
+        }
+    }
+
+    private static class Pack {
+        public final int id;
+        public final Path path;
+        // only used by the writer, readers use their own channel, so an interrupted reader can't close it
+        public final FileChannel channel;
+        private FileChannel reader;
+        private boolean closed = false;
+        public final AtomicLong liveBytes = new AtomicLong(0);
+        // only used for the current pack, to write its index when it is sealed
+        public final List<Record> records = new ArrayList<>();
+        public volatile long size;
+
+        public Pack(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        /**
+         *
+         * @return a channel for reads, which is reopened if an interrupted reader closed it
+         * @throws ClosedChannelException if the pack has been removed
+         */
+        public synchronized FileChannel reader() throws IOException {
+            if (closed)
+                throw new ClosedChannelException();
+            if (reader == null || ! reader.isOpen())
+                reader = FileChannel.open(path, StandardOpenOption.READ);
+            return reader;
+        }
+
+        public synchronized void close() throws IOException {
+            closed = true;
+            channel.close();
+            if (reader != null)
+                reader.close();
+        }
+
+        public double deadFraction() {
+            return size == 0 ? 0 : 1 - (double) liveBytes.get() / size;
+        }
+    }
+
+    private static int blockHeaderSize(Multihash h) {
+        return 1 + 4 + h.toBytes().length + 4;
+    }
+
+    private Path packPath(int id) {
+        return root.resolve(String.format("%010d", id) + PACK_SUFFIX);
+    }
+
+    private Path indexPath(int id) {
+        return root.resolve(String.format("%010d", id) + INDEX_SUFFIX);
+    }
+
+    private Pack openPack(int id) throws IOException {
+        Path path = packPath(id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Pack(id, path, channel, channel.size());
+    }
+
+    private void load() throws IOException {
+        List<String> names;
+        try (Stream<Path> files = Files.list(root)) {
+            names = files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+        }
+        List<Integer> ids = names.stream()
+                .filter(n -> n.endsWith(PACK_SUFFIX))
+                .map(n -> Integer.parseInt(n.substring(0, n.length() - PACK_SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        // remove the remains of an interrupted index write or compaction
+        for (String name : names) {
+            if (name.endsWith(".tmp"))
+                Files.delete(root.resolve(name));
+            else if (name.endsWith(INDEX_SUFFIX) &&
+                    ! ids.contains(Integer.parseInt(name.substring(0, name.length() - INDEX_SUFFIX.length()))))
+                Files.delete(root.resolve(name));
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            Pack pack = openPack(id);
+            packs.put(id, pack);
+            boolean sealed = Files.exists(indexPath(id));
+            boolean last = i == ids.size() - 1;
+            List<Record> records = sealed ? readIndex(id) : scan(pack);
+            for (Record r : records)
+                replay(r, id);
+            if (! sealed) {
+                if (! last)
+                    writeIndex(pack, records);
+                else {
+                    pack.records.addAll(records);
+                    current = pack;
+                }
+            }
+        }
+        for (Map.Entry<Multihash, Location> e : index.entrySet())
+            packs.get(e.getValue().pack).liveBytes.addAndGet(e.getValue().recordSize(e.getKey()));
+        if (current == null)
+            current = newPack();
+        LOG.info("Loaded " + index.size() + " blocks from " + packs.size() + " packs in " + root);
+    }
+
+    private void replay(Record r, int pack) {
+        if (r.type == BLOCK_RECORD)
+            index.put(r.hash, new Location(pack, r.offset + blockHeaderSize(r.hash), r.value));
+        else {
+            Location existing = index.get(r.hash);
+            if (existing != null && existing.pack == r.value)
+                index.remove(r.hash);
+        }
+    }
+
+    /** Read the records of an unsealed pack, truncating any partially written record at the end.
+     */
+    private List<Record> scan(Pack pack) throws IOException {
+        List<Record> res = new ArrayList<>();
+        long size = pack.channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(5);
+        while (offset < size) {
+            header.clear();
+            if (! readFully(pack.channel, header, offset))
+                break;
+            header.flip();
+            byte type = header.get();
+            int hashLength = header.getInt();
+            if ((type != BLOCK_RECORD && type != DELETE_RECORD) || hashLength <= 0 || hashLength > 1024)
+                break;
+            ByteBuffer rest = ByteBuffer.allocate(hashLength + 4);
+            if (! readFully(pack.channel, rest, offset + 5))
+                break;
+            rest.flip();
+            byte[] hashBytes = new byte[hashLength];
+            rest.get(hashBytes);
+            int value = rest.getInt();
+            long end = offset + 5 + hashLength + 4 + (type == BLOCK_RECORD ? value : 0);
+            if (end > size)
+                break;
+            res.add(new Record(type, Cid.cast(hashBytes), offset, value));
+            offset = end;
+        }
+        if (offset < size) {
+            LOG.warning("Truncating partially written record at " + offset + " in " + pack.path);
+            pack.channel.truncate(offset);
+        }
+        pack.size = offset;
+        return res;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private List<Record> readIndex(int id) throws IOException {
+        List<Record> res = new ArrayList<>();
+        try (DataInputStream din = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath(id))))) {
+            int count = din.readInt();
+            for (int i = 0; i < count; i++) {
+                byte type = din.readByte();
+                byte[] hash = new byte[din.readInt()];
+                din.readFully(hash);
+                long offset = din.readLong();
+                int value = din.readInt();
+                res.add(new Record(type, Cid.cast(hash), offset, value));
+            }
+        }
+        return res;
+    }
+
+    private void writeIndex(Pack pack, List<Record> records) throws IOException {
+        Path tmp = root.resolve(pack.path.getFileName() + INDEX_SUFFIX + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)))) {
+            dout.writeInt(records.size());
+            for (Record r : records) {
+                byte[] hash = r.hash.toBytes();
+                dout.writeByte(r.type);
+                dout.writeInt(hash.length);
+                dout.write(hash);
+                dout.writeLong(r.offset);
+                dout.writeInt(r.value);
+            }
+            dout.flush();
+            // the pack must be durable before its index claims it is complete
+            pack.channel.force(true);
+            out.force(true);
+        }
+        Files.move(tmp, indexPath(pack.id), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Pack newPack() throws IOException {
+        int id = packs.keySet().stream().mapToInt(i -> i).max().orElse(-1) + 1;
+        Pack pack = openPack(id);
+        packs.put(id, pack);
+        return pack;
+    }
+
+    /** Must be called while holding the write lock
+     */
+    private void append(Record r, byte[] data) throws IOException {
+        byte[] hash = r.hash.toBytes();
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + hash.length + 4 + (data == null ? 0 : data.length));
+        buf.put(r.type);
+        buf.putInt(hash.length);
+        buf.put(hash);
+        buf.putInt(r.value);
+        if (data != null)
+            buf.put(data);
+        buf.flip();
+        long position = current.size;
+        while (buf.hasRemaining())
+            position += current.channel.write(buf, position);
+        current.records.add(new Record(r.type, r.hash, current.size, r.value));
+        current.size = position;
+    }
+
+    /** Must be called while holding the write lock, after updating the index
+     */
+    private void sealIfFull() throws IOException {
+        if (current.size < maxPackSize)
+            return;
+        writeIndex(current, current.records);
+        current.records.clear();
+        current = newPack();
+    }
+
+    private void syncIfEnabled() throws IOException {
+        if (fsync)
+            current.channel.force(false);
+    }
+
+    /** Must be called while holding the write lock
+     */
+    private void appendBlock(Multihash h, byte[] data) throws IOException {
+        if (index.containsKey(h))
+            return; // blocks are immutable
+        long start = current.size;
+        append(new Record(BLOCK_RECORD, h, start, data.length), data);
+        Location loc = new Location(current.id, start + blockHeaderSize(h), data.length);
+        index.put(h, loc);
+        current.liveBytes.addAndGet(loc.recordSize(h));
+        sealIfFull();
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> id() {
+        return CompletableFuture.completedFuture(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("PackfileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> gc() {
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return transactions.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public boolean supportsWriteEpochs() {
+        return true;
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return writeEpochs.start();
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        return put(owner, blocks, false, tid);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
+                                                     PublicKeyHash writer,
+                                                     List<byte[]> signatures,
+                                                     List<byte[]> blocks,
+                                                     TransactionId tid,
+                                                     ProgressConsumer<Long> progressConsumer) {
+        return put(owner, blocks, true, tid);
+    }
+
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                   List<byte[]> blocks,
+                                                   boolean isRaw,
+                                                   TransactionId tid) {
+        List<Multihash> cids = (blocks.size() > 1 ? blocks.parallelStream() : blocks.stream())
+                .map(b -> RAMStorage.hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        transactions.addBlocks(cids, tid, owner);
+        // Record the writes before taking the write lock, because this waits for any GC delete of the same block,
+        // which needs the write lock. Once recorded, the blocks can't be deleted until the epoch closes.
+        for (Multihash cid : cids)
+            writeEpochs.write(cid, () -> true);
+        synchronized (writeLock) {
+            try {
+                for (int i = 0; i < blocks.size(); i++)
+                    appendBlock(cids.get(i), blocks.get(i));
+                // a single sync for the whole put
+                syncIfEnabled();
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        return Futures.of(cids);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
+        return CompletableFuture.completedFuture(Arrays.asList(existing, updated));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(PublicKeyHash owner, Multihash h) {
+        return CompletableFuture.completedFuture(Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        if (hash.isIdentity())
+            return Futures.of(Optional.of(hash.getHash()));
+        // A block can be moved by a concurrent compaction, in which case we retry at its new location
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return Futures.of(Optional.empty());
+            Pack pack = packs.get(loc.pack);
+            if (pack == null)
+                continue;
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(loc.length);
+                if (! readFully(pack.reader(), buf, loc.offset))
+                    throw new EOFException("Block " + hash + " extends beyond the end of " + pack.path);
+                return Futures.of(Optional.of(buf.array()));
+            } catch (ClosedByInterruptException e) {
+                // this thread was interrupted, the next read reopens the channel
+                throw new RuntimeException(e.getMessage(), e);
+            } catch (ClosedChannelException e) {
+                // the pack was removed by compaction, or another reader was interrupted
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        throw new IllegalStateException("Couldn't read block " + hash + " after " + MAX_READ_ATTEMPTS + " attempts");
+    }
+
+    @Override
+    public Optional<BlockRegion> openBlock(Multihash hash) throws IOException {
+        if (hash.isIdentity())
+            return Optional.empty();
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            Location loc = index.get(hash);
+            if (loc == null)
+                return Optional.empty();
+            Pack pack = packs.get(loc.pack);
+            if (pack == null)
+                continue;
+            try {
+                // A separate channel keeps the block readable even if compaction removes the pack
+                FileChannel channel = FileChannel.open(pack.path, StandardOpenOption.READ);
+                return Optional.of(new BlockRegion(channel, loc.offset, loc.length));
+            } catch (NoSuchFileException e) {
+                // the pack was removed by compaction
+            }
+        }
+        throw new IllegalStateException("Couldn't open block " + hash + " after " + MAX_READ_ATTEMPTS + " attempts");
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        if (h.isIdentity())
+            return Futures.of(Optional.of(h.getHash().length));
+        Location loc = index.get(h);
+        return Futures.of(loc == null ? Optional.empty() : Optional.of(loc.length));
+    }
+
+    public boolean contains(Multihash h) {
+        return index.containsKey(h);
+    }
+
+    @Override
+    public Stream<Multihash> getAllBlockHashes() {
+        return index.keySet().stream();
+    }
+
+    @Override
+    public Stream<Pair<Multihash, Integer>> getAllBlockHashesAndSizes() {
+        return index.entrySet().stream()
+                .map(e -> new Pair<>(e.getKey(), e.getValue().length));
+    }
+
+    @Override
+    public void delete(Multihash hash) {
+        bulkDelete(Collections.singletonList(hash));
+    }
+
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        synchronized (writeLock) {
+            try {
+                List<Multihash> deleted = new ArrayList<>();
+                for (Multihash h : hashes) {
+                    Location loc = index.get(h);
+                    if (loc == null)
+                        continue;
+                    deleted.add(h);
+                    append(new Record(DELETE_RECORD, h, current.size, loc.pack), null);
+                    index.remove(h);
+                    packs.get(loc.pack).liveBytes.addAndGet(-loc.recordSize(h));
+                    sealIfFull();
+                }
+                syncIfEnabled();
+                return deleted;
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /** Rewrite the live records of every sealed pack that is mostly deleted blocks, and then remove it.
+     *
+     * @return the number of bytes reclaimed
+     */
+    @Override
+    public long compact() {
+        List<Pack> toCompact = packs.values().stream()
+                .filter(p -> p != current && Files.exists(indexPath(p.id)))
+                .filter(p -> p.deadFraction() > maxDeadFraction)
+                .sorted(Comparator.comparingInt(p -> p.id))
+                .collect(Collectors.toList());
+        long reclaimed = 0;
+        for (Pack pack : toCompact) {
+            try {
+                reclaimed += compact(pack);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error compacting " + pack.path + ": " + e.getMessage(), e);
+            }
+        }
+        if (reclaimed > 0)
+            LOG.info("Compaction reclaimed " + reclaimed + " bytes from " + toCompact.size() + " packs in " + root);
+        return reclaimed;
+    }
+
+    private long compact(Pack pack) throws IOException {
+        for (Record r : readIndex(pack.id)) {
+            // take the lock per record so writes can continue during a compaction
+            synchronized (writeLock) {
+                if (r.type == BLOCK_RECORD) {
+                    Location loc = index.get(r.hash);
+                    if (loc == null || loc.pack != pack.id || loc.recordStart(r.hash) != r.offset)
+                        continue;
+                    ByteBuffer data = ByteBuffer.allocate(loc.length);
+                    if (! readFully(pack.reader(), data, loc.offset))
+                        throw new EOFException("Block " + r.hash + " extends beyond the end of " + pack.path);
+                    long start = current.size;
+                    append(new Record(BLOCK_RECORD, r.hash, start, loc.length), data.array());
+                    Location moved = new Location(current.id, start + blockHeaderSize(r.hash), loc.length);
+                    index.put(r.hash, moved);
+                    current.liveBytes.addAndGet(moved.recordSize(r.hash));
+                    pack.liveBytes.addAndGet(-loc.recordSize(r.hash));
+                    sealIfFull();
+                } else if (packs.containsKey(r.value) && r.value != pack.id) {
+                    // the deleted block's pack still exists, so the delete must be preserved
+                    append(new Record(DELETE_RECORD, r.hash, current.size, r.value), null);
+                    sealIfFull();
+                }
+            }
+        }
+        synchronized (writeLock) {
+            // the moved records must be durable before we remove their source
+            current.channel.force(false);
+            packs.remove(pack.id);
+        }
+        long size = pack.size;
+        pack.close();
+        // remove the pack before its index, so it is never mistaken for an unsealed pack
+        Files.deleteIfExists(pack.path);
+        Files.deleteIfExists(indexPath(pack.id));
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "PackfileBlockStorage " + root;
+    }
+}
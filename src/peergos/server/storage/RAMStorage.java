@@ -19,6 +19,7 @@ public class RAMStorage implements DeletableContentAddressedStorage {
     private Map<Multihash, byte[]> storage = new EfficientHashMap<>();
     private Map<TransactionId, List<Multihash>> openTransactions = new ConcurrentHashMap<>();
     private final Set<Multihash> pinnedRoots = new HashSet<>();
+    private final WriteEpochs writeEpochs = new WriteEpochs();
 
     @Override
     public ContentAddressedStorage directToOrigin() {
@@ -49,12 +50,12 @@ public class RAMStorage implements DeletableContentAddressedStorage {
     }
 
     @Override
-    public Stream<Multihash> getAllBlockHashes() {
-        return storage.keySet().stream();
+    public synchronized Stream<Multihash> getAllBlockHashes() {
+        return new ArrayList<>(storage.keySet()).stream();
     }
 
     @Override
-    public void delete(Multihash hash) {
+    public synchronized void delete(Multihash hash) {
         storage.remove(hash);
     }
 
@@ -66,6 +67,16 @@ public class RAMStorage implements DeletableContentAddressedStorage {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public boolean supportsWriteEpochs() {
+        return true;
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return writeEpochs.start();
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
                                                   PublicKeyHash writer,
@@ -89,9 +100,11 @@ public class RAMStorage implements DeletableContentAddressedStorage {
         return CompletableFuture.completedFuture(blocks.stream()
                 .map(b -> {
                     Cid cid = hashToCid(b, isRaw);
-                    put(cid, b);
                     openTransactions.get(tid).add(cid);
-                    return cid;
+                    return writeEpochs.write(cid, () -> {
+                        put(cid, b);
+                        return cid;
+                    });
                 }).collect(Collectors.toList()));
     }
 
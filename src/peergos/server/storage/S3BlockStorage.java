@@ -52,6 +52,14 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     private final BlockStoreProperties props;
     private final TransactionStore transactions;
     private final ContentAddressedStorage p2pFallback;
+    private final WriteEpochs writeEpochs = new WriteEpochs();
+    private final int listParallelism;
+    private final PooledHttpClient http;
+    private final ExecutorService listingPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "S3 list pages");
+        t.setDaemon(true);
+        return t;
+    });
 
     public S3BlockStorage(S3Config config,
                           Multihash id,
@@ -66,6 +74,8 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         this.host = config.getHost();
         this.accessKeyId = config.accessKey;
         this.secretKey = config.secretKey;
+        this.listParallelism = config.listParallelism;
+        this.http = new PooledHttpClient(config.maxConnections);
         LOG.info("Using S3 Block Storage at " + config.regionEndpoint + ", bucket " + config.bucket + ", path: " + config.path);
         this.props = props;
         this.transactions = transactions;
@@ -153,21 +163,23 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         PresignedUrl getUrl = S3Request.preSignGet(path, Optional.of(600),
                 ZonedDateTime.now(), host, region, accessKeyId, secretKey);
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
-        try {
-            return Futures.of(Optional.of(HttpUtil.get(getUrl)));
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
-                LOG.warning("S3 error reading " + path);
-                LOG.log(Level.WARNING, msg, e);
-            }
-
-            nonLocalGets.inc();
-            return p2pFallback.getRaw(hash);
-        } finally {
-            readTimer.observeDuration();
-        }
+        return http.get(getUrl, readTimerLog, "read")
+                .thenApply(Optional::of)
+                .exceptionally(t -> {
+                    String msg = t.getMessage();
+                    boolean notFound = msg != null && msg.contains("<Error><Code>NoSuchKey</Code>");
+                    if (! notFound) {
+                        LOG.warning("S3 error reading " + path);
+                        LOG.log(Level.WARNING, msg, t);
+                    }
+                    return Optional.empty();
+                }).thenCompose(res -> {
+                    readTimer.observeDuration();
+                    if (res.isPresent())
+                        return Futures.of(res);
+                    nonLocalGets.inc();
+                    return p2pFallback.getRaw(hash);
+                });
     }
 
     @Override
@@ -195,8 +207,19 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return transactions.getOpenTransactionBlocks();
     }
 
-    private void collectGarbage(JdbcIpnsAndSocial pointers) {
-        GarbageCollector.collect(this, pointers, this::savePointerSnapshot);
+    @Override
+    public boolean supportsWriteEpochs() {
+        return true;
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return writeEpochs.start();
+    }
+
+    private void collectGarbage(JdbcIpnsAndSocial pointers, int deleteParallelism) {
+        new GarbageCollector(this, pointers, GarbageCollector.DEFAULT_MARK_PARALLELISM, deleteParallelism, false,
+                GarbageCollector.DEFAULT_FALSE_POSITIVE_RATE).collect(this::savePointerSnapshot);
     }
 
     private CompletableFuture<Boolean> savePointerSnapshot(Stream<Map.Entry<PublicKeyHash, byte[]>> pointers) {
@@ -212,6 +235,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                 throw new RuntimeException(e);
             }
         });
+        res.complete(true);
         return res;
     }
 
@@ -224,37 +248,34 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         if (hash.isIdentity()) // Identity hashes are not actually stored explicitly
             return Futures.of(Optional.of(0));
         Histogram.Timer readTimer = readTimerLog.labels("size").startTimer();
-        try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
-                    ZonedDateTime.now(), host, region, accessKeyId, secretKey);
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl);
-            long size = Long.parseLong(headRes.get("Content-Length").get(0));
-            return Futures.of(Optional.of((int)size));
-        } catch (Exception e) {
-            if (e.getMessage().contains("HTTP 503")) {
-                LOG.info("Sleeping for "+sleepMillis+" because of http 503 from S3 (you are being rate limited) getting size of " + hash + " ...");
-                try {Thread.sleep(sleepMillis);} catch (InterruptedException f) {}
-                if (retries <= 0)
-                    throw new RuntimeException(e);
-                return getSize(hash, retries - 1, sleepMillis * 2);
-            } else {
-                LOG.log(Level.SEVERE, e.getMessage(), e);
-                return Futures.of(Optional.empty());
-            }
-        } finally {
-            readTimer.observeDuration();
-        }
+        PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
+                ZonedDateTime.now(), host, region, accessKeyId, secretKey);
+        return http.head(headUrl, readTimerLog, "size")
+                .thenApply(headRes -> Optional.of((int) Long.parseLong(headRes.get("Content-Length").get(0))))
+                .handle((res, t) -> {
+                    readTimer.observeDuration();
+                    if (t == null)
+                        return Futures.of(res);
+                    if (t.getMessage() != null && t.getMessage().contains("HTTP 503")) {
+                        if (retries <= 0)
+                            return Futures.<Optional<Integer>>errored(t);
+                        LOG.info("Sleeping for "+sleepMillis+" because of http 503 from S3 (you are being rate limited) getting size of " + hash + " ...");
+                        Executor delayed = CompletableFuture.delayedExecutor(sleepMillis, TimeUnit.MILLISECONDS);
+                        return CompletableFuture.supplyAsync(() -> true, delayed)
+                                .thenCompose(x -> getSize(hash, retries - 1, sleepMillis * 2));
+                    }
+                    LOG.log(Level.SEVERE, t.getMessage(), t);
+                    return Futures.of(Optional.<Integer>empty());
+                }).thenCompose(x -> x);
     }
 
     public boolean contains(Multihash hash) {
-        try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
-                    ZonedDateTime.now(), host, region, accessKeyId, secretKey);
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+        PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
+                ZonedDateTime.now(), host, region, accessKeyId, secretKey);
+        return http.head(headUrl, readTimerLog, "size")
+                .thenApply(x -> true)
+                .exceptionally(t -> false)
+                .join();
     }
 
     @Override
@@ -296,9 +317,21 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                                                    List<byte[]> blocks,
                                                    boolean isRaw,
                                                    TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        if (blocks.size() == 1)
+            return putAsync(blocks.get(0), isRaw, tid, owner).thenApply(Collections::singletonList);
+        // hash in parallel, record all the blocks in the transaction, then upload concurrently
+        List<Cid> cids = blocks.parallelStream()
+                .map(b -> hashToCid(b, isRaw))
+                .collect(Collectors.toList());
+        transactions.addBlocks(new ArrayList<>(cids), tid, owner);
+        List<CompletableFuture<Multihash>> uploads = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++)
+            uploads.add(write(cids.get(i), blocks.get(i)));
+        return Futures.combineAllInOrder(uploads);
+    }
+
+    private static Cid hashToCid(byte[] data, boolean isRaw) {
+        return new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(data));
     }
 
     /** Must be atomic relative to reads of the same key
@@ -306,113 +339,146 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
      * @param data
      */
     public Multihash put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        return putAsync(data, isRaw, tid, owner).join();
+    }
+
+    private CompletableFuture<Multihash> putAsync(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        Cid cid = hashToCid(data, isRaw);
+        transactions.addBlock(cid, tid, owner);
+        return write(cid, data);
+    }
+
+    /** The block must already be in an open transaction
+     */
+    private CompletableFuture<Multihash> write(Cid cid, byte[] data) {
         Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
-        Multihash hash = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
-        Cid cid = new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, hash.type, hash.getHash());
         String key = hashToKey(cid);
-        try {
-            transactions.addBlock(cid, tid, owner);
-            String s3Key = folder + key;
-            Map<String, String> extraHeaders = new TreeMap<>();
-            extraHeaders.put("Content-Type", "application/octet-stream");
-            boolean hashContent = true;
-            String contentHash = hashContent ? ArrayOps.bytesToHex(hash.getHash()) : "UNSIGNED-PAYLOAD";
-            PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
-                    ZonedDateTime.now(), host, extraHeaders, region, accessKeyId, secretKey);
-            HttpUtil.put(putUrl, data);
-            return cid;
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-            throw new RuntimeException(e.getMessage(), e);
-        } finally {
-            writeTimer.observeDuration();
-        }
+        String s3Key = folder + key;
+        Map<String, String> extraHeaders = new TreeMap<>();
+        extraHeaders.put("Content-Type", "application/octet-stream");
+        boolean hashContent = true;
+        String contentHash = hashContent ? ArrayOps.bytesToHex(cid.getHash()) : "UNSIGNED-PAYLOAD";
+        PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
+                ZonedDateTime.now(), host, extraHeaders, region, accessKeyId, secretKey);
+        return writeEpochs.write(cid, () -> http.put(putUrl, data, writeTimerLog, "write"))
+                .handle((x, t) -> {
+                    writeTimer.observeDuration();
+                    if (t != null) {
+                        LOG.log(Level.SEVERE, t.getMessage(), t);
+                        throw new RuntimeException(t.getMessage(), t);
+                    }
+                    return (Multihash) cid;
+                });
     }
 
     public Stream<Multihash> getAllBlockHashes() {
-        // todo make this actually streaming
-        return getFiles(Long.MAX_VALUE).stream();
+        return listAll(listParallelism)
+                .flatMap(obj -> parseKey(obj.key).stream());
+    }
+
+    @Override
+    public Stream<Pair<Multihash, Integer>> getAllBlockHashesAndSizes() {
+        return listAll(listParallelism)
+                .flatMap(obj -> parseKey(obj.key).stream()
+                        .map(h -> new Pair<>(h, (int) obj.size)));
+    }
+
+    private Optional<Multihash> parseKey(String key) {
+        try {
+            return Optional.of(keyToHash(key));
+        } catch (Exception e) {
+            LOG.warning("Couldn't parse S3 key to Cid: " + key);
+            return Optional.empty();
+        }
     }
 
     private List<Multihash> getFiles(long maxReturned) {
-        List<Multihash> results = new ArrayList<>();
-        applyToAll(obj -> {
-            try {
-                results.add(keyToHash(obj.key));
-            } catch (Exception e) {
-                LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
-            }
-        }, maxReturned);
-        return results;
+        return listAll(1)
+                .limit(maxReturned)
+                .flatMap(obj -> parseKey(obj.key).stream())
+                .collect(Collectors.toList());
     }
 
     private List<String> getFilenames(long maxReturned) {
-        List<String> results = new ArrayList<>();
-        applyToAll(obj -> results.add(obj.key), maxReturned);
-        return results;
+        return listAll(1)
+                .limit(maxReturned)
+                .map(obj -> obj.key)
+                .collect(Collectors.toList());
     }
 
-    private void applyToAll(Consumer<S3Request.ObjectMetadata> processor, long maxObjects) {
-        try {
-            Optional<String> continuationToken = Optional.empty();
-            S3Request.ListObjectsReply result;
-            long processedObjects = 0;
-            do {
-                result = S3Request.listObjects(folder, 1_000, continuationToken,
-                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
-
-                for (S3Request.ObjectMetadata objectSummary : result.objects) {
-                    if (objectSummary.key.endsWith("/")) {
-                        LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
-                        continue;
-                    }
-                    processor.accept(objectSummary);
-                    processedObjects++;
-                    if (processedObjects >= maxObjects)
-                        return;
-                }
-                LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
-                continuationToken = result.continuationToken;
-            } while (result.isTruncated);
+    /** A lazy listing of every object in our folder, which doesn't hold more than a few pages in memory.
+     *
+     * @param parallelism the number of ranges of the keyspace to list concurrently
+     * @return
+     */
+    private Stream<S3Request.ObjectMetadata> listAll(int parallelism) {
+        return S3ObjectListing.list((continuationToken, startAfter) -> S3Request.listObjects(folder, 1_000,
+                continuationToken, startAfter, ZonedDateTime.now(), host, region, accessKeyId, secretKey,
+                url -> http.get(url, readTimerLog, "list").join()), parallelism > 1 ? listingBoundaries(parallelism) : Collections.emptyList(), parallelism, listingPool);
+    }
 
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
+    /** Boundaries which split the keys of v1 sha256 cbor and raw blocks evenly. Keys of any other form still fall
+     *  into one of the ranges.
+     *
+     * @param parallelism
+     * @return
+     */
+    private List<String> listingBoundaries(int parallelism) {
+        // The first 7 base32 characters of a key cover the cid prefix and the top 3 bits of the hash
+        boolean fine = parallelism > 16;
+        int prefixLength = fine ? 8 : 7;
+        int parts = fine ? 256 : 8;
+        List<String> res = new ArrayList<>();
+        for (Cid.Codec codec : Arrays.asList(Cid.Codec.DagCbor, Cid.Codec.Raw)) {
+            for (int i = 0; i < parts; i++) {
+                byte[] hash = new byte[32];
+                hash[0] = (byte) (i * (256 / parts));
+                res.add(folder + hashToKey(new Cid(1, codec, Multihash.Type.sha2_256, hash)).substring(0, prefixLength));
+            }
         }
+        return res;
     }
 
     public void delete(Multihash hash) {
         try {
             PresignedUrl delUrl = S3Request.preSignDelete(folder + hashToKey(hash), ZonedDateTime.now(), host,
                     region, accessKeyId, secretKey);
-            HttpUtil.delete(delUrl);
+            http.delete(delUrl, writeTimerLog, "delete").join();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public void bulkDelete(List<Multihash> hash) {
-        try {
-            List<String> keys = hash.stream()
-                    .map(h -> folder + hashToKey(h))
-                    .collect(Collectors.toList());
-            S3Request.bulkDelete(keys, ZonedDateTime.now(), host, region, accessKeyId, secretKey,
-                    b -> ArrayOps.bytesToHex(Hash.sha256(b)),
-                    (url, body) -> {
-                        try {
-                            return HttpUtil.post(url, body);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hash) {
+        if (hash.size() > 1000)
+            throw new IllegalStateException("S3 can only delete 1000 keys per request!");
+        Map<String, Multihash> byKey = new HashMap<>();
+        for (Multihash h : hash)
+            byKey.put(folder + hashToKey(h), h);
+        List<Multihash> deleted = new ArrayList<>();
+        // retry any keys which S3 reports it failed to delete once
+        for (int attempt = 0; attempt < 2 && ! byKey.isEmpty(); attempt++) {
+            try {
+                S3Request.BulkDeleteReply reply = S3Request.bulkDelete(new ArrayList<>(byKey.keySet()), ZonedDateTime.now(),
+                        host, region, accessKeyId, secretKey,
+                        b -> ArrayOps.bytesToHex(Hash.sha256(b)),
+                        (url, body) -> http.post(url, body, writeTimerLog, "bulk-delete").join());
+                for (String key : reply.deletedKeys) {
+                    Multihash h = byKey.remove(key);
+                    if (h != null)
+                        deleted.add(h);
+                }
+            } catch (Exception e) {
+                if (attempt == 0)
+                    throw new RuntimeException(e);
+                LOG.log(Level.WARNING, e.getMessage(), e);
+                break;
+            }
         }
+        if (! byKey.isEmpty())
+            LOG.warning("S3 bulk delete failed to delete " + byKey.size() + " of " + hash.size() + " keys: " + byKey.keySet());
+        return deleted;
     }
 
     public static void main(String[] args) throws Exception {
@@ -428,7 +494,10 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
         S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")), BlockStoreProperties.empty(), transactions, new RAMStorage());
         JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
-        s3.collectGarbage(rawPointers);
+        // The write epochs of a concurrent GC only see writes made through this process, not the server's
+        if (a.getBoolean("gc.concurrent", false))
+            throw new IllegalArgumentException("gc.concurrent is only supported by the GC running inside the server!");
+        s3.collectGarbage(rawPointers, a.getInt("gc.delete.parallelism", GarbageCollector.DEFAULT_DELETE_PARALLELISM));
     }
 
     public static void test(String[] args) throws Exception {
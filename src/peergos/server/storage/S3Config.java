@@ -4,6 +4,7 @@ import peergos.server.util.*;
 
 public class S3Config {
     public final String path, bucket, region, accessKey, secretKey, regionEndpoint;
+    public final int listParallelism, maxConnections;
 
     /**
      *
@@ -13,14 +14,23 @@ public class S3Config {
      * @param accessKey The S3 access key
      * @param secretKey The S3 secret key
      * @param regionEndpoint The location of the S3 endpoint e.g. us-east-1.linodeobjects.com
+     * @param listParallelism The number of ranges of the bucket to list concurrently
+     * @param maxConnections The maximum number of concurrent requests to the S3 host
      */
-    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint,
+                    int listParallelism, int maxConnections) {
         this.path = path;
         this.bucket = bucket;
         this.region = region;
         this.accessKey = accessKey;
         this.secretKey = secretKey;
         this.regionEndpoint = regionEndpoint;
+        this.listParallelism = listParallelism;
+        this.maxConnections = maxConnections;
+    }
+
+    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+        this(path, bucket, region, accessKey, secretKey, regionEndpoint, 1, 64);
     }
 
     public String getHost() {
@@ -38,6 +48,8 @@ public class S3Config {
         String accessKey = a.getArg("s3.accessKey", "");
         String secretKey = a.getArg("s3.secretKey", "");
         String regionEndpoint = a.getArg("s3.region.endpoint", bucket + ".amazonaws.com");
-        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint);
+        int listParallelism = a.getInt("s3.list.parallelism", 1);
+        int maxConnections = a.getInt("s3.max-connections", 64);
+        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint, listParallelism, maxConnections);
     }
 }
@@ -0,0 +1,224 @@
+package peergos.server.storage;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A lazy listing of the objects in an S3 bucket, in constant memory.
+ *
+ *  Pages are followed by continuation token, and the next page is fetched in the background while the current one
+ *  is consumed. The keyspace can be split into ranges at a set of boundary keys, which are then listed concurrently.
+ */
+public class S3ObjectListing {
+    private static final Logger LOG = Logger.getGlobal();
+    private static final int QUEUED_PAGES_PER_RANGE = 2;
+    private static final long CONSUMER_TIMEOUT_MINUTES = 10;
+
+    public interface PageFetcher {
+        /**
+         *
+         * @param continuationToken
+         * @param startAfter only list keys after this one, this is ignored if there is a continuation token
+         * @return the next page of the listing
+         */
+        S3Request.ListObjectsReply fetch(Optional<String> continuationToken, Optional<String> startAfter);
+    }
+
+    /** List every object in the bucket, with the keyspace split at the given boundaries into ranges that are listed
+     *  concurrently. The order of the result is only defined if there are no boundaries.
+     *
+     * @param fetcher
+     * @param boundaries strings at which to split the keyspace, which must not be keys themselves
+     * @param parallelism the maximum number of ranges to list concurrently
+     * @param pool the executor used for fetching pages
+     * @return
+     */
+    public static Stream<S3Request.ObjectMetadata> list(PageFetcher fetcher,
+                                                        List<String> boundaries,
+                                                        int parallelism,
+                                                        ExecutorService pool) {
+        if (boundaries.isEmpty() || parallelism <= 1)
+            return stream(new RangeIterator(fetcher, Optional.empty(), Optional.empty(), pool));
+
+        List<String> sorted = boundaries.stream().sorted().distinct().collect(Collectors.toList());
+        List<RangeIterator> ranges = new ArrayList<>();
+        for (int i = 0; i <= sorted.size(); i++) {
+            Optional<String> start = i == 0 ? Optional.empty() : Optional.of(sorted.get(i - 1));
+            Optional<String> end = i == sorted.size() ? Optional.empty() : Optional.of(sorted.get(i));
+            ranges.add(new RangeIterator(fetcher, start, end, pool));
+        }
+        return stream(new MergingIterator(ranges, parallelism));
+    }
+
+    private static <T> Stream<T> stream(Iterator<T> iter) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter, Spliterator.NONNULL), false);
+    }
+
+    /** The objects in the key range (startAfter, endBefore), one page at a time.
+     */
+    private static class RangeIterator implements Iterator<S3Request.ObjectMetadata> {
+        private final PageFetcher fetcher;
+        private final Optional<String> startAfter, endBefore;
+        private final ExecutorService pool;
+        private Iterator<S3Request.ObjectMetadata> page = Collections.emptyIterator();
+        private CompletableFuture<Optional<S3Request.ListObjectsReply>> nextPage;
+        private S3Request.ObjectMetadata next;
+        private boolean started = false;
+
+        public RangeIterator(PageFetcher fetcher,
+                             Optional<String> startAfter,
+                             Optional<String> endBefore,
+                             ExecutorService pool) {
+            this.fetcher = fetcher;
+            this.startAfter = startAfter;
+            this.endBefore = endBefore;
+            this.pool = pool;
+        }
+
+        private CompletableFuture<Optional<S3Request.ListObjectsReply>> fetch(Optional<String> continuationToken,
+                                                                             Optional<String> startAfter) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Optional.of(fetcher.fetch(continuationToken, startAfter));
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, e.getMessage(), e);
+                    return Optional.empty();
+                }
+            }, pool);
+        }
+
+        private boolean isPastEnd(String key) {
+            return endBefore.isPresent() && key.compareTo(endBefore.get()) >= 0;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (! started) {
+                started = true;
+                nextPage = fetch(Optional.empty(), startAfter);
+            }
+            while (next == null) {
+                if (page.hasNext()) {
+                    S3Request.ObjectMetadata obj = page.next();
+                    if (isPastEnd(obj.key)) {
+                        page = Collections.emptyIterator();
+                        nextPage = null;
+                        return false;
+                    }
+                    if (obj.key.endsWith("/")) {
+                        LOG.fine(" - " + obj.key + "  " + "(directory)");
+                        continue;
+                    }
+                    next = obj;
+                    continue;
+                }
+                if (nextPage == null)
+                    return false;
+                Optional<S3Request.ListObjectsReply> reply = nextPage.join();
+                if (! reply.isPresent()) {
+                    nextPage = null;
+                    return false;
+                }
+                S3Request.ListObjectsReply result = reply.get();
+                List<S3Request.ObjectMetadata> objects = result.objects;
+                boolean reachedEnd = ! objects.isEmpty() && isPastEnd(objects.get(objects.size() - 1).key);
+                // start fetching the next page before processing this one
+                nextPage = result.isTruncated && ! reachedEnd && result.continuationToken.isPresent() ?
+                        fetch(result.continuationToken, Optional.empty()) :
+                        null;
+                page = objects.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public S3Request.ObjectMetadata next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            S3Request.ObjectMetadata res = next;
+            next = null;
+            return res;
+        }
+    }
+
+    /** Drains several ranges concurrently into a bounded queue.
+     */
+    private static class MergingIterator implements Iterator<S3Request.ObjectMetadata> {
+        private static final List<S3Request.ObjectMetadata> END = Collections.emptyList();
+
+        private final BlockingQueue<List<S3Request.ObjectMetadata>> queue;
+        private final int nRanges;
+        private int finishedRanges = 0;
+        private Iterator<S3Request.ObjectMetadata> current = Collections.emptyIterator();
+
+        public MergingIterator(List<RangeIterator> ranges, int parallelism) {
+            this.nRanges = ranges.size();
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, parallelism * QUEUED_PAGES_PER_RANGE));
+            ExecutorService drainers = Executors.newFixedThreadPool(Math.min(parallelism, nRanges), r -> {
+                Thread t = new Thread(r, "S3 listing");
+                t.setDaemon(true);
+                return t;
+            });
+            for (RangeIterator range : ranges)
+                drainers.submit(() -> drain(range));
+            drainers.shutdown();
+        }
+
+        private void drain(RangeIterator range) {
+            try {
+                List<S3Request.ObjectMetadata> batch = new ArrayList<>();
+                while (range.hasNext()) {
+                    batch.add(range.next());
+                    if (batch.size() >= 1_000) {
+                        if (! offer(batch))
+                            return;
+                        batch = new ArrayList<>();
+                    }
+                }
+                if (! batch.isEmpty() && ! offer(batch))
+                    return;
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, e.getMessage(), e);
+            }
+            offer(END);
+        }
+
+        /**
+         *
+         * @return false if the consumer has abandoned the listing
+         */
+        private boolean offer(List<S3Request.ObjectMetadata> batch) {
+            try {
+                return queue.offer(batch, CONSUMER_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (! current.hasNext()) {
+                if (finishedRanges == nRanges)
+                    return false;
+                try {
+                    List<S3Request.ObjectMetadata> batch = queue.take();
+                    if (batch == END)
+                        finishedRanges++;
+                    else
+                        current = batch.iterator();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public S3Request.ObjectMetadata next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+    }
+}
@@ -14,6 +14,7 @@ import java.io.*;
 import java.net.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -221,12 +222,25 @@ public class S3Request {
                                            String region,
                                            String accessKeyId,
                                            String s3SecretKey) {
+        return preSignList(prefix, maxKeys, continuationToken, Optional.empty(), now, host, region, accessKeyId, s3SecretKey);
+    }
+
+    public static PresignedUrl preSignList(String prefix,
+                                           int maxKeys,
+                                           Optional<String> continuationToken,
+                                           Optional<String> startAfter,
+                                           ZonedDateTime now,
+                                           String host,
+                                           String region,
+                                           String accessKeyId,
+                                           String s3SecretKey) {
         Map<String, String> extraQueryParameters = new LinkedHashMap<>();
         extraQueryParameters.put("list-type", "2");
         extraQueryParameters.put("max-keys", "" + maxKeys);
         extraQueryParameters.put("fetch-owner", "false");
         extraQueryParameters.put("prefix", prefix);
         continuationToken.ifPresent(t -> extraQueryParameters.put("continuation-token", t));
+        startAfter.ifPresent(k -> extraQueryParameters.put("start-after", k));
 
         S3Request policy = new S3Request("GET", host, "", UNSIGNED, Optional.empty(), false, true,
                 extraQueryParameters, Collections.emptyMap(), accessKeyId, region, now);
@@ -255,7 +269,20 @@ public class S3Request {
                                                String accessKeyId,
                                                String s3SecretKey,
                                                Function<PresignedUrl, byte[]> getter) {
-        PresignedUrl listReq = preSignList(prefix, maxKeys, continuationToken, now, host, region, accessKeyId, s3SecretKey);
+        return listObjects(prefix, maxKeys, continuationToken, Optional.empty(), now, host, region, accessKeyId, s3SecretKey, getter);
+    }
+
+    public static ListObjectsReply listObjects(String prefix,
+                                               int maxKeys,
+                                               Optional<String> continuationToken,
+                                               Optional<String> startAfter,
+                                               ZonedDateTime now,
+                                               String host,
+                                               String region,
+                                               String accessKeyId,
+                                               String s3SecretKey,
+                                               Function<PresignedUrl, byte[]> getter) {
+        PresignedUrl listReq = preSignList(prefix, maxKeys, continuationToken, startAfter, now, host, region, accessKeyId, s3SecretKey);
         try {
             Document xml = builder.get().parse(new ByteArrayInputStream(getter.apply(listReq)));
             List<ObjectMetadata> res = new ArrayList<>();
@@ -346,12 +373,29 @@ public class S3Request {
         String stringToSign = policy.stringToSign();
         String shortDate = S3Request.asAwsShortDate(policy.date);
 
+        byte[] signingKey = getSigningKey(shortDate, policy.region, s3SecretKey);
+
+        return ArrayOps.bytesToHex(hmacSha256(signingKey, stringToSign.getBytes()));
+    }
+
+    private static final Map<String, byte[]> signingKeys = new ConcurrentHashMap<>();
+
+    /** The signing key only depends on the day, region and secret, so cache it.
+     */
+    private static byte[] getSigningKey(String shortDate, String region, String s3SecretKey) {
+        String cacheKey = shortDate + "/" + region + "/" + ArrayOps.bytesToHex(Hash.sha256(s3SecretKey.getBytes()));
+        byte[] cached = signingKeys.get(cacheKey);
+        if (cached != null)
+            return cached;
         byte[] dateKey = hmacSha256("AWS4" + s3SecretKey, shortDate.getBytes());
-        byte[] dateRegionKey = hmacSha256(dateKey, policy.region.getBytes());
+        byte[] dateRegionKey = hmacSha256(dateKey, region.getBytes());
         byte[] dateRegionServiceKey = hmacSha256(dateRegionKey, "s3".getBytes());
         byte[] signingKey = hmacSha256(dateRegionServiceKey, "aws4_request".getBytes());
-
-        return ArrayOps.bytesToHex(hmacSha256(signingKey, stringToSign.getBytes()));
+        // keys from previous days are never used again
+        if (signingKeys.size() > 16)
+            signingKeys.clear();
+        signingKeys.put(cacheKey, signingKey);
+        return signingKey;
     }
 
     public String stringToSign() {
@@ -0,0 +1,198 @@
+package peergos.server.storage;
+
+import io.prometheus.client.*;
+import peergos.shared.hamt.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Memoises the recursive size of every block it sizes, in memory, and of every cbor block in a persistent table. Raw
+ *  leaves are not persisted, as their size is a single cheap lookup and there are far more of them. Blocks are
+ *  immutable, so the recursive size of a block never changes, as long as none of the blocks under it are missing
+ *  locally. Entries for blocks which are garbage collected must be dropped with {@link #invalidate(List)}. After an
+ *  edit, only the blocks on the path from the new root to the changed data are new, so sizing the new root, or the
+ *  change from the old root, only fetches those blocks.
+ *
+ *  The graph is still walked a level at a time, with bulk gets of at most DEFAULT_MAX_BLOCKS_PER_FETCH of the
+ *  unknown cbor blocks in a level at once.
+ */
+public class SizeIndexingStorage extends DelegatingStorage {
+    public static final int DEFAULT_MEMORY_ENTRIES = 100_000;
+
+    private static final Counter hits = Counter.build()
+            .name("recursive_size_index_hits")
+            .help("Number of recursive block sizes found in the size index")
+            .register();
+    private static final Counter misses = Counter.build()
+            .name("recursive_size_index_misses")
+            .help("Number of recursive block sizes which had to be calculated")
+            .register();
+
+    private final ContentAddressedStorage target;
+    private final JdbcRecursiveSizes persistent;
+    private final Map<Multihash, Long> recent;
+
+    public SizeIndexingStorage(ContentAddressedStorage target, JdbcRecursiveSizes persistent, int memoryEntries) {
+        super(target);
+        this.target = target;
+        this.persistent = persistent;
+        this.recent = Collections.synchronizedMap(new LRUCache<>(memoryEntries));
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return target.directToOrigin();
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
+        return getRecursiveSizes(Collections.singletonList(block))
+                .thenApply(sizes -> sizes.get(0).left);
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(List<Multihash> level) {
+        return getRecursiveSizes(level)
+                .thenApply(sizes -> sizes.stream().mapToLong(s -> s.left).sum());
+    }
+
+    /** Unlike a recursive size, a change in size is only correct if neither root has any missing blocks, so this
+     *  fails rather than return an answer that ignores them.
+     */
+    @Override
+    public CompletableFuture<Long> getChangeInContainedSize(Multihash original, Multihash updated) {
+        return getRecursiveSizes(Arrays.asList(original, updated))
+                .thenApply(sizes -> {
+                    if (! sizes.get(0).right)
+                        throw new IllegalStateException("Missing blocks under original root " + original);
+                    if (! sizes.get(1).right)
+                        throw new IllegalStateException("Missing blocks under updated root " + updated);
+                    return sizes.get(1).left - sizes.get(0).left;
+                });
+    }
+
+    private Map<Multihash, Long> lookup(Collection<Multihash> blocks) {
+        Map<Multihash, Long> res = new HashMap<>();
+        List<Multihash> notInMemory = new ArrayList<>();
+        for (Multihash block : blocks) {
+            Long size = recent.get(block);
+            if (size != null)
+                res.put(block, size);
+            else
+                notInMemory.add(block);
+        }
+        Map<Multihash, Long> stored = persistent.getSizes(notInMemory);
+        recent.putAll(stored);
+        res.putAll(stored);
+        return res;
+    }
+
+    private static boolean isRaw(Multihash m) {
+        return m instanceof Cid && ((Cid) m).codec == Cid.Codec.Raw;
+    }
+
+    private void record(Map<Multihash, Long> sizes) {
+        recent.putAll(sizes);
+        persistent.setSizes(sizes.entrySet().stream()
+                .filter(e -> ! isRaw(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    /** Drop the recorded sizes of these blocks, e.g. after they have been deleted from the local store
+     *
+     * @param blocks
+     */
+    public void invalidate(List<Multihash> blocks) {
+        blocks.forEach(recent::remove);
+        persistent.removeSizes(blocks);
+    }
+
+    /**
+     *
+     * @param blocks
+     * @return the recursive size of each block, in order, where missing blocks have size 0, and whether none of the
+     * blocks it contains were missing
+     */
+    private CompletableFuture<List<Pair<Long, Boolean>>> getRecursiveSizes(List<Multihash> blocks) {
+        Set<Multihash> distinct = blocks.stream()
+                .filter(m -> ! m.isIdentity())
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        Map<Multihash, Pair<Long, Boolean>> known = new HashMap<>();
+        lookup(distinct).forEach((m, size) -> known.put(m, new Pair<>(size, true)));
+        hits.inc(known.size());
+        misses.inc(distinct.size() - known.size());
+        List<Multihash> raw = distinct.stream()
+                .filter(m -> ! known.containsKey(m))
+                .filter(SizeIndexingStorage::isRaw)
+                .collect(Collectors.toList());
+        List<Multihash> cbor = distinct.stream()
+                .filter(m -> ! known.containsKey(m))
+                .filter(m -> ! isRaw(m))
+                .collect(Collectors.toList());
+        Function<Multihash, Pair<Long, Boolean>> sizeOf = m -> m.isIdentity() ? new Pair<>(0L, true) : known.get(m);
+        if (raw.isEmpty() && cbor.isEmpty())
+            return Futures.of(blocks.stream().map(sizeOf).collect(Collectors.toList()));
+
+        int maxBlocksPerFetch = ChampTraversal.DEFAULT_MAX_BLOCKS_PER_FETCH;
+        List<Optional<Integer>> rawSizeList = new ArrayList<>();
+        CompletableFuture<List<Optional<Integer>>> rawSizes = Futures.reduceAll(ArrayOps.group(raw, maxBlocksPerFetch),
+                rawSizeList,
+                (acc, batch) -> Futures.combineAllInOrder(batch.stream()
+                        .map(this::getSize)
+                        .collect(Collectors.toList()))
+                        .thenApply(sizes -> {
+                            acc.addAll(sizes);
+                            return acc;
+                        }),
+                (a, b) -> a);
+        // only the size and links of each block are kept, so the data of a batch is dropped as soon as it is parsed
+        List<Optional<Integer>> blockSizes = new ArrayList<>();
+        List<List<Multihash>> children = new ArrayList<>();
+        CompletableFuture<Boolean> fetched = Futures.reduceAll(ArrayOps.group(cbor, maxBlocksPerFetch), true,
+                (b, batch) -> getAll(batch).thenApply(found -> {
+                    for (Optional<byte[]> block : found) {
+                        blockSizes.add(block.map(d -> d.length));
+                        children.add(block.map(d -> CborObject.fromByteArray(d).links()).orElse(Collections.emptyList()));
+                    }
+                    return true;
+                }),
+                (a, b) -> a && b);
+        return fetched.thenCompose(x -> {
+            List<Multihash> nextLevel = children.stream()
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+            return rawSizes.thenCompose(sizes -> getRecursiveSizes(nextLevel).thenApply(childSizes -> {
+                Map<Multihash, Long> complete = new HashMap<>();
+                for (int i=0; i < raw.size(); i++) {
+                    Optional<Integer> size = sizes.get(i);
+                    known.put(raw.get(i), new Pair<>((long) size.orElse(0), size.isPresent()));
+                    if (size.isPresent())
+                        complete.put(raw.get(i), (long) size.get());
+                }
+                int child = 0;
+                for (int i=0; i < cbor.size(); i++) {
+                    Optional<Integer> blockSize = blockSizes.get(i);
+                    long total = blockSize.orElse(0);
+                    boolean isComplete = blockSize.isPresent();
+                    for (int c=0; c < children.get(i).size(); c++) {
+                        Pair<Long, Boolean> childSize = childSizes.get(child++);
+                        total += childSize.left;
+                        isComplete &= childSize.right;
+                    }
+                    known.put(cbor.get(i), new Pair<>(total, isComplete));
+                    if (isComplete)
+                        complete.put(cbor.get(i), total);
+                }
+                record(complete);
+                return blocks.stream().map(sizeOf).collect(Collectors.toList());
+            }));
+        });
+    }
+}
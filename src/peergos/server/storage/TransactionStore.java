@@ -12,6 +12,11 @@ public interface TransactionStore {
 
     void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner);
 
+    default void addBlocks(List<Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        for (Multihash hash : hashes)
+            addBlock(hash, tid, owner);
+    }
+
     void closeTransaction(PublicKeyHash owner, TransactionId tid);
 
     List<Multihash> getOpenTransactionBlocks();
@@ -14,6 +14,8 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
 
     private final TransactionStore transactions;
     private final DeletableContentAddressedStorage target;
+    // every write to the target goes through us, so we can track them for a concurrent GC
+    private final WriteEpochs writeEpochs = new WriteEpochs();
 
     public TransactionalIpfs(DeletableContentAddressedStorage target, TransactionStore transactions) {
         super(target);
@@ -47,6 +49,8 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
             Multihash hash = new Multihash(Multihash.Type.sha2_256, Arrays.copyOfRange(signedHash, signedHash.length - 32, signedHash.length));
             Cid cid = new Cid(1, Cid.Codec.DagCbor, hash.type, hash.getHash());
             transactions.addBlock(cid, tid, owner);
+            // once recorded, no GC delete of this block can start until the epoch ends
+            writeEpochs.write(cid, () -> true);
         }
         return target.put(owner, writer, signedHashes, blocks, tid);
     }
@@ -62,6 +66,8 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
             Multihash hash = new Multihash(Multihash.Type.sha2_256, Arrays.copyOfRange(signedHash, signedHash.length - 32, signedHash.length));
             Cid cid = new Cid(1, Cid.Codec.Raw, hash.type, hash.getHash());
             transactions.addBlock(cid, tid, owner);
+            // once recorded, no GC delete of this block can start until the epoch ends
+            writeEpochs.write(cid, () -> true);
         }
         return target.putRaw(owner, writer, signedHashes, blocks, tid, progressConsumer);
     }
@@ -71,13 +77,38 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
         return target.getAllBlockHashes();
     }
 
+    @Override
+    public Stream<Pair<Multihash, Integer>> getAllBlockHashesAndSizes() {
+        return target.getAllBlockHashesAndSizes();
+    }
+
     @Override
     public void delete(Multihash hash) {
         target.delete(hash);
     }
 
+    @Override
+    public List<Multihash> bulkDelete(List<Multihash> hashes) {
+        return target.bulkDelete(hashes);
+    }
+
+    @Override
+    public long compact() {
+        return target.compact();
+    }
+
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
         return transactions.getOpenTransactionBlocks();
     }
+
+    @Override
+    public boolean supportsWriteEpochs() {
+        return true;
+    }
+
+    @Override
+    public WriteEpochs.Epoch startWriteEpoch() {
+        return writeEpochs.start();
+    }
 }
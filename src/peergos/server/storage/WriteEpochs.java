@@ -0,0 +1,131 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Tracks the blocks written to a block store while a concurrent garbage collection is running.
+ *
+ *  A block store must add a block to its transaction store before calling write, so that every block is either
+ *  in an open transaction when an epoch starts, or recorded in that epoch. A write of a block waits for any GC delete
+ *  of the same block that is in progress, but only while an epoch is active.
+ */
+public class WriteEpochs {
+    private static final int STRIPES = 256;
+
+    private final Object[] locks = new Object[STRIPES];
+    private volatile Epoch current = null;
+    private long generation = 0;
+
+    public WriteEpochs() {
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    private Object lockFor(Multihash h) {
+        return locks[(h.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    /** Perform the write of a block, recording it in the current epoch if there is one.
+     *
+     * @param h
+     * @param write
+     * @param <T>
+     * @return the result of the write
+     */
+    public <T> T write(Multihash h, Supplier<T> write) {
+        Epoch epoch = current;
+        if (epoch == null)
+            return write.get();
+        Object lock = lockFor(h);
+        synchronized (lock) {
+            try {
+                while (epoch.deleting.contains(h))
+                    lock.wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            epoch.written.add(h);
+        }
+        // Once recorded, no delete of this block can start until the epoch is closed
+        return write.get();
+    }
+
+    public synchronized Epoch start() {
+        if (current != null)
+            throw new IllegalStateException("A write epoch is already in progress!");
+        current = new Epoch(++generation);
+        return current;
+    }
+
+    public class Epoch implements AutoCloseable {
+        public final long generation;
+        private final Set<Multihash> written = ConcurrentHashMap.newKeySet();
+        private final Set<Multihash> deleting = ConcurrentHashMap.newKeySet();
+
+        private Epoch(long generation) {
+            this.generation = generation;
+        }
+
+        public boolean wasWritten(Multihash h) {
+            return written.contains(h);
+        }
+
+        public int writeCount() {
+            return written.size();
+        }
+
+        /** Delete a block unless it has been written during this epoch.
+         *
+         * @param h
+         * @param delete
+         * @return whether the block was deleted
+         */
+        public boolean deleteIfNotWritten(Multihash h, Runnable delete) {
+            return ! deleteIfNotWritten(Collections.singletonList(h), b -> {
+                delete.run();
+                return b;
+            }).isEmpty();
+        }
+
+        /** Delete the blocks in a batch which haven't been written during this epoch. Writes of the deleted blocks
+         *  wait until the delete has finished.
+         *
+         * @param hashes
+         * @param delete deletes a batch, and returns the blocks which were actually deleted
+         * @return the blocks which were deleted
+         */
+        public List<Multihash> deleteIfNotWritten(List<Multihash> hashes, Function<List<Multihash>, List<Multihash>> delete) {
+            List<Multihash> claimed = new ArrayList<>();
+            for (Multihash h : hashes) {
+                synchronized (lockFor(h)) {
+                    if (! written.contains(h) && deleting.add(h))
+                        claimed.add(h);
+                }
+            }
+            try {
+                if (claimed.isEmpty())
+                    return claimed;
+                return delete.apply(claimed);
+            } finally {
+                for (Multihash h : claimed) {
+                    Object lock = lockFor(h);
+                    synchronized (lock) {
+                        deleting.remove(h);
+                        lock.notifyAll();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (WriteEpochs.this) {
+                if (current == this)
+                    current = null;
+            }
+        }
+    }
+}
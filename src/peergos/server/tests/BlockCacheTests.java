@@ -0,0 +1,136 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class BlockCacheTests {
+
+    private static Multihash key(int i) {
+        return new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(Integer.toString(i).getBytes()));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        BlockCache cache = new BlockCache(1024 * 1024);
+        for (int i = 0; i < 10_000; i++)
+            cache.put(key(i), new byte[1000]);
+        BlockCache.Stats stats = cache.stats();
+        Assert.assertTrue("Size " + stats.sizeInBytes, stats.sizeInBytes <= 1024 * 1024);
+        Assert.assertTrue(stats.blockCount > 500);
+    }
+
+    @Test
+    public void frequentBlocksSurviveScan() {
+        BlockCache cache = new BlockCache(1024 * 1024);
+        int hot = 200;
+        for (int round = 0; round < 5; round++)
+            for (int i = 0; i < hot; i++) {
+                if (! cache.get(key(i)).isPresent())
+                    cache.put(key(i), new byte[1000]);
+            }
+        // a scan of many blocks that are each used once
+        for (int i = hot; i < 50_000; i++) {
+            cache.get(key(i));
+            cache.put(key(i), new byte[1000]);
+        }
+        long resident = IntStream.range(0, hot).filter(i -> cache.get(key(i)).isPresent()).count();
+        Assert.assertTrue("Resident hot blocks " + resident, resident > hot * 9 / 10);
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        BlockCache cache = new BlockCache(256 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            int seed = t;
+            tasks.add(pool.submit(() -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < 100_000; i++) {
+                    int k = (int) Math.abs(r.nextGaussian() * 500);
+                    Optional<byte[]> value = cache.get(key(k));
+                    if (value.isPresent())
+                        Assert.assertEquals(k % 1000 + 1, value.get().length);
+                    else
+                        cache.put(key(k), new byte[k % 1000 + 1]);
+                }
+            }));
+        }
+        for (Future<?> task : tasks)
+            task.get();
+        pool.shutdown();
+        BlockCache.Stats stats = cache.stats();
+        Assert.assertTrue(stats.sizeInBytes <= 256 * 1024);
+        Assert.assertEquals(16 * 100_000, stats.hits + stats.misses);
+    }
+
+    @Test
+    public void concurrentRequestsAreCoalesced() {
+        RAMStorage ram = new RAMStorage();
+        AtomicInteger requests = new AtomicInteger();
+        CompletableFuture<Optional<CborObject>> slow = new CompletableFuture<>();
+        ContentAddressedStorage target = new DelegatingStorage(ram) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+                requests.incrementAndGet();
+                return slow;
+            }
+        };
+        CachingStorage caching = new CachingStorage(target, 1024 * 1024, 50 * 1024);
+        Multihash h = key(1);
+        List<CompletableFuture<Optional<CborObject>>> results = IntStream.range(0, 10)
+                .mapToObj(i -> caching.get(h))
+                .collect(Collectors.toList());
+        Assert.assertEquals(1, requests.get());
+        CborObject value = new CborObject.CborString("hello");
+        slow.complete(Optional.of(value));
+        for (CompletableFuture<Optional<CborObject>> result : results)
+            Assert.assertEquals(value, result.join().get());
+        // now cached
+        Assert.assertEquals(value, caching.get(h).join().get());
+        Assert.assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void synchronousFailureIsNotCoalesced() {
+        RAMStorage ram = new RAMStorage();
+        AtomicInteger requests = new AtomicInteger();
+        CborObject value = new CborObject.CborString("hello");
+        ContentAddressedStorage target = new DelegatingStorage(ram) {
+            @Override
+            public ContentAddressedStorage directToOrigin() {
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+                if (requests.incrementAndGet() == 1)
+                    throw new IllegalStateException("Unavailable");
+                return Futures.of(Optional.of(value));
+            }
+        };
+        CachingStorage caching = new CachingStorage(target, 1024 * 1024, 50 * 1024);
+        Multihash h = key(1);
+        try {
+            caching.get(h).join();
+            Assert.fail();
+        } catch (CompletionException expected) {}
+        // the failed request must not be left in flight
+        Assert.assertEquals(value, caching.get(h).join().get());
+        Assert.assertEquals(2, requests.get());
+    }
+}
@@ -15,6 +15,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.nio.file.*;
@@ -348,6 +349,100 @@ public class ChampTests {
         }
     }
 
+    @Test
+    public void bulkBuild() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        int bitWidth = 5;
+        int maxCollisions = 3;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(28);
+
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+
+        for (int prefixLen = 0; prefixLen < 5; prefixLen++)
+            for (int nKeys : Arrays.asList(0, 1, 3, 4, 10, 100, 500)) {
+                byte[] prefix = new byte[prefixLen];
+                r.nextBytes(prefix);
+                List<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> mappings = new ArrayList<>();
+                for (int i = 0; i < nKeys; i++)
+                    mappings.add(new Pair<>(new ByteArrayWrapper(randomKey(prefix, 5, r)),
+                            Optional.of(new CborObject.CborMerkleLink(randomHash.get()))));
+
+                Champ<CborObject.CborMerkleLink> current = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+                Multihash currentHash = storage.put(user.publicKeyHash, user, current.serialize(), writeHasher, tid).get();
+                for (Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> mapping : mappings) {
+                    Pair<Champ<CborObject.CborMerkleLink>, Multihash> updated = current.put(user.publicKeyHash, user, mapping.left,
+                            hasher.apply(mapping.left).join(), 0, Optional.empty(), mapping.right,
+                            bitWidth, maxCollisions, hasher, tid, storage, writeHasher, currentHash).get();
+                    current = updated.left;
+                    currentHash = updated.right;
+                }
+
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> built = Champ.build(user.publicKeyHash, user, mappings,
+                        bitWidth, maxCollisions, hasher, c -> (CborObject.CborMerkleLink)c, tid, storage, writeHasher).get();
+                if (! built.right.equals(currentHash))
+                    throw new IllegalStateException("Bulk build differs from sequential puts!");
+            }
+    }
+
+    @Test
+    public void batchMutations() throws Exception {
+        RAMStorage sequentialStorage = new RAMStorage();
+        RAMStorage batchStorage = new RAMStorage();
+        SigningPrivateKeyAndPublicHash user = createUser(sequentialStorage, crypto);
+        Random r = new Random(28);
+        TransactionId tid = sequentialStorage.startTransaction(user.publicKeyHash).get();
+        Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink)c;
+
+        ChampWrapper<CborObject.CborMerkleLink> sequential = ChampWrapper.create(user.publicKeyHash, user, hasher, tid,
+                sequentialStorage, writeHasher, fromCbor).get();
+        TransactionId batchTid = batchStorage.startTransaction(user.publicKeyHash).get();
+        ChampWrapper<CborObject.CborMerkleLink> batch = ChampWrapper.create(user.publicKeyHash, user, hasher, batchTid,
+                batchStorage, writeHasher, fromCbor).get();
+
+        Map<ByteArrayWrapper, CborObject.CborMerkleLink> state = new HashMap<>();
+        List<ImmutableTree.Mutation<CborObject.CborMerkleLink>> mutations = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] key = randomKey(new byte[0], 32, r);
+            CborObject.CborMerkleLink value = new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, randomKey(new byte[0], 32, r)));
+            sequential.put(user.publicKeyHash, user, key, Optional.empty(), value, tid).get();
+            mutations.add(ImmutableTree.Mutation.put(key, Optional.empty(), value));
+            state.put(new ByteArrayWrapper(key), value);
+        }
+        // remove some of the keys again
+        for (ByteArrayWrapper key : new ArrayList<>(state.keySet()).subList(0, 100)) {
+            CborObject.CborMerkleLink existing = state.remove(key);
+            sequential.remove(user.publicKeyHash, user, key.data, Optional.of(existing), tid).get();
+            mutations.add(ImmutableTree.Mutation.remove(key.data, Optional.of(existing)));
+        }
+
+        Multihash batchRoot = batch.applyBatch(user.publicKeyHash, user, mutations, batchTid).get();
+        if (! batchRoot.equals(sequential.getRoot()))
+            throw new IllegalStateException("Batch result differs from sequential mutations!");
+        if (batchStorage.size() >= sequentialStorage.size())
+            throw new IllegalStateException("Batch didn't reduce block writes!");
+
+        // check every mapping in a tree loaded from the committed blocks
+        ChampWrapper<CborObject.CborMerkleLink> reloaded = ChampWrapper.create(batchRoot, hasher, batchStorage, writeHasher, fromCbor).get();
+        for (Map.Entry<ByteArrayWrapper, CborObject.CborMerkleLink> e : state.entrySet())
+            if (! reloaded.get(e.getKey().data).get().equals(Optional.of(e.getValue())))
+                throw new IllegalStateException("Incorrect state!");
+
+        // a failed CAS aborts the whole batch
+        ByteArrayWrapper present = state.keySet().iterator().next();
+        try {
+            batch.applyBatch(user.publicKeyHash, user, Arrays.asList(ImmutableTree.Mutation.remove(present.data, Optional.empty())), batchTid).get();
+            throw new IllegalStateException("Batch with incorrect existing value succeeded!");
+        } catch (ExecutionException expected) {}
+        if (! batch.getRoot().equals(batchRoot))
+            throw new IllegalStateException("Failed batch changed the root!");
+    }
+
     private static byte[] randomKey(byte[] startingWith, int extraBytes, Random r) {
         byte[] suffix = new byte[extraBytes];
         r.nextBytes(suffix);
@@ -0,0 +1,107 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.io.*;
+import java.util.*;
+
+public class ErasureTests {
+    private static final int[][] PARAMETERS = {{40, 10}, {10, 5}, {5, 5}, {20, 40}, {80, 20}};
+
+    /** The polynomial implementation which the table driven one replaced
+     */
+    private static byte[][] referenceSplit(byte[] input, int originalBlobs, int allowedFailures) {
+        GaloisField f = new GaloisField256();
+        int n = originalBlobs + allowedFailures * 2;
+        int encodeSize = (f.size() / n) * n;
+        int inputSize = encodeSize * originalBlobs / n;
+        int symbolSize = inputSize / originalBlobs;
+        int[] ints = Erasure.convert(input, f);
+        ByteArrayOutputStream[] bouts = new ByteArrayOutputStream[n];
+        for (int i=0; i < n; i++)
+            bouts[i] = new ByteArrayOutputStream();
+        for (int i=0; i < ints.length; i += inputSize) {
+            byte[] encoded = Erasure.convert(GaloisPolynomial.encode(Arrays.copyOfRange(ints, i, i + inputSize),
+                    encodeSize - inputSize, f), f);
+            for (int j=0; j < n; j++)
+                bouts[j].write(encoded, j * symbolSize, symbolSize);
+        }
+        byte[][] res = new byte[n][];
+        for (int i=0; i < n; i++)
+            res[i] = bouts[i].toByteArray();
+        return res;
+    }
+
+    @Test
+    public void sameFragmentsAsPolynomialEncoding() {
+        Random r = new Random(1);
+        for (int[] params : PARAMETERS) {
+            for (int length : new int[]{0, 1, 159, 160, 161, 100_000}) {
+                byte[] input = new byte[length];
+                r.nextBytes(input);
+                byte[][] expected = referenceSplit(input, params[0], params[1]);
+                byte[][] actual = Erasure.split(input, params[0], params[1]);
+                Assert.assertEquals(expected.length, actual.length);
+                for (int i=0; i < expected.length; i++)
+                    Assert.assertArrayEquals("fragment " + i + " of " + Arrays.toString(params) + " length " + length,
+                            expected[i], actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void recoverMissingFragments() {
+        Random r = new Random(2);
+        for (int[] params : PARAMETERS) {
+            byte[] input = new byte[200_001];
+            r.nextBytes(input);
+            byte[][] fragments = Erasure.split(input, params[0], params[1]);
+            for (int nMissing = 1; nMissing <= 2 * params[1]; nMissing++) {
+                byte[][] received = fragments.clone();
+                List<Integer> indices = new ArrayList<>();
+                for (int i=0; i < received.length; i++)
+                    indices.add(i);
+                Collections.shuffle(indices, r);
+                for (int i=0; i < nMissing; i++)
+                    received[indices.get(i)] = i % 2 == 0 ? null : new byte[0];
+                byte[] recovered = Erasure.recombine(received, input.length, params[0], params[1]);
+                Assert.assertArrayEquals(Arrays.toString(params) + " missing " + nMissing, input, recovered);
+            }
+        }
+    }
+
+    @Test
+    public void emptyInput() {
+        for (int[] params : PARAMETERS) {
+            byte[][] fragments = Erasure.split(new byte[0], params[0], params[1]);
+            Assert.assertArrayEquals(new byte[0], Erasure.recombine(fragments, 0, params[0], params[1]));
+            fragments[0] = null;
+            Assert.assertArrayEquals(new byte[0], Erasure.recombine(fragments, 0, params[0], params[1]));
+        }
+    }
+
+    @Test
+    public void tooManyMissingFragments() {
+        byte[] input = new byte[10_000];
+        new Random(3).nextBytes(input);
+        byte[][] fragments = Erasure.split(input, 40, 10);
+        for (int i=0; i < 21; i++)
+            fragments[i] = null;
+        try {
+            Erasure.recombine(fragments, input.length, 40, 10);
+            Assert.fail("Recovered with too many missing fragments");
+        } catch (IllegalStateException expected) {}
+    }
+
+    @Test
+    public void correctCorruptFragment() {
+        byte[] input = new byte[10_000];
+        new Random(4).nextBytes(input);
+        byte[][] fragments = Erasure.split(input, 40, 10);
+        fragments[0] = null;
+        fragments[3] = new byte[fragments[3].length];
+        byte[] recovered = Erasure.recombine(fragments, input.length, 40, 10);
+        Assert.assertArrayEquals(input, recovered);
+    }
+}
@@ -0,0 +1,369 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.mutable.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+public class GarbageCollectorTests {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Random random = new Random(42);
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static Multihash putCbor(RAMStorage storage, PublicKeyHash owner, TransactionId tid, List<Multihash> links) {
+        CborObject.CborList block = new CborObject.CborList(Stream.concat(
+                links.stream().map(CborObject.CborMerkleLink::new),
+                Stream.of(new CborObject.CborByteArray(randomBytes(16))))
+                .collect(Collectors.toList()));
+        return storage.put(owner, owner, new byte[0], block.serialize(), tid).join();
+    }
+
+    private static Multihash putRaw(RAMStorage storage, PublicKeyHash owner, TransactionId tid) {
+        return storage.putRaw(owner, owner, new byte[0], randomBytes(1024), tid, x -> {}).join();
+    }
+
+    @Test
+    public void blockHashIndex() {
+        BlockHashIndex index = new BlockHashIndex(16);
+        List<Multihash> hashes = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Multihash h = i % 3 == 0 ?
+                    new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, randomBytes(32)) :
+                    i % 3 == 1 ?
+                            new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, randomBytes(32)) :
+                            new Multihash(Multihash.Type.sha2_256, randomBytes(32));
+            hashes.add(h);
+            index.add(h);
+        }
+        Assert.assertEquals(hashes.size(), index.size());
+        for (int i = 0; i < hashes.size(); i += 2)
+            Assert.assertTrue(index.mark(hashes.get(i)));
+        Assert.assertFalse("Second mark", index.mark(hashes.get(0)));
+        Assert.assertFalse("Absent", index.mark(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, randomBytes(32))));
+
+        Set<Multihash> unmarked = new HashSet<>();
+        index.forEachUnmarked(unmarked::add);
+        Set<Multihash> expected = IntStream.range(0, hashes.size())
+                .filter(i -> i % 2 == 1)
+                .mapToObj(hashes::get)
+                .collect(Collectors.toSet());
+        Assert.assertEquals(expected, unmarked);
+    }
+
+    @Test
+    public void deletesOnlyUnreachable() {
+        RAMStorage storage = new RAMStorage();
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash sharedLeaf = putRaw(storage, writerHash, tid);
+        Multihash shared = putCbor(storage, writerHash, tid, Arrays.asList(sharedLeaf));
+        Multihash leftLeaf = putRaw(storage, writerHash, tid);
+        Multihash left = putCbor(storage, writerHash, tid, Arrays.asList(shared, leftLeaf));
+        Multihash right = putCbor(storage, writerHash, tid, Arrays.asList(shared));
+        Multihash root = putCbor(storage, writerHash, tid, Arrays.asList(left, right));
+        Multihash garbageLeaf = putRaw(storage, writerHash, tid);
+        Multihash garbage = putCbor(storage, writerHash, tid, Arrays.asList(garbageLeaf, sharedLeaf));
+        storage.closeTransaction(writerHash, tid).join();
+
+        TransactionId pendingTid = storage.startTransaction(writerHash).join();
+        Multihash pending = putRaw(storage, writerHash, pendingTid);
+
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas.serialize())).join();
+
+        Set<Multihash> reachable = new HashSet<>(Arrays.asList(root, left, leftLeaf, right, shared, sharedLeaf, pending));
+        GarbageCollector.collect(storage, pointers, 2, 2, s -> Futures.of(true));
+
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertEquals(reachable, remaining);
+    }
+
+    @Test
+    public void sweepDeletesInConcurrentBatches() {
+        RAMStorage storage = new RAMStorage();
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash root = putCbor(storage, writerHash, tid, Collections.emptyList());
+        for (int i = 0; i < 2_500; i++)
+            putRaw(storage, writerHash, tid);
+        storage.closeTransaction(writerHash, tid).join();
+
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas.serialize())).join();
+
+        GarbageCollector.collect(storage, pointers, 2, 3, s -> Futures.of(true));
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertEquals(Collections.singleton(root), remaining);
+    }
+
+    @Test
+    public void failedDeleteDoesNotStopItsBatch() {
+        Set<Multihash> undeletable = new HashSet<>();
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public synchronized void delete(Multihash hash) {
+                if (undeletable.contains(hash))
+                    throw new IllegalStateException("Unable to delete " + hash);
+                super.delete(hash);
+            }
+        };
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash root = putCbor(storage, writerHash, tid, Collections.emptyList());
+        List<Multihash> garbage = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            garbage.add(putRaw(storage, writerHash, tid));
+        storage.closeTransaction(writerHash, tid).join();
+        undeletable.add(garbage.get(50));
+
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas.serialize())).join();
+
+        GarbageCollector.collect(storage, pointers, 1, 1, s -> Futures.of(true));
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(root, garbage.get(50))), remaining);
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        BloomFilter filter = BloomFilter.build(10_000, 0.01);
+        List<Multihash> added = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Multihash h = new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, randomBytes(32));
+            added.add(h);
+            filter.add(h);
+        }
+        for (Multihash h : added)
+            Assert.assertTrue(filter.mightContain(h));
+        long falsePositives = IntStream.range(0, 10_000)
+                .filter(i -> filter.mightContain(new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, randomBytes(32))))
+                .count();
+        Assert.assertTrue("False positive rate", falsePositives < 300);
+    }
+
+    @Test
+    public void concurrentCollectionSizesFilterFromReachableCount() {
+        RAMStorage storage = new RAMStorage();
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        // more reachable blocks than the default minimum filter size, with small distinct contents
+        int nodes = 1_200, leavesPerNode = 1_000, garbageCount = 10_000;
+        long[] counter = new long[1];
+        Supplier<List<Multihash>> putLeaves = () -> {
+            TransactionId tid = storage.startTransaction(writerHash).join();
+            List<byte[]> blocks = IntStream.range(0, leavesPerNode)
+                    .mapToObj(i -> ByteBuffer.allocate(8).putLong(counter[0]++).array())
+                    .collect(Collectors.toList());
+            List<Multihash> leaves = storage.putRaw(writerHash, writerHash, Collections.nCopies(blocks.size(), new byte[0]),
+                    blocks, tid, x -> {}).join();
+            storage.closeTransaction(writerHash, tid).join();
+            return leaves;
+        };
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        List<Multihash> children = new ArrayList<>();
+        for (int i = 0; i < nodes; i++)
+            children.add(putCbor(storage, writerHash, tid, putLeaves.get()));
+        Multihash root = putCbor(storage, writerHash, tid, children);
+        storage.closeTransaction(writerHash, tid).join();
+        Set<Multihash> garbage = new HashSet<>();
+        for (int i = 0; i < garbageCount / leavesPerNode; i++)
+            garbage.addAll(putLeaves.get());
+
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas.serialize())).join();
+
+        long reachable = GarbageCollector.collectConcurrently(storage, pointers, 4, 4, 1_000_000, 0.01, s -> Futures.of(true));
+        Assert.assertEquals(1 + nodes + (long) nodes * leavesPerNode, reachable);
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        long retainedGarbage = garbage.stream().filter(remaining::contains).count();
+        Assert.assertEquals(reachable, remaining.size() - retainedGarbage);
+        Assert.assertTrue("Retained garbage " + retainedGarbage, retainedGarbage < garbageCount * 0.015);
+    }
+
+    @Test
+    public void concurrentCollectionKeepsConcurrentWrites() {
+        RAMStorage storage = new RAMStorage();
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash leaf = putRaw(storage, writerHash, tid);
+        Multihash root = putCbor(storage, writerHash, tid, Arrays.asList(leaf));
+        Multihash garbage = putCbor(storage, writerHash, tid, Arrays.asList(leaf));
+        storage.closeTransaction(writerHash, tid).join();
+
+        HashCasPair cas = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas.serialize())).join();
+
+        // write and commit a block after the pointers have been read, but before the sweep
+        List<Multihash> concurrentWrites = new ArrayList<>();
+        GarbageCollector.collectConcurrently(storage, pointers, 2, 2, 100, 0.01, snapshot -> {
+            TransactionId concurrentTid = storage.startTransaction(writerHash).join();
+            concurrentWrites.add(putRaw(storage, writerHash, concurrentTid));
+            storage.closeTransaction(writerHash, concurrentTid).join();
+            return Futures.of(true);
+        });
+
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertTrue(remaining.contains(root));
+        Assert.assertTrue(remaining.contains(leaf));
+        Assert.assertTrue(remaining.contains(concurrentWrites.get(0)));
+        Assert.assertFalse(remaining.contains(garbage));
+    }
+
+    @Test
+    public void incrementalCollectionDeletesReplacedBlocks() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        JdbcBlockReferences refs = new JdbcBlockReferences(Main.buildEphemeralSqlite(), new SqliteCommands());
+        IncrementalGarbageCollector gc = new IncrementalGarbageCollector(storage,
+                UserRepository.build(storage, pointers), refs, 0);
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash sharedLeaf = putRaw(storage, writerHash, tid);
+        Multihash shared = putCbor(storage, writerHash, tid, Arrays.asList(sharedLeaf));
+        Multihash oldLeaf = putRaw(storage, writerHash, tid);
+        Multihash old = putCbor(storage, writerHash, tid, Arrays.asList(oldLeaf, sharedLeaf));
+        Multihash root1 = putCbor(storage, writerHash, tid, Arrays.asList(shared, old));
+        storage.closeTransaction(writerHash, tid).join();
+
+        HashCasPair cas1 = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root1));
+        pointers.setPointer(writerHash, Optional.empty(), writer.secretSigningKey.signMessage(cas1.serialize())).join();
+        gc.initialise(pointers);
+
+        TransactionId tid2 = storage.startTransaction(writerHash).join();
+        Multihash newLeaf = putRaw(storage, writerHash, tid2);
+        Multihash root2 = putCbor(storage, writerHash, tid2, Arrays.asList(shared, newLeaf));
+        storage.closeTransaction(writerHash, tid2).join();
+
+        byte[] current = pointers.getPointer(writerHash).join().get();
+        HashCasPair cas2 = new HashCasPair(MaybeMultihash.of(root1), MaybeMultihash.of(root2));
+        byte[] signed = writer.secretSigningKey.signMessage(cas2.serialize());
+        pointers.setPointer(writerHash, Optional.of(current), signed).join();
+        gc.accept(new MutableEvent(writerHash, writerHash, signed));
+
+        Thread.sleep(10);
+        Assert.assertEquals(3, gc.sweep());
+
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(root2, shared, sharedLeaf, newLeaf)), remaining);
+    }
+
+    @Test
+    public void incrementalSweepCountsCommitsWhichArriveDuringIt() throws Exception {
+        List<Runnable> onSweepStart = new ArrayList<>();
+        RAMStorage storage = new RAMStorage() {
+            @Override
+            public List<Multihash> getOpenTransactionBlocks() {
+                onSweepStart.forEach(Runnable::run);
+                return super.getOpenTransactionBlocks();
+            }
+        };
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+        JdbcBlockReferences refs = new JdbcBlockReferences(Main.buildEphemeralSqlite(), new SqliteCommands());
+        IncrementalGarbageCollector gc = new IncrementalGarbageCollector(storage,
+                UserRepository.build(storage, pointers), refs, 0);
+
+        SigningKeyPair writer = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = ContentAddressedStorage.hashKey(writer.publicSigningKey);
+
+        TransactionId tid = storage.startTransaction(writerHash).join();
+        Multihash oldLeaf = putRaw(storage, writerHash, tid);
+        Multihash old = putCbor(storage, writerHash, tid, Arrays.asList(oldLeaf));
+        Multihash root1 = putCbor(storage, writerHash, tid, Arrays.asList(old));
+        Multihash root2 = putCbor(storage, writerHash, tid, Collections.emptyList());
+        // references old again without writing it
+        Multihash root3 = putCbor(storage, writerHash, tid, Arrays.asList(old));
+        storage.closeTransaction(writerHash, tid).join();
+
+        HashCasPair cas1 = new HashCasPair(MaybeMultihash.empty(), MaybeMultihash.of(root1));
+        byte[] signed1 = writer.secretSigningKey.signMessage(cas1.serialize());
+        pointers.setPointer(writerHash, Optional.empty(), signed1).join();
+        gc.initialise(pointers);
+
+        HashCasPair cas2 = new HashCasPair(MaybeMultihash.of(root1), MaybeMultihash.of(root2));
+        byte[] signed2 = writer.secretSigningKey.signMessage(cas2.serialize());
+        pointers.setPointer(writerHash, Optional.of(signed1), signed2).join();
+        gc.accept(new MutableEvent(writerHash, writerHash, signed2));
+        Thread.sleep(10);
+
+        onSweepStart.add(() -> {
+            HashCasPair cas3 = new HashCasPair(MaybeMultihash.of(root2), MaybeMultihash.of(root3));
+            byte[] signed3 = writer.secretSigningKey.signMessage(cas3.serialize());
+            pointers.setPointer(writerHash, Optional.of(signed2), signed3).join();
+            gc.accept(new MutableEvent(writerHash, writerHash, signed3));
+        });
+        // only root1 is deleted, and root2 was queued after the sweep started
+        Assert.assertEquals(1, gc.sweep());
+
+        Set<Multihash> remaining = storage.getAllBlockHashes().collect(Collectors.toSet());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(root2, root3, old, oldLeaf)), remaining);
+    }
+
+    @Test
+    public void deletionQueueIsPagedInHashOrder() {
+        JdbcBlockReferences refs = new JdbcBlockReferences(Main.buildEphemeralSqlite(), new SqliteCommands());
+        List<Multihash> queued = IntStream.range(0, 5)
+                .mapToObj(i -> (Multihash) RAMStorage.hashToCid(randomBytes(100), true))
+                .collect(Collectors.toList());
+        refs.transaction(r -> {
+            for (Multihash block : queued)
+                r.queueForDeletion(block, 10);
+            // queueing again restarts the grace period
+            r.queueForDeletion(queued.get(0), 1000);
+            return true;
+        });
+
+        Set<Multihash> all = new HashSet<>();
+        Optional<Multihash> after = Optional.empty();
+        while (true) {
+            List<Multihash> page = refs.getQueuedForDeletion(100, after, 2);
+            if (page.isEmpty())
+                break;
+            all.addAll(page);
+            after = Optional.of(page.get(page.size() - 1));
+        }
+        Assert.assertEquals(new HashSet<>(queued.subList(1, queued.size())), all);
+    }
+}
@@ -0,0 +1,132 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+public class MappedBlockCacheTests {
+    private static final Random random = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static byte[] randomCbor(int size) {
+        return new CborObject.CborByteArray(randomBytes(size)).toByteArray();
+    }
+
+    private static Multihash put(ContentAddressedStorage storage, byte[] block) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        return storage.put(owner, owner, new byte[0], block, tid).join();
+    }
+
+    private static Multihash putRaw(ContentAddressedStorage storage, byte[] block) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        return storage.putRaw(owner, owner, new byte[0], block, tid, x -> {}).join();
+    }
+
+    /** Write a block to the origin and read it through the cache
+     */
+    private static Multihash cache(RAMStorage origin, MappedBlockCache cache, byte[] block) {
+        Multihash h = put(origin, block);
+        Assert.assertArrayEquals(block, cache.getRaw(h).join().get());
+        return h;
+    }
+
+    @Test
+    public void persistsAcrossRestarts() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        MappedBlockCache cache = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        Map<Multihash, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] block = randomCbor(10_000);
+            blocks.put(cache(origin, cache, block), block);
+        }
+        // everything is served from the cache once the origin is gone
+        origin.clear();
+        MappedBlockCache reloaded = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        for (Map.Entry<Multihash, byte[]> e : blocks.entrySet())
+            Assert.assertArrayEquals(e.getValue(), reloaded.getRaw(e.getKey()).join().get());
+    }
+
+    @Test
+    public void oldestSegmentIsEvicted() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        MappedBlockCache cache = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        List<Multihash> hashes = new ArrayList<>();
+        List<byte[]> blocks = new ArrayList<>();
+        // read 3 segments worth of blocks through a 2 segment cache
+        for (int i = 0; i < 300; i++) {
+            byte[] block = randomCbor(10_000);
+            blocks.add(block);
+            hashes.add(cache(origin, cache, block));
+        }
+        origin.clear();
+        Assert.assertFalse(cache.getRaw(hashes.get(0)).join().isPresent());
+        for (int i = 200; i < 300; i++)
+            Assert.assertArrayEquals(blocks.get(i), cache.getRaw(hashes.get(i)).join().get());
+
+        MappedBlockCache reloaded = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        Assert.assertFalse(reloaded.getRaw(hashes.get(0)).join().isPresent());
+        for (int i = 200; i < 300; i++)
+            Assert.assertArrayEquals(blocks.get(i), reloaded.getRaw(hashes.get(i)).join().get());
+        // new reads continue in the ring
+        byte[] extra = randomCbor(10_000);
+        Multihash extraHash = cache(origin, reloaded, extra);
+        origin.clear();
+        Assert.assertArrayEquals(extra, reloaded.getRaw(extraHash).join().get());
+    }
+
+    @Test
+    public void onlyReadMetadataIsCached() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage origin = new RAMStorage();
+        MappedBlockCache cache = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        Multihash written = put(cache, randomCbor(1_000));
+        byte[] raw = randomBytes(1_000);
+        Multihash rawHash = putRaw(origin, raw);
+        Assert.assertArrayEquals(raw, cache.getRaw(rawHash).join().get());
+        Assert.assertArrayEquals(raw, cache.getAll(Collections.singletonList(rawHash)).join().get(0).get());
+
+        origin.clear();
+        Assert.assertFalse(cache.getRaw(written).join().isPresent());
+        Assert.assertFalse(cache.getRaw(rawHash).join().isPresent());
+    }
+
+    @Test
+    public void deletedBlocksAreNotServed() throws Exception {
+        Path dir = Files.createTempDirectory("block-cache");
+        RAMStorage ram = new RAMStorage();
+        DeletionPropagatingStorage origin = new DeletionPropagatingStorage(ram);
+        MappedBlockCache cache = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        origin.addListener(cache::invalidate);
+        byte[] kept = randomCbor(1_000);
+        Multihash keptHash = cache(ram, cache, kept);
+        Multihash deleted = cache(ram, cache, randomCbor(1_000));
+        Multihash bulkDeleted = cache(ram, cache, randomCbor(1_000));
+
+        origin.delete(deleted);
+        origin.bulkDelete(Collections.singletonList(bulkDeleted));
+        Assert.assertFalse(cache.getRaw(deleted).join().isPresent());
+        Assert.assertFalse(cache.getRaw(bulkDeleted).join().isPresent());
+        Assert.assertArrayEquals(kept, cache.getRaw(keptHash).join().get());
+
+        // nor after a restart
+        ram.clear();
+        MappedBlockCache reloaded = new MappedBlockCache(origin, dir, 2 * 1024 * 1024, 1024 * 1024, 64 * 1024);
+        Assert.assertFalse(reloaded.getRaw(deleted).join().isPresent());
+        Assert.assertFalse(reloaded.getRaw(bulkDeleted).join().isPresent());
+        Assert.assertArrayEquals(kept, reloaded.getRaw(keptHash).join().get());
+    }
+}
@@ -0,0 +1,148 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.mutable.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MutableEventQueueTests {
+
+    private static PublicKeyHash writer(String name) {
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(name.getBytes())));
+    }
+
+    private static MutableEvent event(PublicKeyHash writer, int i) {
+        return new MutableEvent(writer, writer, new byte[]{(byte) i});
+    }
+
+    @Test
+    public void burstsAreCoalesced() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<MutableEventQueue.Update> processed = Collections.synchronizedList(new ArrayList<>());
+        MutableEventQueue queue = new MutableEventQueue("test", u -> {
+            if (u.first.writerSignedBtreeRootHash[0] == 0) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+            processed.add(u);
+        }, 1, 10);
+
+        PublicKeyHash a = writer("a"), b = writer("b");
+        queue.add(event(a, 0));
+        blocked.await();
+        // the worker is busy, so these wait and are coalesced per writer
+        for (int i=1; i <= 5; i++) {
+            queue.add(event(a, i));
+            queue.add(event(b, 10 + i));
+        }
+        release.countDown();
+        Assert.assertTrue(queue.flush(10_000));
+
+        Assert.assertEquals(3, processed.size());
+        MutableEventQueue.Update forA = processed.get(1);
+        Assert.assertEquals(a, forA.writer);
+        Assert.assertEquals(1, forA.first.writerSignedBtreeRootHash[0]);
+        Assert.assertEquals(5, forA.last.writerSignedBtreeRootHash[0]);
+        Assert.assertEquals(5, forA.count);
+        MutableEventQueue.Update forB = processed.get(2);
+        Assert.assertEquals(b, forB.writer);
+        Assert.assertEquals(11, forB.first.writerSignedBtreeRootHash[0]);
+        Assert.assertEquals(15, forB.last.writerSignedBtreeRootHash[0]);
+        queue.shutdown();
+    }
+
+    @Test
+    public void flushOfOwnerOnlyWaitsForItsPartition() throws Exception {
+        PublicKeyHash busy = writer("busy");
+        PublicKeyHash idle = writer("idle");
+        for (int i=0; (idle.hashCode() & Integer.MAX_VALUE) % 2 == (busy.hashCode() & Integer.MAX_VALUE) % 2; i++)
+            idle = writer("idle" + i);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MutableEventQueue queue = new MutableEventQueue("test", u -> {
+            if (u.owner.equals(busy)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+        }, 2, 10);
+        queue.add(event(busy, 0));
+        queue.add(event(idle, 0));
+        blocked.await();
+        Assert.assertTrue(queue.flush(idle, 10_000));
+        Assert.assertFalse(queue.flush(busy, 100));
+        release.countDown();
+        Assert.assertTrue(queue.flush(busy, 10_000));
+        queue.shutdown();
+    }
+
+    @Test
+    public void fullQueueBlocks() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        MutableEventQueue queue = new MutableEventQueue("test", u -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {}
+        }, 1, 2);
+        queue.add(event(writer("first"), 0));
+        queue.add(event(writer("second"), 0));
+        queue.add(event(writer("third"), 0));
+
+        CountDownLatch adding = new CountDownLatch(1);
+        CountDownLatch added = new CountDownLatch(1);
+        Thread adder = new Thread(() -> {
+            adding.countDown();
+            queue.add(event(writer("fourth"), 0));
+            added.countDown();
+        });
+        adder.start();
+        adding.await();
+        // wait until the adder is parked in the full partition
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (adder.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.yield();
+        Assert.assertEquals(Thread.State.WAITING, adder.getState());
+        Assert.assertEquals(1, added.getCount());
+        release.countDown();
+        Assert.assertTrue(added.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(queue.flush(10_000));
+        queue.shutdown();
+    }
+
+    @Test
+    public void shutdownReleasesBlockedAdd() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        MutableEventQueue queue = new MutableEventQueue("test", u -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {}
+        }, 1, 1);
+        queue.add(event(writer("first"), 0));
+        queue.add(event(writer("second"), 0));
+
+        CountDownLatch added = new CountDownLatch(1);
+        Thread adder = new Thread(() -> {
+            queue.add(event(writer("third"), 0));
+            added.countDown();
+        });
+        adder.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (adder.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+            Thread.yield();
+        Assert.assertEquals(Thread.State.WAITING, adder.getState());
+        queue.shutdown();
+        Assert.assertTrue(added.await(10, TimeUnit.SECONDS));
+        // and later adds don't block
+        queue.add(event(writer("fourth"), 0));
+        queue.add(event(writer("fifth"), 0));
+        release.countDown();
+    }
+}
@@ -0,0 +1,133 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackfileBlockStorageTests {
+    private static final Random random = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+
+    private static byte[] randomBytes(int size) {
+        byte[] res = new byte[size];
+        random.nextBytes(res);
+        return res;
+    }
+
+    private static TransactionStore transactions() {
+        return JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    private static Map<Multihash, byte[]> putRandom(PackfileBlockStorage storage, int count, int size) {
+        TransactionId tid = storage.startTransaction(owner).join();
+        List<byte[]> blocks = IntStream.range(0, count)
+                .mapToObj(i -> randomBytes(size))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = storage.putRaw(owner, owner, Collections.nCopies(count, new byte[0]), blocks, tid, x -> {}).join();
+        storage.closeTransaction(owner, tid).join();
+        Map<Multihash, byte[]> res = new HashMap<>();
+        for (int i = 0; i < count; i++)
+            res.put(hashes.get(i), blocks.get(i));
+        return res;
+    }
+
+    private static void assertContents(PackfileBlockStorage storage, Map<Multihash, byte[]> expected) {
+        Assert.assertEquals(expected.keySet(), storage.getAllBlockHashes().collect(Collectors.toSet()));
+        for (Map.Entry<Multihash, byte[]> e : expected.entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), storage.getRaw(e.getKey()).join().get());
+            Assert.assertEquals(e.getValue().length, (int) storage.getSize(e.getKey()).join().get());
+        }
+    }
+
+    @Test
+    public void putGetAndDelete() throws Exception {
+        PackfileBlockStorage storage = new PackfileBlockStorage(Files.createTempDirectory("packs"), transactions());
+        Map<Multihash, byte[]> blocks = putRandom(storage, 100, 1000);
+        // repeated puts don't duplicate the block
+        Multihash first = blocks.keySet().iterator().next();
+        TransactionId tid = storage.startTransaction(owner).join();
+        storage.putRaw(owner, owner, new byte[0], blocks.get(first), tid, x -> {}).join();
+        Assert.assertEquals(100, storage.getAllBlockHashes().count());
+
+        storage.delete(first);
+        blocks.remove(first);
+        Assert.assertFalse(storage.getRaw(first).join().isPresent());
+        assertContents(storage, blocks);
+    }
+
+    @Test
+    public void reloadAfterRestart() throws Exception {
+        Path dir = Files.createTempDirectory("packs");
+        TransactionStore transactions = transactions();
+        PackfileBlockStorage storage = new PackfileBlockStorage(dir, transactions, 64 * 1024, 0.5, false);
+        Map<Multihash, byte[]> blocks = putRandom(storage, 200, 1000);
+        List<Multihash> toDelete = blocks.keySet().stream().limit(50).collect(Collectors.toList());
+        storage.bulkDelete(toDelete);
+        toDelete.forEach(blocks::remove);
+
+        // simulate a crash part way through appending to the unsealed pack
+        Path lastPack;
+        try (Stream<Path> files = Files.list(dir)) {
+            lastPack = files.filter(p -> p.toString().endsWith(".pack")).sorted().reduce((a, b) -> b).get();
+        }
+        try (FileChannel out = FileChannel.open(lastPack, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            out.write(java.nio.ByteBuffer.wrap(new byte[]{1, 0, 0, 0, 36, 1, 2}));
+        }
+
+        PackfileBlockStorage reloaded = new PackfileBlockStorage(dir, transactions, 64 * 1024, 0.5, false);
+        assertContents(reloaded, blocks);
+        blocks.putAll(putRandom(reloaded, 10, 1000));
+        assertContents(reloaded, blocks);
+    }
+
+    @Test
+    public void compactionReclaimsDeletedBlocks() throws Exception {
+        Path dir = Files.createTempDirectory("packs");
+        TransactionStore transactions = transactions();
+        PackfileBlockStorage storage = new PackfileBlockStorage(dir, transactions, 64 * 1024, 0.5, false);
+        Map<Multihash, byte[]> blocks = putRandom(storage, 500, 1000);
+        List<Multihash> toDelete = blocks.keySet().stream()
+                .filter(h -> random.nextInt(4) != 0)
+                .collect(Collectors.toList());
+        storage.bulkDelete(toDelete);
+        toDelete.forEach(blocks::remove);
+
+        long reclaimed = storage.compact();
+        Assert.assertTrue("Reclaimed space", reclaimed > 0);
+        assertContents(storage, blocks);
+
+        PackfileBlockStorage reloaded = new PackfileBlockStorage(dir, transactions, 64 * 1024, 0.5, false);
+        assertContents(reloaded, blocks);
+    }
+
+    @Test
+    public void interruptedReadDoesntBreakOtherReads() throws Exception {
+        PackfileBlockStorage storage = new PackfileBlockStorage(Files.createTempDirectory("packs"), transactions());
+        Map<Multihash, byte[]> blocks = putRandom(storage, 10, 1000);
+        Multihash first = blocks.keySet().iterator().next();
+
+        Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                storage.getRaw(first).join();
+            } catch (RuntimeException expected) {}
+        });
+        reader.start();
+        reader.join();
+
+        assertContents(storage, blocks);
+        // new writes still succeed
+        Map<Multihash, byte[]> more = putRandom(storage, 10, 1000);
+        blocks.putAll(more);
+        assertContents(storage, blocks);
+    }
+}
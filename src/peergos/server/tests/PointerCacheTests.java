@@ -0,0 +1,97 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.net.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.mutable.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PointerCacheTests {
+
+    private static PublicKeyHash writer(String name) {
+        return new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(name.getBytes())));
+    }
+
+    @Test
+    public void cacheFollowsUpdates() {
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands(), 10);
+        PublicKeyHash writer = writer("writer");
+        Assert.assertFalse(pointers.getPointer(writer).join().isPresent());
+
+        byte[] first = {1};
+        Assert.assertTrue(pointers.setPointer(writer, Optional.empty(), first).join());
+        Assert.assertArrayEquals(first, pointers.getPointer(writer).join().get());
+
+        byte[] second = {2};
+        Assert.assertTrue(pointers.setPointer(writer, Optional.of(first), second).join());
+        Assert.assertArrayEquals(second, pointers.getPointer(writer).join().get());
+
+        // a failed cas leaves the current value
+        Assert.assertFalse(pointers.setPointer(writer, Optional.of(first), new byte[]{3}).join());
+        Assert.assertArrayEquals(second, pointers.getPointer(writer).join().get());
+    }
+
+    @Test
+    public void watchersAreNotifiedOfChanges() throws Exception {
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands(), 10);
+        PublicKeyHash writer = writer("writer");
+        byte[] first = {1};
+        pointers.setPointer(writer, Optional.empty(), first).join();
+
+        // a stale value is answered straight away
+        Assert.assertArrayEquals(first, pointers.watchPointer(writer, Optional.empty(), 60_000).get(1, TimeUnit.SECONDS).get());
+
+        CompletableFuture<Optional<byte[]>> watch = pointers.watchPointer(writer, Optional.of(first), 60_000);
+        Thread.sleep(100);
+        Assert.assertFalse(watch.isDone());
+        byte[] second = {2};
+        pointers.setPointer(writer, Optional.of(first), second).join();
+        Assert.assertArrayEquals(second, watch.get(1, TimeUnit.SECONDS).get());
+
+        // no change before the timeout returns the current value
+        Optional<byte[]> unchanged = pointers.watchPointer(writer, Optional.of(second), 100).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(second, unchanged.get());
+    }
+
+    @Test
+    public void watchOverHttp() throws Exception {
+        JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands(), 10);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 10);
+        server.createContext("/" + Constants.MUTABLE_POINTERS_URL,
+                new MutationHandler(new UserRepository(new RAMStorage(), pointers), false));
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        try {
+            HttpPoster poster = new JavaPoster(new URL("http://localhost:" + server.getAddress().getPort() + "/"), false);
+            MutablePointers http = new HttpMutablePointers(poster, poster);
+            PublicKeyHash writer = writer("writer");
+            byte[] first = {1};
+            pointers.setPointer(writer, Optional.empty(), first).join();
+
+            CompletableFuture<Optional<byte[]>> watch = CompletableFuture.supplyAsync(
+                    () -> http.watchPointer(writer, writer, Optional.of(first), 60_000).join());
+            byte[] second = {2};
+            pointers.setPointer(writer, Optional.of(first), second).join();
+            Assert.assertArrayEquals(second, watch.get(5, TimeUnit.SECONDS).get());
+
+            // a watch longer than the client's read timeout is answered with the current value before it expires
+            long start = System.currentTimeMillis();
+            Optional<byte[]> unchanged = http.watchPointer(writer, writer, Optional.of(second), 60_000).join();
+            Assert.assertArrayEquals(second, unchanged.get());
+            Assert.assertTrue(System.currentTimeMillis() - start < 15_000);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class S3ObjectListingTests {
+    private static final int PAGE_SIZE = 7;
+
+    private static S3ObjectListing.PageFetcher fakeBucket(TreeSet<String> keys) {
+        return (continuationToken, startAfter) -> {
+            // use the last key of the previous page as the continuation token
+            String after = continuationToken.orElse(startAfter.orElse(""));
+            List<S3Request.ObjectMetadata> page = keys.tailSet(after, false).stream()
+                    .limit(PAGE_SIZE)
+                    .map(k -> new S3Request.ObjectMetadata(k, "", LocalDateTime.now(), k.length()))
+                    .collect(Collectors.toList());
+            boolean truncated = ! page.isEmpty() && keys.higher(page.get(page.size() - 1).key) != null;
+            Optional<String> next = truncated ? Optional.of(page.get(page.size() - 1).key) : Optional.empty();
+            return new S3Request.ListObjectsReply("", truncated, page, next);
+        };
+    }
+
+    private static TreeSet<String> randomKeys(int count) {
+        Random r = new Random(7);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        TreeSet<String> keys = new TreeSet<>();
+        while (keys.size() < count) {
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 10; i++)
+                key.append(alphabet.charAt(r.nextInt(alphabet.length())));
+            keys.add(key.toString());
+        }
+        return keys;
+    }
+
+    @Test
+    public void sequentialListingIsComplete() {
+        TreeSet<String> keys = randomKeys(1000);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        List<String> listed = S3ObjectListing.list(fakeBucket(keys), Collections.emptyList(), 1, pool)
+                .map(m -> m.key)
+                .collect(Collectors.toList());
+        Assert.assertEquals(new ArrayList<>(keys), listed);
+        pool.shutdown();
+    }
+
+    @Test
+    public void parallelListingIsComplete() {
+        TreeSet<String> keys = randomKeys(5000);
+        ExecutorService pool = Executors.newCachedThreadPool();
+        List<String> boundaries = Arrays.asList("M", "C", "CQ", "7", "ZZ");
+        List<String> listed = S3ObjectListing.list(fakeBucket(keys), boundaries, 4, pool)
+                .map(m -> m.key)
+                .collect(Collectors.toList());
+        Assert.assertEquals(keys.size(), listed.size());
+        Assert.assertEquals(keys, new TreeSet<>(listed));
+        pool.shutdown();
+    }
+}
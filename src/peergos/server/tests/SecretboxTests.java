@@ -0,0 +1,63 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.shared.crypto.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SecretboxTests {
+
+    private static final int[] LENGTHS = {0, 1, 15, 16, 17, 31, 32, 33, 63, 64, 65, 95, 96, 97, 1000, 4095, 4096, 4097,
+            65536, 100_003, 1024 * 1024, 5 * 1024 * 1024 + 17};
+
+    @Test
+    public void compatibleWithTweetNacl() {
+        Random r = new Random(1);
+        List<Salsa20Poly1305Java> impls = Arrays.asList(
+                new Salsa20Poly1305Java(ForkJoinPool.commonPool(), 1, 1024),
+                new Salsa20Poly1305Java(ForkJoinPool.commonPool(), 7, 1024));
+        for (int len : LENGTHS) {
+            for (Salsa20Poly1305Java impl : impls) {
+                byte[] data = new byte[len];
+                r.nextBytes(data);
+                byte[] nonce = new byte[24];
+                r.nextBytes(nonce);
+                byte[] key = new byte[32];
+                r.nextBytes(key);
+
+                byte[] cipher = impl.secretbox(data, nonce, key);
+                Assert.assertArrayEquals("length " + len, TweetNaCl.secretbox(data, nonce, key), cipher);
+                Assert.assertArrayEquals("length " + len, data, impl.secretbox_open(cipher, nonce, key));
+
+                cipher[r.nextInt(cipher.length)] ^= 1;
+                try {
+                    impl.secretbox_open(cipher, nonce, key);
+                    Assert.fail("Modified cipher text accepted for length " + len);
+                } catch (InvalidCipherTextException expected) {}
+            }
+        }
+    }
+
+    @Test
+    public void reusableBuffers() {
+        Random r = new Random(2);
+        Salsa20Poly1305Java impl = new Salsa20Poly1305Java(ForkJoinPool.commonPool(), 4, 1024);
+        byte[] buffer = new byte[20_000];
+        r.nextBytes(buffer);
+        byte[] nonce = new byte[24];
+        byte[] key = new byte[32];
+        r.nextBytes(key);
+        byte[] data = Arrays.copyOfRange(buffer, 7, 7 + 10_000);
+
+        byte[] cipher = new byte[buffer.length];
+        impl.secretbox(buffer, 7, data.length, nonce, key, cipher, 3);
+        Assert.assertArrayEquals(TweetNaCl.secretbox(data, nonce, key), Arrays.copyOfRange(cipher, 3, 3 + data.length + 16));
+
+        byte[] plain = new byte[buffer.length];
+        impl.secretbox_open(cipher, 3, data.length + 16, nonce, key, plain, 11);
+        Assert.assertArrayEquals(data, Arrays.copyOfRange(plain, 11, 11 + data.length));
+    }
+}
@@ -0,0 +1,170 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class SizeIndexingStorageTests {
+    private static final Random random = new Random(42);
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+
+    private static class CountingStorage extends DelegatingStorage {
+        final AtomicLong fetched = new AtomicLong();
+
+        CountingStorage(ContentAddressedStorage target) {
+            super(target);
+        }
+
+        @Override
+        public ContentAddressedStorage directToOrigin() {
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            fetched.addAndGet(hashes.size());
+            return super.getAll(hashes);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+            fetched.incrementAndGet();
+            return super.getSize(block);
+        }
+    }
+
+    private static Multihash putRaw(ContentAddressedStorage storage, int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        TransactionId tid = storage.startTransaction(owner).join();
+        return storage.putRaw(owner, owner, new byte[0], block, tid, x -> {}).join();
+    }
+
+    private static Multihash putNode(ContentAddressedStorage storage, List<Multihash> children) {
+        CborObject.CborList node = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList()));
+        TransactionId tid = storage.startTransaction(owner).join();
+        return storage.put(owner, owner, new byte[0], node.serialize(), tid).join();
+    }
+
+    @Test
+    public void onlyChangedPathIsFetched() {
+        RAMStorage origin = new RAMStorage();
+        List<List<Multihash>> leaves = IntStream.range(0, 10)
+                .mapToObj(i -> IntStream.range(0, 10)
+                        .mapToObj(j -> putRaw(origin, 1000 + j))
+                        .collect(Collectors.toList()))
+                .collect(Collectors.toList());
+        List<Multihash> mids = leaves.stream()
+                .map(l -> putNode(origin, l))
+                .collect(Collectors.toList());
+        Multihash root = putNode(origin, mids);
+
+        CountingStorage counter = new CountingStorage(origin);
+        SizeIndexingStorage index = new SizeIndexingStorage(counter,
+                new JdbcRecursiveSizes(Builder.buildEphemeralSqlite(), new SqliteCommands()), 1000);
+        long size = index.getRecursiveBlockSize(root).join();
+        Assert.assertEquals((long) origin.getRecursiveBlockSize(root).join(), size);
+        Assert.assertEquals(111, counter.fetched.get());
+
+        // replace one leaf
+        List<Multihash> changedLeaves = new ArrayList<>(leaves.get(3));
+        changedLeaves.set(5, putRaw(origin, 5000));
+        List<Multihash> changedMids = new ArrayList<>(mids);
+        changedMids.set(3, putNode(origin, changedLeaves));
+        Multihash updated = putNode(origin, changedMids);
+
+        counter.fetched.set(0);
+        long change = index.getChangeInContainedSize(root, updated).join();
+        Assert.assertEquals((long) origin.getChangeInContainedSize(root, updated).join(), change);
+        Assert.assertEquals(3, counter.fetched.get());
+    }
+
+    @Test
+    public void missingBlocksAreNotRecorded() {
+        RAMStorage origin = new RAMStorage();
+        byte[] leafData = new byte[1000];
+        random.nextBytes(leafData);
+        TransactionId tid = origin.startTransaction(owner).join();
+        Multihash leaf = origin.putRaw(owner, owner, new byte[0], leafData, tid, x -> {}).join();
+        Multihash root = putNode(origin, Arrays.asList(leaf));
+        long fullSize = origin.getRecursiveBlockSize(root).join();
+        origin.delete(leaf);
+
+        SizeIndexingStorage index = new SizeIndexingStorage(origin,
+                new JdbcRecursiveSizes(Builder.buildEphemeralSqlite(), new SqliteCommands()), 1000);
+        Assert.assertEquals(fullSize - leafData.length, (long) index.getRecursiveBlockSize(root).join());
+
+        origin.putRaw(owner, owner, new byte[0], leafData, tid, x -> {}).join();
+        Assert.assertEquals(fullSize, (long) index.getRecursiveBlockSize(root).join());
+    }
+
+    @Test
+    public void changeFromMissingRootFails() {
+        RAMStorage origin = new RAMStorage();
+        Multihash leaf = putRaw(origin, 1000);
+        Multihash root = putNode(origin, Arrays.asList(leaf));
+        Multihash updated = putNode(origin, Arrays.asList(leaf, putRaw(origin, 2000)));
+        long updatedSize = origin.getRecursiveBlockSize(updated).join();
+        origin.delete(root);
+
+        SizeIndexingStorage index = new SizeIndexingStorage(origin,
+                new JdbcRecursiveSizes(Builder.buildEphemeralSqlite(), new SqliteCommands()), 1000);
+        try {
+            index.getChangeInContainedSize(root, updated).join();
+            Assert.fail("Change from a missing root should fail");
+        } catch (CompletionException expected) {}
+        // so the caller can fall back to sizing the updated root from scratch
+        Assert.assertEquals(updatedSize, (long) index.getRecursiveBlockSize(updated).join());
+    }
+
+    @Test
+    public void onlyLiveCborSizesArePersisted() {
+        RAMStorage origin = new RAMStorage();
+        Multihash leaf = putRaw(origin, 1000);
+        Multihash root = putNode(origin, Arrays.asList(leaf));
+        long size = origin.getRecursiveBlockSize(root).join();
+
+        JdbcRecursiveSizes sizes = new JdbcRecursiveSizes(Builder.buildEphemeralSqlite(), new SqliteCommands());
+        SizeIndexingStorage index = new SizeIndexingStorage(origin, sizes, 1000);
+        Assert.assertEquals(size, (long) index.getRecursiveBlockSize(root).join());
+        Assert.assertEquals(Collections.singletonMap(root, size), sizes.getSizes(Arrays.asList(root, leaf)));
+
+        // deleted blocks are dropped from memory and from the table
+        origin.delete(root);
+        index.invalidate(Arrays.asList(root, leaf));
+        Assert.assertTrue(sizes.getSizes(Arrays.asList(root, leaf)).isEmpty());
+        Assert.assertEquals(0, (long) index.getRecursiveBlockSize(root).join());
+    }
+
+    @Test
+    public void storedSizesAreRetrievedInGroups() {
+        JdbcRecursiveSizes sizes = new JdbcRecursiveSizes(Builder.buildEphemeralSqlite(), new SqliteCommands());
+        Map<Multihash, Long> stored = new HashMap<>();
+        List<Multihash> all = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Multihash h = new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(Integer.toString(i).getBytes()));
+            all.add(h);
+            if (i % 3 != 0)
+                stored.put(h, (long) i);
+        }
+        sizes.setSizes(stored);
+        Assert.assertEquals(stored, sizes.getSizes(all));
+
+        sizes.removeSizes(all.subList(0, 500));
+        Map<Multihash, Long> remaining = new HashMap<>(stored);
+        all.subList(0, 500).forEach(remaining::remove);
+        Assert.assertEquals(remaining, sizes.getSizes(all));
+    }
+}
@@ -8,10 +8,11 @@ import peergos.shared.cbor.CborObject;
 import peergos.shared.crypto.hash.PublicKeyHash;
 import peergos.shared.io.ipfs.multihash.Multihash;
 import peergos.server.space.*;
+import peergos.server.sql.*;
 
-import java.util.HashSet;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class SpaceCheckingKeyFilterTests {
@@ -43,4 +44,134 @@ public class SpaceCheckingKeyFilterTests {
         //check that deserialize(serialize(object)) == object
         Assert.assertEquals(deserialized, state);
     }
+
+    @Test
+    public void reconciliationCheckpoint() {
+        JdbcUsageStore store = new JdbcUsageStore(Builder.buildEphemeralSqlite(), new SqliteCommands());
+        store.addUserIfAbsent("alice");
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        PublicKeyHash other = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        store.addWriter("alice", writer);
+        store.addWriter("alice", other);
+        Assert.assertTrue(store.getReconciledWriters().isEmpty());
+
+        store.addReconciledWriter(writer);
+        store.addReconciledWriter(writer);
+        Assert.assertEquals(Collections.singleton(writer), store.getReconciledWriters());
+
+        store.clearReconciledWriters();
+        Assert.assertTrue(store.getReconciledWriters().isEmpty());
+    }
+
+    @Test
+    public void batchedPendingUsageSkipsUnknownWriters() {
+        JdbcUsageStore store = new JdbcUsageStore(Builder.buildEphemeralSqlite(), new SqliteCommands());
+        store.addUserIfAbsent("alice");
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        PublicKeyHash unknown = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        store.addWriter("alice", writer);
+
+        store.addPendingUsage(Collections.singletonMap(writer, 10L));
+        UserUsage before = new UserUsage(0, false, Collections.singletonMap(writer, 10L));
+        Assert.assertEquals(before, store.getUsage("alice"));
+
+        Map<PublicKeyHash, Long> batch = new LinkedHashMap<>();
+        batch.put(unknown, 1L);
+        batch.put(writer, 5_000_000_000L);
+        store.addPendingUsage(batch);
+        // the rest of the batch is still applied, without truncating large values
+        Assert.assertEquals(new UserUsage(0, false, Collections.singletonMap(writer, 5_000_000_010L)), store.getUsage("alice"));
+    }
+
+    @Test
+    public void pendingUsageIsWrittenBehind() {
+        List<Map<PublicKeyHash, Long>> batches = new ArrayList<>();
+        AtomicInteger userReads = new AtomicInteger();
+        RamUsageStore ram = new RamUsageStore(new RamUsageStore.State(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()), null) {
+            @Override
+            public UserUsage getUsage(String owner) {
+                userReads.incrementAndGet();
+                return super.getUsage(owner);
+            }
+
+            @Override
+            public void addPendingUsage(Map<PublicKeyHash, Long> pending) {
+                if (! pending.isEmpty())
+                    batches.add(pending);
+                super.addPendingUsage(pending);
+            }
+        };
+        WriteBehindUsageStore store = new WriteBehindUsageStore(ram, 3_600_000);
+        store.addUserIfAbsent("alice");
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        PublicKeyHash other = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        store.addWriter("alice", writer);
+        store.addWriter("alice", other);
+
+        for (int i=0; i < 100; i++) {
+            store.addPendingUsage("alice", writer, 10);
+            store.addPendingUsage("alice", other, 1);
+        }
+        Assert.assertEquals(1, userReads.get());
+        Assert.assertTrue(batches.isEmpty());
+
+        store.flush();
+        Assert.assertEquals(1, batches.size());
+        Map<PublicKeyHash, Long> expected = new HashMap<>();
+        expected.put(writer, 1000L);
+        expected.put(other, 100L);
+        Assert.assertEquals(expected, batches.get(0));
+
+        // confirming a writer's usage discards its unflushed pending usage
+        store.addPendingUsage("alice", writer, 10);
+        store.addPendingUsage("alice", other, 1);
+        store.confirmUsage("alice", writer, 1010, false);
+        Assert.assertEquals(1010, store.getUsage("alice").totalUsage());
+        store.flush();
+        Assert.assertEquals(Collections.singletonMap(other, 1L), batches.get(1));
+        store.close();
+    }
+
+    @Test
+    public void slowFlushOnlyBlocksConfirmationOfFlushedWriters() throws Exception {
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RamUsageStore ram = new RamUsageStore(new RamUsageStore.State(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()), null) {
+            @Override
+            public void addPendingUsage(Map<PublicKeyHash, Long> pending) {
+                flushing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+                super.addPendingUsage(pending);
+            }
+        };
+        WriteBehindUsageStore store = new WriteBehindUsageStore(ram, 3_600_000);
+        store.addUserIfAbsent("alice");
+        PublicKeyHash writer = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        PublicKeyHash other = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, random()));
+        store.addWriter("alice", writer);
+        store.addWriter("alice", other);
+        store.addPendingUsage("alice", writer, 10);
+
+        Thread flusher = new Thread(store::flush);
+        flusher.start();
+        flushing.await();
+        // neither of these touch the writer being flushed
+        store.addPendingUsage("alice", writer, 5);
+        store.confirmUsage("alice", other, 100, false);
+
+        CountDownLatch confirmed = new CountDownLatch(1);
+        Thread confirmer = new Thread(() -> {
+            store.confirmUsage("alice", writer, 15, false);
+            confirmed.countDown();
+        });
+        confirmer.start();
+        Assert.assertFalse(confirmed.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(confirmed.await(10, TimeUnit.SECONDS));
+        flusher.join();
+        Assert.assertEquals(115, store.getUsage("alice").totalUsage());
+        store.close();
+    }
 }
@@ -0,0 +1,122 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.*;
+
+import java.nio.file.*;
+import java.util.*;
+
+/** Measures the throughput of writing all the fragments of a file in a single put.
+ *
+ *  To include an S3 bucket run main with the usual s3.* arguments.
+ */
+public class BlockPutBenchmark {
+    private static final int FRAGMENTS = 100;
+    private static final int ROUNDS = 5;
+
+    private static List<byte[]> randomFragments(Random r) {
+        List<byte[]> res = new ArrayList<>();
+        for (int i = 0; i < FRAGMENTS; i++) {
+            byte[] fragment = new byte[Fragment.MAX_LENGTH];
+            r.nextBytes(fragment);
+            res.add(fragment);
+        }
+        return res;
+    }
+
+    private static void benchmark(String name, ContentAddressedStorage storage) {
+        Random r = new Random(42);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+        List<byte[]> signatures = Collections.nCopies(FRAGMENTS, new byte[0]);
+        // warm up
+        TransactionId warmup = storage.startTransaction(owner).join();
+        storage.putRaw(owner, owner, signatures, randomFragments(r), warmup, x -> {}).join();
+        storage.closeTransaction(owner, warmup).join();
+
+        long bytes = 0, totalMillis = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            List<byte[]> fragments = randomFragments(r);
+            TransactionId tid = storage.startTransaction(owner).join();
+            long t0 = System.currentTimeMillis();
+            List<Multihash> hashes = storage.putRaw(owner, owner, signatures, fragments, tid, x -> {}).join();
+            totalMillis += System.currentTimeMillis() - t0;
+            storage.closeTransaction(owner, tid).join();
+            Assert.assertEquals(FRAGMENTS, hashes.size());
+            bytes += (long) FRAGMENTS * Fragment.MAX_LENGTH;
+        }
+        double mbPerSec = bytes / 1024.0 / 1024 / (Math.max(1, totalMillis) / 1000.0);
+        System.out.printf("%s: put %d x %d fragments in %d mS, %.1f MB/s\n", name, ROUNDS, FRAGMENTS, totalMillis, mbPerSec);
+    }
+
+    /** Single small cbor block puts, like those of a champ update
+     */
+    private static void smallBlocks(String name, ContentAddressedStorage storage) {
+        Random r = new Random(42);
+        PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+        TransactionId tid = storage.startTransaction(owner).join();
+        int puts = 5_000;
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < puts; i++) {
+            byte[] random = new byte[200];
+            r.nextBytes(random);
+            byte[] block = new CborObject.CborByteArray(random).serialize();
+            Multihash h = storage.put(owner, owner, new byte[0], block, tid).join();
+            // repeated puts of an existing block are no-ops
+            storage.put(owner, owner, new byte[0], block, tid).join();
+            if (i == 0)
+                Assert.assertArrayEquals(block, storage.getRaw(h).join().get());
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - t0);
+        storage.closeTransaction(owner, tid).join();
+        System.out.printf("%s: %d small blocks in %d mS, %d puts/s\n", name, puts, duration, 2 * puts * 1000L / duration);
+    }
+
+    @Test
+    public void fileSmallBlocks() throws Exception {
+        smallBlocks("File", new FileContentAddressedStorage(Files.createTempDirectory("peergos-blocks"), transactions()));
+        smallBlocks("File fsync", new FileContentAddressedStorage(Files.createTempDirectory("peergos-blocks"), transactions(),
+                FileContentAddressedStorage.DEFAULT_WRITE_PARALLELISM, true));
+    }
+
+    @Test
+    public void packfileSmallBlocks() throws Exception {
+        smallBlocks("Packfile", new PackfileBlockStorage(Files.createTempDirectory("peergos-packs"), transactions()));
+    }
+
+    private static TransactionStore transactions() {
+        return JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    @Test
+    public void ram() {
+        benchmark("RAM", new RAMStorage());
+    }
+
+    @Test
+    public void file() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-blocks");
+        benchmark("File", new FileContentAddressedStorage(dir, transactions()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        BlockPutBenchmark bench = new BlockPutBenchmark();
+        bench.ram();
+        bench.file();
+        bench.fileSmallBlocks();
+        bench.packfileSmallBlocks();
+        Args a = Args.parse(args);
+        if (a.hasArg("s3.bucket")) {
+            Multihash id = new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("S3Storage".getBytes()));
+            S3BlockStorage s3 = new S3BlockStorage(S3Config.build(a), id, BlockStoreProperties.empty(), transactions(), new RAMStorage());
+            benchmark("S3", s3);
+        }
+    }
+}
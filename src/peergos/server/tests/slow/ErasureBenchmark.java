@@ -0,0 +1,50 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+/** Measures the throughput of erasure coding 5 MiB chunks with the default parameters */
+public class ErasureBenchmark {
+    private static final int CHUNK_SIZE = 5 * 1024 * 1024;
+    private static final int ITERATIONS = 10;
+    private static final int ORIGINAL = ErasureFragmenter.ERASURE_ORIGINAL;
+    private static final int ALLOWED_FAILURES = ErasureFragmenter.ERASURE_ALLOWED_FAILURES;
+
+    private static double mbPerSec(long nanos) {
+        return (double) CHUNK_SIZE * ITERATIONS / 1024 / 1024 * 1_000_000_000 / nanos;
+    }
+
+    @Test
+    public void splitAndRecombine() {
+        Random r = new Random(1);
+        byte[] data = new byte[CHUNK_SIZE];
+        r.nextBytes(data);
+
+        byte[][] fragments = null;
+        for (int i=0; i < 3; i++)
+            fragments = Erasure.split(data, ORIGINAL, ALLOWED_FAILURES);
+        long t0 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            fragments = Erasure.split(data, ORIGINAL, ALLOWED_FAILURES);
+        long t1 = System.nanoTime();
+        System.out.printf("split: %.0f MiB/s\n", mbPerSec(t1 - t0));
+
+        for (int missing : new int[]{0, 1, ALLOWED_FAILURES, 2 * ALLOWED_FAILURES}) {
+            byte[][] received = fragments.clone();
+            for (int i=0; i < missing; i++)
+                received[i] = null;
+            for (int i=0; i < 3; i++)
+                Erasure.recombine(received, CHUNK_SIZE, ORIGINAL, ALLOWED_FAILURES);
+            long t2 = System.nanoTime();
+            byte[] res = null;
+            for (int i=0; i < ITERATIONS; i++)
+                res = Erasure.recombine(received, CHUNK_SIZE, ORIGINAL, ALLOWED_FAILURES);
+            long t3 = System.nanoTime();
+            Assert.assertArrayEquals(data, res);
+            System.out.printf("recombine with %d missing fragments: %.0f MiB/s\n", missing, mbPerSec(t3 - t2));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package peergos.server.tests.slow;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.server.util.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Compares the blocking JavaPoster with the pooled Http2Poster, talking to a local block server which adds a fixed
+ *  latency to every request to simulate a remote server.
+ */
+public class PosterBenchmark {
+    private static final int LATENCY_MILLIS = 5;
+    private static final int BLOCKS = 500;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Multihash(Multihash.Type.sha2_256, RAMStorage.hash("owner".getBytes())));
+
+    private static HttpServer server;
+    private static URL address;
+    private static List<Multihash> hashes;
+    private static List<byte[]> blocks;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        RAMStorage store = new RAMStorage();
+        blocks = randomBlocks(new Random(42));
+        TransactionId tid = store.startTransaction(owner).join();
+        hashes = blocks.stream()
+                .map(b -> store.put(owner, owner, new byte[0], b, tid).join())
+                .collect(Collectors.toList());
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 100);
+        server.setExecutor(Executors.newFixedThreadPool(64));
+        HttpContext context = server.createContext("/api/v0/", new DHTHandler(store, null, (x, y) -> true, false));
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws java.io.IOException {
+                try {
+                    Thread.sleep(LATENCY_MILLIS);
+                } catch (InterruptedException e) {}
+                chain.doFilter(exchange);
+            }
+
+            @Override
+            public String description() {
+                return "Latency";
+            }
+        });
+        server.start();
+        address = new URL("http://localhost:" + server.getAddress().getPort() + "/");
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    private static List<byte[]> randomBlocks(Random r) {
+        return IntStream.range(0, BLOCKS)
+                .mapToObj(i -> {
+                    byte[] random = new byte[1000];
+                    r.nextBytes(random);
+                    return new CborObject.CborByteArray(random).serialize();
+                }).collect(Collectors.toList());
+    }
+
+    private static void benchmark(String name, HttpPoster poster) {
+        ContentAddressedStorage storage = new ContentAddressedStorage.HTTP(poster, true);
+        // warm up
+        storage.getRaw(hashes.get(0)).join();
+
+        long t0 = System.currentTimeMillis();
+        for (Multihash h : hashes)
+            storage.getRaw(h).join();
+        long t1 = System.currentTimeMillis();
+
+        List<CompletableFuture<Optional<byte[]>>> gets = hashes.stream()
+                .map(storage::getRaw)
+                .collect(Collectors.toList());
+        List<Optional<byte[]>> retrieved = Futures.combineAllInOrder(gets).join();
+        long t2 = System.currentTimeMillis();
+
+        for (int i = 0; i < BLOCKS; i++)
+            Assert.assertArrayEquals(blocks.get(i), retrieved.get(i).get());
+        System.out.printf("%s: %d sequential gets %d mS, %d concurrent gets %d mS\n",
+                name, BLOCKS, t1 - t0, BLOCKS, t2 - t1);
+    }
+
+    @Test
+    public void javaPoster() {
+        benchmark("JavaPoster", new JavaPoster(address, false));
+    }
+
+    @Test
+    public void http2Poster() {
+        benchmark("Http2Poster", new Http2Poster(address, false));
+    }
+}
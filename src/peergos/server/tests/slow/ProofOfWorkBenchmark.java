@@ -0,0 +1,42 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.crypto.hash.*;
+import peergos.shared.crypto.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Measures the mean time to solve a proof of work against difficulty and the number of solvers */
+public class ProofOfWorkBenchmark {
+    private static final int SAMPLES = 20;
+
+    @Test
+    public void solveTime() {
+        Random r = new Random(1);
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<byte[]> inputs = new ArrayList<>();
+        for (int i=0; i < SAMPLES; i++) {
+            byte[] data = new byte[100];
+            r.nextBytes(data);
+            inputs.add(data);
+        }
+        for (int solvers = 1; solvers <= cores; solvers *= 2) {
+            ScryptJava hasher = new ScryptJava(ForkJoinPool.commonPool(), solvers, 0);
+            // warm up
+            hasher.generateProofOfWork(16, inputs.get(0)).join();
+            for (int d = 12; d <= 22; d += 2) {
+                long t0 = System.nanoTime();
+                for (byte[] data : inputs) {
+                    ProofOfWork work = hasher.generateProofOfWork(d, data).join();
+                    byte[] hash = hasher.sha256(ArrayOps.concat(work.prefix, data)).join();
+                    Assert.assertTrue(ProofOfWork.satisfiesDifficulty(d, hash));
+                }
+                long t1 = System.nanoTime();
+                System.out.printf("solvers: %d, difficulty: %d, mean solve time: %.1f mS\n", solvers, d,
+                        (t1 - t0) / 1_000_000.0 / SAMPLES);
+            }
+        }
+    }
+}
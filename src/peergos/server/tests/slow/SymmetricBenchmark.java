@@ -0,0 +1,80 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.crypto.*;
+import peergos.server.crypto.symmetric.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Compares the throughput of the secretbox implementations on 5 MiB chunks */
+public class SymmetricBenchmark {
+    private static final int CHUNK_SIZE = 5 * 1024 * 1024;
+    private static final int ITERATIONS = 20;
+
+    private static void benchmark(String name, Salsa20Poly1305 impl) {
+        Random r = new Random(1);
+        byte[] data = new byte[CHUNK_SIZE];
+        r.nextBytes(data);
+        byte[] nonce = new byte[24];
+        r.nextBytes(nonce);
+        byte[] key = new byte[32];
+        r.nextBytes(key);
+
+        // warm up
+        for (int i=0; i < 3; i++)
+            impl.secretbox_open(impl.secretbox(data, nonce, key), nonce, key);
+
+        long t0 = System.nanoTime();
+        byte[] cipher = null;
+        for (int i=0; i < ITERATIONS; i++)
+            cipher = impl.secretbox(data, nonce, key);
+        long t1 = System.nanoTime();
+        for (int i=0; i < ITERATIONS; i++)
+            impl.secretbox_open(cipher, nonce, key);
+        long t2 = System.nanoTime();
+
+        double mb = (double) CHUNK_SIZE * ITERATIONS / 1024 / 1024;
+        System.out.printf("%s: encrypt %.0f MiB/s, decrypt %.0f MiB/s\n", name,
+                mb * 1_000_000_000 / (t1 - t0), mb * 1_000_000_000 / (t2 - t1));
+    }
+
+    @Test
+    public void tweetNacl() {
+        benchmark("TweetNaCl", new Salsa20Poly1305() {
+            @Override
+            public byte[] secretbox(byte[] data, byte[] nonce, byte[] key) {
+                return TweetNaCl.secretbox(data, nonce, key);
+            }
+
+            @Override
+            public byte[] secretbox_open(byte[] cipher, byte[] nonce, byte[] key) {
+                return TweetNaCl.secretbox_open(cipher, nonce, key);
+            }
+        });
+    }
+
+    @Test
+    public void jni() {
+        JniTweetNacl nacl;
+        try {
+            nacl = JniTweetNacl.build();
+        } catch (Throwable t) {
+            System.out.println("Native library unavailable, skipping JNI benchmark");
+            return;
+        }
+        benchmark("JNI", new JniTweetNacl.Symmetric(nacl));
+    }
+
+    @Test
+    public void javaSingleThreaded() {
+        benchmark("Java (1 thread)", new Salsa20Poly1305Java(ForkJoinPool.commonPool(), 1,
+                Salsa20Poly1305Java.DEFAULT_MIN_PARALLEL_SEGMENT));
+    }
+
+    @Test
+    public void javaParallel() {
+        benchmark("Java (parallel)", new Salsa20Poly1305Java());
+    }
+}
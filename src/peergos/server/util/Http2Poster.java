@@ -0,0 +1,184 @@
+package peergos.server.util;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.user.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/** An HttpPoster which reuses connections, and multiplexes concurrent requests over a single connection when the
+ *  server supports HTTP/2. Requests are fully asynchronous. The number of requests in flight to each host is capped,
+ *  and requests beyond that are queued and sent as soon as an earlier request to the same host completes.
+ */
+public class Http2Poster implements HttpPoster {
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = 32;
+
+    private final URL base;
+    private final boolean useGet;
+    private final Optional<String> basicAuth;
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final int maxInFlightPerHost;
+    private final Map<String, RequestLimiter> hosts = new ConcurrentHashMap<>();
+
+    public Http2Poster(URL base,
+                       boolean isPublicServer,
+                       Optional<String> basicAuth,
+                       int maxInFlightPerHost,
+                       Duration connectTimeout,
+                       Duration requestTimeout) {
+        this.base = base;
+        this.useGet = isPublicServer;
+        this.basicAuth = basicAuth;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+        this.requestTimeout = requestTimeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    public Http2Poster(URL base, boolean isPublicServer, Optional<String> basicAuth) {
+        this(base, isPublicServer, basicAuth, DEFAULT_MAX_IN_FLIGHT_PER_HOST, Duration.ofSeconds(10), Duration.ofSeconds(60));
+    }
+
+    public Http2Poster(URL base, boolean isPublicServer) {
+        this(base, isPublicServer, Optional.empty());
+    }
+
+    private URI buildURI(String url) throws IOException {
+        try {
+            return new URL(base, url).toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
+        return post(url, payload, true);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
+        return send(url, "POST", HttpRequest.BodyPublishers.ofByteArray(payload), Collections.emptyMap(), unzip);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
+        String boundary = Multipart.createBoundary();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            for (byte[] file : files) {
+                body.write(("--" + boundary + "\r\n"
+                        + "Content-Disposition: file; name=\"file\";\r\n"
+                        + "Content-Type: application/octet-stream\r\n"
+                        + "Content-Transfer-Encoding: binary\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                body.write(file);
+                body.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            }
+            body.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "multipart/form-data; boundary=" + boundary);
+        return send(url, "POST", HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()), headers, false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(String url, byte[] body, Map<String, String> headers) {
+        return send(url, "PUT", HttpRequest.BodyPublishers.ofByteArray(body), headers, false);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url) {
+        return get(url, Collections.emptyMap());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(String url, Map<String, String> headers) {
+        if (useGet)
+            return send(url, "GET", HttpRequest.BodyPublishers.noBody(), headers, true);
+        // This changes to a POST with an empty body, see JavaPoster
+        return postUnzip(url, new byte[0]);
+    }
+
+    private CompletableFuture<byte[]> send(String url,
+                                           String method,
+                                           HttpRequest.BodyPublisher body,
+                                           Map<String, String> headers,
+                                           boolean unzip) {
+        URI uri;
+        try {
+            uri = buildURI(url);
+        } catch (IOException e) {
+            return Futures.errored(e);
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(requestTimeout)
+                .method(method, body);
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (! PooledHttpClient.RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                builder.header(e.getKey(), e.getValue());
+        }
+        if (basicAuth.isPresent())
+            builder.header("Authorization", basicAuth.get());
+        HttpRequest req = builder.build();
+
+        RequestLimiter limiter = hosts.computeIfAbsent(uri.getScheme() + "://" + uri.getAuthority(),
+                h -> new RequestLimiter(maxInFlightPerHost));
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        limiter.submit(() -> {
+            try {
+                client.sendAsync(req, HttpResponse.BodyHandlers.ofByteArray())
+                        .whenComplete((r, t) -> {
+                            limiter.release();
+                            if (t != null)
+                                res.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                            else
+                                complete(r, unzip, res);
+                        });
+            } catch (RuntimeException e) {
+                limiter.release();
+                res.completeExceptionally(e);
+            }
+        });
+        return res;
+    }
+
+    private static void complete(HttpResponse<byte[]> r, boolean unzip, CompletableFuture<byte[]> res) {
+        if (r.statusCode() >= 300) {
+            // Peergos servers put the error message in the Trailer header
+            Optional<String> trailer = r.headers().firstValue("Trailer");
+            res.completeExceptionally(trailer.isPresent() ?
+                    new RuntimeException(trailer.get()) :
+                    new IOException("HTTP " + r.statusCode() + ": " + new String(r.body())));
+            return;
+        }
+        boolean isGzipped = "gzip".equals(r.headers().firstValue("Content-Encoding").orElse(""));
+        if (! isGzipped || ! unzip) {
+            res.complete(r.body());
+            return;
+        }
+        try {
+            res.complete(Serialize.readFully(new GZIPInputStream(new ByteArrayInputStream(r.body()))));
+        } catch (IOException e) {
+            res.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return base.toString();
+    }
+}
@@ -0,0 +1,127 @@
+package peergos.server.util;
+
+import io.prometheus.client.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A non-blocking http client for presigned urls, which keeps connections alive and caps the number of requests in
+ *  flight. Requests beyond the cap are queued rather than opening more connections.
+ *
+ *  Failed requests complete exceptionally with an IOException whose message starts with "HTTP <status>".
+ */
+public class PooledHttpClient {
+    // These are set by the http client itself
+    static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "date", "expect", "from", "host", "upgrade", "via", "warning"));
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final RequestLimiter limiter;
+
+    public PooledHttpClient(int maxInFlight, Duration connectTimeout, Duration requestTimeout) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        this.requestTimeout = requestTimeout;
+        this.limiter = new RequestLimiter(maxInFlight);
+    }
+
+    public PooledHttpClient(int maxInFlight) {
+        this(maxInFlight, Duration.ofSeconds(10), Duration.ofSeconds(60));
+    }
+
+    public CompletableFuture<byte[]> get(PresignedUrl url, Histogram timings, String op) {
+        return send(url, "GET", HttpRequest.BodyPublishers.noBody(), timings, op)
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<Map<String, List<String>>> head(PresignedUrl url, Histogram timings, String op) {
+        return send(url, "HEAD", HttpRequest.BodyPublishers.noBody(), timings, op)
+                .thenApply(r -> {
+                    Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                    headers.putAll(r.headers().map());
+                    return headers;
+                });
+    }
+
+    public CompletableFuture<byte[]> put(PresignedUrl url, byte[] body, Histogram timings, String op) {
+        return send(url, "PUT", HttpRequest.BodyPublishers.ofByteArray(body), timings, op)
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<byte[]> post(PresignedUrl url, byte[] body, Histogram timings, String op) {
+        return send(url, "POST", HttpRequest.BodyPublishers.ofByteArray(body), timings, op)
+                .thenApply(HttpResponse::body);
+    }
+
+    public CompletableFuture<Boolean> delete(PresignedUrl url, Histogram timings, String op) {
+        return send(url, "DELETE", HttpRequest.BodyPublishers.noBody(), timings, op)
+                .thenApply(r -> true);
+    }
+
+    /** Send a request once a slot is free, recording the time spent waiting for a slot, and the time until the
+     *  response headers arrived (connection setup, if any, plus server time), under op-pool-wait and op-headers.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> send(PresignedUrl url,
+                                                         String method,
+                                                         HttpRequest.BodyPublisher body,
+                                                         Histogram timings,
+                                                         String op) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(url.base))
+                .timeout(requestTimeout)
+                .method(method, body);
+        for (Map.Entry<String, String> e : url.fields.entrySet()) {
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                builder.header(e.getKey(), e.getValue());
+        }
+        HttpRequest req = builder.build();
+
+        CompletableFuture<HttpResponse<byte[]>> res = new CompletableFuture<>();
+        Histogram.Timer poolWait = timings.labels(op + "-pool-wait").startTimer();
+        limiter.submit(() -> {
+            poolWait.observeDuration();
+            Histogram.Timer headers = timings.labels(op + "-headers").startTimer();
+            HttpResponse.BodyHandler<byte[]> handler = info -> {
+                headers.observeDuration();
+                return HttpResponse.BodySubscribers.ofByteArray();
+            };
+            try {
+                client.sendAsync(req, handler)
+                        .whenComplete((r, t) -> {
+                            limiter.release();
+                            if (t != null)
+                                res.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                            else if (r.statusCode() >= 300)
+                                res.completeExceptionally(new IOException("HTTP " + r.statusCode() + ": " + new String(r.body())));
+                            else
+                                res.complete(r);
+                        });
+            } catch (RuntimeException e) {
+                limiter.release();
+                res.completeExceptionally(e);
+            }
+        });
+        return res;
+    }
+
+    /** Block on an async result, unwrapping any IOException.
+     */
+    public static <T> T join(CompletableFuture<T> result) throws IOException {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+}
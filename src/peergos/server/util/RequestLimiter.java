@@ -0,0 +1,48 @@
+package peergos.server.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Caps the number of requests in flight. Requests beyond the cap are queued, and each is started as soon as an
+ *  earlier one releases its slot.
+ */
+public class RequestLimiter {
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public RequestLimiter(int maxInFlight) {
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    /** Run the task once a slot is free. The task must call release() exactly once when its request has finished.
+     */
+    public void submit(Runnable task) {
+        if (permits.tryAcquire()) {
+            task.run();
+            return;
+        }
+        waiting.add(task);
+        // a permit may have been released before we queued
+        drain();
+    }
+
+    public void release() {
+        permits.release();
+        drain();
+    }
+
+    public int queued() {
+        return waiting.size();
+    }
+
+    private void drain() {
+        while (! waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                permits.release();
+                continue;
+            }
+            next.run();
+        }
+    }
+}
@@ -221,7 +221,7 @@ public class NetworkAccess {
                             localDht :
                             new ContentAddressedStorage.Proxying(localDht, proxingDht, nodeId, core);
                     HashVerifyingStorage verifyingStorage = new HashVerifyingStorage(new RetryStorage(storage, 3), hasher);
-                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 1_000, 50 * 1024);
+                    ContentAddressedStorage p2pDht = new CachingStorage(verifyingStorage, 20 * 1024 * 1024, 50 * 1024);
                     MutablePointersProxy httpMutable = new HttpMutablePointers(apiPoster, p2pPoster);
                     MutablePointers p2pMutable =
                             isPeergosServer ?
@@ -274,30 +274,38 @@ public class NetworkAccess {
     }
 
     public CompletableFuture<List<RetrievedCapability>> retrieveAllMetadata(List<AbsoluteCapability> links, Snapshot current) {
-        List<CompletableFuture<Optional<RetrievedCapability>>> all = links.stream()
+        List<CompletableFuture<MaybeMultihash>> keys = links.stream()
                 .map(link -> {
                     PublicKeyHash owner = link.owner;
                     PublicKeyHash writer = link.writer;
                     byte[] mapKey = link.getMapKey();
                     return current.withWriter(owner, writer, this).thenCompose(version ->
                             tree.get(version.get(writer).props, owner, writer, mapKey))
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedCapability(
-                                                            link,
-                                                            CryptreeNode.fromCbor(cbor, link.rBaseKey, key.get()))));
-                                LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
-                                Optional<RetrievedCapability> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
+                            .thenApply(key -> {
+                                if (! key.isPresent())
+                                    LOG.severe("Couldn't download link at: " + new Location(owner, writer, mapKey));
+                                return key;
                             });
                 }).collect(Collectors.toList());
 
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+        // get all the cryptree nodes in one bulk request
+        return Futures.combineAllInOrder(keys).thenCompose(found -> {
+            List<Integer> present = IntStream.range(0, links.size())
+                    .filter(i -> found.get(i).isPresent())
+                    .boxed()
+                    .collect(Collectors.toList());
+            List<Multihash> hashes = present.stream()
+                    .map(i -> found.get(i).get())
+                    .collect(Collectors.toList());
+            return dhtClient.getAll(hashes).thenApply(blocks -> IntStream.range(0, present.size())
+                    .filter(j -> blocks.get(j).isPresent())
+                    .mapToObj(j -> {
+                        AbsoluteCapability link = links.get(present.get(j));
+                        CborObject cbor = CborObject.fromByteArray(blocks.get(j).get());
+                        return new RetrievedCapability(link, CryptreeNode.fromCbor(cbor, link.rBaseKey, hashes.get(j)));
+                    })
+                    .collect(Collectors.toList()));
+        });
     }
 
     public CompletableFuture<Set<FileWrapper>> retrieveAll(List<EntryPoint> entries) {
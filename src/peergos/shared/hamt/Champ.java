@@ -157,25 +157,28 @@ public class Champ<V extends Cborable> implements Cborable {
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
-        long keys = keyCount();
-        if (nodeCount() == 0)
-            return CompletableFuture.completedFuture(keys);
-
-        List<CompletableFuture<Long>> childCounts = new ArrayList<>();
-        for (int i = contents.length - 1; i >= 0; i--) {
-            HashPrefixPayload<V> pointer = contents[i];
-            if (! pointer.isShard())
-                break; // we reach the key section
-            childCounts.add(storage.get(pointer.link.get())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(y -> Champ.fromCbor(y, fromCbor))))
-                    .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
-                            .orElse(CompletableFuture.completedFuture(0L)))
-            );
-        }
-        List<Integer> indices = IntStream.range(0, childCounts.size())
-                .mapToObj(x -> x)
-                .collect(Collectors.toList());
-        return Futures.reduceAll(indices, keys, (t, index) -> childCounts.get(index).thenApply(c -> c + t), (a, b) -> a + b);
+        long[] keys = new long[1];
+        return ChampTraversal.visitAll(this, storage, ChampTraversal.DEFAULT_MAX_BLOCKS_PER_FETCH, (k, v) -> keys[0]++)
+                .thenApply(nodes -> keys[0]);
+    }
+
+    List<Multihash> childLinks() {
+        List<Multihash> res = new ArrayList<>();
+        for (HashPrefixPayload<V> payload : contents)
+            if (payload.isShard() && payload.link.isPresent())
+                res.add(payload.link.get());
+        return res;
+    }
+
+    void forEachMapping(BiConsumer<ByteArrayWrapper, Optional<V>> consumer) {
+        for (HashPrefixPayload<V> payload : contents)
+            if (! payload.isShard())
+                for (KeyElement<V> mapping : payload.mappings)
+                    consumer.accept(mapping.key, mapping.valueHash);
+    }
+
+    Function<Cborable, V> valueParser() {
+        return fromCbor;
     }
 
     public boolean hasMultipleMappings() {
@@ -295,6 +298,106 @@ public class Champ<V extends Cborable> implements Cborable {
         }
     }
 
+    private static class HashedMapping<V extends Cborable> {
+        public final KeyElement<V> mapping;
+        public final byte[] hash;
+
+        public HashedMapping(KeyElement<V> mapping, byte[] hash) {
+            this.mapping = mapping;
+            this.hash = hash;
+        }
+    }
+
+    /** Build a champ containing the given mappings bottom up, writing each node of the final tree exactly once.
+     *  The result is identical to putting each mapping, in turn, into an empty champ. If a key is repeated the last
+     *  value wins.
+     *
+     * @param mappings The key value pairs to add
+     * @param bitWidth The champ bitwidth
+     * @param maxCollisions The maximum number of hash collision per layer in this champ
+     * @param hasher The function to calculate the hash of keys
+     * @param tid The transaction id for this write operation
+     * @return The root of the new champ and its hash
+     */
+    public static <V extends Cborable> CompletableFuture<Pair<Champ<V>, Multihash>> build(PublicKeyHash owner,
+                                                                                         SigningPrivateKeyAndPublicHash writer,
+                                                                                         List<Pair<ByteArrayWrapper, Optional<V>>> mappings,
+                                                                                         int bitWidth,
+                                                                                         int maxCollisions,
+                                                                                         Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                                         Function<Cborable, V> fromCbor,
+                                                                                         TransactionId tid,
+                                                                                         ContentAddressedStorage storage,
+                                                                                         Hasher writeHasher) {
+        Map<ByteArrayWrapper, Optional<V>> latest = new LinkedHashMap<>();
+        for (Pair<ByteArrayWrapper, Optional<V>> mapping : mappings)
+            latest.put(mapping.left, mapping.right);
+        List<KeyElement<V>> elements = latest.entrySet().stream()
+                .map(e -> new KeyElement<>(e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+        return Futures.combineAllInOrder(elements.stream()
+                .map(e -> hasher.apply(e.key))
+                .collect(Collectors.toList()))
+                .thenCompose(hashes -> {
+                    List<HashedMapping<V>> hashed = new ArrayList<>();
+                    for (int i=0; i < elements.size(); i++)
+                        hashed.add(new HashedMapping<>(elements.get(i), hashes.get(i)));
+                    return buildNode(owner, writer, hashed, 0, bitWidth, maxCollisions, fromCbor, tid, storage, writeHasher);
+                });
+    }
+
+    private static <V extends Cborable> CompletableFuture<Pair<Champ<V>, Multihash>> buildNode(PublicKeyHash owner,
+                                                                                              SigningPrivateKeyAndPublicHash writer,
+                                                                                              List<HashedMapping<V>> mappings,
+                                                                                              int depth,
+                                                                                              int bitWidth,
+                                                                                              int maxCollisions,
+                                                                                              Function<Cborable, V> fromCbor,
+                                                                                              TransactionId tid,
+                                                                                              ContentAddressedStorage storage,
+                                                                                              Hasher writeHasher) {
+        if (depth >= HASH_CODE_LENGTH)
+            throw new IllegalStateException("Hash collision!");
+
+        SortedMap<Integer, List<HashedMapping<V>>> buckets = new TreeMap<>();
+        for (HashedMapping<V> mapping : mappings)
+            buckets.computeIfAbsent(mask(mapping.hash, depth, bitWidth), i -> new ArrayList<>()).add(mapping);
+
+        BitSet dataMap = new BitSet();
+        BitSet nodeMap = new BitSet();
+        List<HashPrefixPayload<V>> inline = new ArrayList<>();
+        List<CompletableFuture<Pair<Champ<V>, Multihash>>> children = new ArrayList<>();
+        for (Map.Entry<Integer, List<HashedMapping<V>>> bucket : buckets.entrySet()) {
+            List<HashedMapping<V>> grouped = bucket.getValue();
+            if (grouped.size() <= maxCollisions) {
+                dataMap.set(bucket.getKey());
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                KeyElement<V>[] prefix = grouped.stream()
+                        .map(m -> m.mapping)
+                        .collect(Collectors.toList())
+                        .toArray(new KeyElement[grouped.size()]);
+                // ensure canonical structure
+                Arrays.sort(prefix, Comparator.comparing(m -> m.key));
+                inline.add(new HashPrefixPayload<>(prefix));
+            } else {
+                nodeMap.set(bucket.getKey());
+                children.add(buildNode(owner, writer, grouped, depth + 1, bitWidth, maxCollisions, fromCbor, tid, storage, writeHasher));
+            }
+        }
+
+        return Futures.combineAllInOrder(children).thenCompose(built -> {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            HashPrefixPayload<V>[] contents = new HashPrefixPayload[inline.size() + built.size()];
+            for (int i=0; i < inline.size(); i++)
+                contents[i] = inline.get(i);
+            // child links go at the end, in reverse bit position order
+            for (int i=0; i < built.size(); i++)
+                contents[contents.length - 1 - i] = new HashPrefixPayload<>(MaybeMultihash.of(built.get(i).right));
+            Champ<V> champ = new Champ<>(dataMap, nodeMap, contents, fromCbor);
+            return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
+        });
+    }
+
     private CompletableFuture<Pair<Champ<V>, Multihash>> pushMappingsDownALevel(PublicKeyHash owner,
                                                                                 SigningPrivateKeyAndPublicHash writer,
                                                                                 KeyElement<V>[] mappings,
@@ -586,24 +689,43 @@ public class Champ<V extends Cborable> implements Cborable {
         return new Champ<>(newDataMap, nodeMap, dst, fromCbor);
     }
 
+    /** Apply the consumer to every mapping. The tree is retrieved a level at a time, and mappings are visited in
+     *  breadth first order, so only the nodes of a single fetch are held in memory at once.
+     */
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
                                                        BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
                                                        ContentAddressedStorage storage) {
-        return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
-                (! payload.isShard() ?
-                        Futures.reduceAll(
-                                Arrays.stream(payload.mappings).collect(Collectors.toList()),
-                                res,
-                                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
-                                (a, b) ->  a) :
-                        CompletableFuture.completedFuture(res)
-                ).thenCompose(newRes ->
-                        payload.isShard() && payload.link.isPresent() ?
-                                storage.get(payload.link.get())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)), fromCbor))
-                                        .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
-                                CompletableFuture.completedFuture(newRes)
-                ), (a, b) -> a);
+        return applyToMappings(identity, consumer)
+                .thenCompose(res -> applyToLevel(childLinks(), res, consumer, fromCbor, storage));
+    }
+
+    private <T> CompletableFuture<T> applyToMappings(T identity,
+                                                     BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer) {
+        return Futures.reduceAll(getMappings(), identity,
+                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
+                (a, b) -> a);
+    }
+
+    private static <V extends Cborable, T> CompletableFuture<T> applyToLevel(List<Multihash> level,
+                                                                             T identity,
+                                                                             BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
+                                                                             Function<Cborable, V> fromCbor,
+                                                                             ContentAddressedStorage storage) {
+        if (level.isEmpty())
+            return Futures.of(identity);
+        int maxBlocksPerFetch = ChampTraversal.DEFAULT_MAX_BLOCKS_PER_FETCH;
+        List<Multihash> nextLevel = new ArrayList<>();
+        return Futures.reduceAll(ArrayOps.group(level, maxBlocksPerFetch), identity,
+                (res, batch) -> ChampTraversal.getNodes(batch, fromCbor, storage, maxBlocksPerFetch)
+                        .thenCompose(nodes -> Futures.reduceAll(batch, res, (acc, hash) -> {
+                            Champ<V> node = nodes.get(hash);
+                            if (node == null)
+                                throw new IllegalStateException("Hash not present! " + hash);
+                            nextLevel.addAll(node.childLinks());
+                            return node.applyToMappings(acc, consumer);
+                        }, (a, b) -> a)),
+                (a, b) -> a)
+                .thenCompose(res -> applyToLevel(nextLevel, res, consumer, fromCbor, storage));
     }
 
     private List<KeyElement<V>> getMappings() {
@@ -651,6 +773,24 @@ public class Champ<V extends Cborable> implements Cborable {
                 );
     }
 
+    /** A pair of corresponding subtrees to compare, along with the mappings from the level above which have been
+     *  pushed down into them on one side.
+     */
+    private static class DiffTask<V extends Cborable> {
+        public final MaybeMultihash original, updated;
+        public final List<KeyElement<V>> higherLeftMappings, higherRightMappings;
+
+        public DiffTask(MaybeMultihash original,
+                        MaybeMultihash updated,
+                        List<KeyElement<V>> higherLeftMappings,
+                        List<KeyElement<V>> higherRightMappings) {
+            this.original = original;
+            this.updated = updated;
+            this.higherLeftMappings = higherLeftMappings;
+            this.higherRightMappings = higherRightMappings;
+        }
+    }
+
     public static <V extends Cborable> CompletableFuture<Boolean> applyToDiff(
             MaybeMultihash original,
             MaybeMultihash updated,
@@ -662,24 +802,66 @@ public class Champ<V extends Cborable> implements Cborable {
             int bitWidth,
             ContentAddressedStorage storage,
             Function<Cborable, V> fromCbor) {
+        return applyToDiff(Collections.singletonList(new DiffTask<>(original, updated, higherLeftMappings, higherRightMappings)),
+                depth, hasher, consumer, bitWidth, storage, fromCbor);
+    }
 
-        if (updated.equals(original))
+    /** Compare a whole level of the two trees at once, so the nodes for each level are retrieved together.
+     */
+    private static <V extends Cborable> CompletableFuture<Boolean> applyToDiff(
+            List<DiffTask<V>> level,
+            int depth,
+            Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+            Consumer<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> consumer,
+            int bitWidth,
+            ContentAddressedStorage storage,
+            Function<Cborable, V> fromCbor) {
+        List<DiffTask<V>> changed = level.stream()
+                .filter(t -> ! t.updated.equals(t.original))
+                .collect(Collectors.toList());
+        if (changed.isEmpty())
             return CompletableFuture.completedFuture(true);
-        return original.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                .thenCompose(left -> updated.map(storage::get).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                        .thenCompose(right -> hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher)
-                                .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher)
-                                        .thenCompose(rightHigherMappingsByBit -> {
+        List<Multihash> toFetch = changed.stream()
+                .flatMap(t -> Stream.of(t.original, t.updated))
+                .filter(MaybeMultihash::isPresent)
+                .map(MaybeMultihash::get)
+                .collect(Collectors.toList());
+        return ChampTraversal.getNodes(toFetch, fromCbor, storage, ChampTraversal.DEFAULT_MAX_BLOCKS_PER_FETCH)
+                .thenCompose(nodes -> Futures.combineAllInOrder(changed.stream()
+                        .map(t -> diffNodes(
+                                t.original.toOptional().flatMap(h -> Optional.ofNullable(nodes.get(h))),
+                                t.updated.toOptional().flatMap(h -> Optional.ofNullable(nodes.get(h))),
+                                t.higherLeftMappings, t.higherRightMappings, depth, hasher, consumer, bitWidth))
+                        .collect(Collectors.toList())))
+                .thenCompose(deeper -> applyToDiff(deeper.stream()
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()),
+                        depth + 1, hasher, consumer, bitWidth, storage, fromCbor));
+    }
+
+    /** Apply the consumer to the differences in the mappings held directly in these nodes
+     *
+     * @return the pairs of child nodes which need to be compared
+     */
+    private static <V extends Cborable> CompletableFuture<List<DiffTask<V>>> diffNodes(
+            Optional<Champ<V>> left,
+            Optional<Champ<V>> right,
+            List<KeyElement<V>> higherLeftMappings,
+            List<KeyElement<V>> higherRightMappings,
+            int depth,
+            Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+            Consumer<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> consumer,
+            int bitWidth) {
+        return hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher)
+                .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher)
+                        .thenApply(rightHigherMappingsByBit -> {
 
                             int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
                             int maxBit = Math.max(leftMax, rightMax);
                             int leftDataIndex = 0, rightDataIndex = 0, leftNodeCount = 0, rightNodeCount = 0;
 
-                            List<CompletableFuture<Boolean>> deeperLayers = new ArrayList<>();
-
+                            List<DiffTask<V>> deeperLayers = new ArrayList<>();
                             for (int i = 0; i < maxBit; i++) {
                                 // either the payload is present OR higher mappings are non empty OR the champ is absent
                                 Optional<HashPrefixPayload<V>> leftPayload = getElement(i, leftDataIndex, leftNodeCount, left);
@@ -705,10 +887,10 @@ public class Champ<V extends Cborable> implements Cborable {
                                         .map(p -> p.link);
 
                                 if (leftShard.isPresent() || rightShard.isPresent()) {
-                                    deeperLayers.add(applyToDiff(
+                                    deeperLayers.add(new DiffTask<>(
                                             leftShard.orElse(MaybeMultihash.empty()),
-                                            rightShard.orElse(MaybeMultihash.empty()), depth + 1, hasher,
-                                            leftMappings, rightMappings, consumer, bitWidth, storage, fromCbor));
+                                            rightShard.orElse(MaybeMultihash.empty()),
+                                            leftMappings, rightMappings));
                                 } else {
                                     Map<ByteArrayWrapper, Optional<V>> leftMap = leftMappings.stream()
                                             .collect(Collectors.toMap(e -> e.key, e -> e.valueHash));
@@ -744,9 +926,8 @@ public class Champ<V extends Cborable> implements Cborable {
                                 }
                             }
 
-                            return Futures.combineAll(deeperLayers).thenApply(x -> true);
-                        })))
-        );
+                            return deeperLayers;
+                        }));
     }
 
     @Override
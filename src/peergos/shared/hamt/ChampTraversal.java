@@ -0,0 +1,108 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Walks a champ breadth first. The child links of every node in a level are gathered and fetched together with
+ *  bulk gets, so a full traversal costs roughly one round trip per level of the tree, rather than one per node.
+ */
+public class ChampTraversal {
+    public static final int DEFAULT_MAX_BLOCKS_PER_FETCH = 256;
+
+    public interface Visitor<V extends Cborable> {
+
+        /** Called for each node in breadth first order, once its level has been retrieved
+         *
+         * @param hash The hash of the node, or null for an in memory root
+         * @param node
+         * @param depth The depth of the node (root = 0)
+         */
+        default void node(Multihash hash, Champ<V> node, int depth) {}
+
+        void mapping(ByteArrayWrapper key, Optional<V> value);
+    }
+
+    /**
+     *
+     * @param root The root of the champ
+     * @param fromCbor
+     * @param storage
+     * @param maxBlocksPerFetch The maximum number of nodes to request at once
+     * @param visitor
+     * @return The number of nodes visited
+     */
+    public static <V extends Cborable> CompletableFuture<Long> visitAll(Multihash root,
+                                                                        Function<Cborable, V> fromCbor,
+                                                                        ContentAddressedStorage storage,
+                                                                        int maxBlocksPerFetch,
+                                                                        Visitor<V> visitor) {
+        return visitLevel(Collections.singletonList(root), 0, fromCbor, storage, maxBlocksPerFetch, visitor);
+    }
+
+    public static <V extends Cborable> CompletableFuture<Long> visitAll(Champ<V> root,
+                                                                        ContentAddressedStorage storage,
+                                                                        int maxBlocksPerFetch,
+                                                                        Visitor<V> visitor) {
+        visit(null, root, 0, visitor);
+        return visitLevel(root.childLinks(), 1, root.valueParser(), storage, maxBlocksPerFetch, visitor)
+                .thenApply(count -> count + 1);
+    }
+
+    private static <V extends Cborable> void visit(Multihash hash, Champ<V> node, int depth, Visitor<V> visitor) {
+        visitor.node(hash, node, depth);
+        node.forEachMapping(visitor::mapping);
+    }
+
+    private static <V extends Cborable> CompletableFuture<Long> visitLevel(List<Multihash> level,
+                                                                           int depth,
+                                                                           Function<Cborable, V> fromCbor,
+                                                                           ContentAddressedStorage storage,
+                                                                           int maxBlocksPerFetch,
+                                                                           Visitor<V> visitor) {
+        if (level.isEmpty())
+            return Futures.of(0L);
+        return getNodes(level, fromCbor, storage, maxBlocksPerFetch).thenCompose(nodes -> {
+            List<Multihash> nextLevel = new ArrayList<>();
+            for (Multihash hash : level) {
+                Champ<V> node = nodes.get(hash);
+                if (node == null)
+                    throw new IllegalStateException("Champ node not present! " + hash);
+                visit(hash, node, depth, visitor);
+                nextLevel.addAll(node.childLinks());
+            }
+            return visitLevel(nextLevel, depth + 1, fromCbor, storage, maxBlocksPerFetch, visitor)
+                    .thenApply(count -> count + level.size());
+        });
+    }
+
+    /** Retrieve a set of champ nodes, at most maxBlocksPerFetch at a time.
+     *
+     * @return the nodes which were found
+     */
+    public static <V extends Cborable> CompletableFuture<Map<Multihash, Champ<V>>> getNodes(List<Multihash> hashes,
+                                                                                          Function<Cborable, V> fromCbor,
+                                                                                          ContentAddressedStorage storage,
+                                                                                          int maxBlocksPerFetch) {
+        List<Multihash> distinct = hashes.stream()
+                .distinct()
+                .collect(Collectors.toList());
+        Map<Multihash, Champ<V>> res = new HashMap<>();
+        return Futures.reduceAll(ArrayOps.group(distinct, maxBlocksPerFetch), res,
+                (acc, batch) -> storage.getAll(batch).thenApply(blocks -> {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Optional<byte[]> block = blocks.get(i);
+                        if (block.isPresent())
+                            acc.put(batch.get(i), Champ.fromCbor(CborObject.fromByteArray(block.get()), fromCbor));
+                    }
+                    return acc;
+                }),
+                (a, b) -> a);
+    }
+}
@@ -12,6 +12,7 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
 {
@@ -67,6 +68,26 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                 .thenApply(put -> new ChampWrapper<>(newRoot, put, hasher, dht, writeHasher, BIT_WIDTH));
     }
 
+    /** Create a new champ containing the given mappings. The tree is built bottom up, so each node is only written once.
+     *
+     * @param mappings
+     * @return
+     */
+    public static <V extends Cborable> CompletableFuture<ChampWrapper<V>> build(PublicKeyHash owner,
+                                                                                SigningPrivateKeyAndPublicHash writer,
+                                                                                Stream<Pair<byte[], V>> mappings,
+                                                                                Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                                TransactionId tid,
+                                                                                ContentAddressedStorage dht,
+                                                                                Hasher writeHasher,
+                                                                                Function<Cborable, V> fromCbor) {
+        List<Pair<ByteArrayWrapper, Optional<V>>> pairs = mappings
+                .map(p -> new Pair<>(new ByteArrayWrapper(p.left), Optional.of(p.right)))
+                .collect(Collectors.toList());
+        return Champ.build(owner, writer, pairs, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, hasher, fromCbor, tid, dht, writeHasher)
+                .thenApply(root -> new ChampWrapper<>(root.left, root.right, hasher, dht, writeHasher, BIT_WIDTH));
+    }
+
     /**
      *
      * @param rawKey
@@ -120,6 +141,30 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /** Apply the mutations, in order, to an in memory copy of the tree, then write only the nodes of the final tree
+     *  which have changed.
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    @Override
+    public CompletableFuture<Multihash> applyBatch(PublicKeyHash owner,
+                                                   SigningPrivateKeyAndPublicHash writer,
+                                                   List<Mutation<V>> mutations,
+                                                   TransactionId tid) {
+        BufferedStorage working = new BufferedStorage(storage, writeHasher);
+        return Futures.reduceAll(mutations, root,
+                (current, m) -> {
+                    ByteArrayWrapper key = new ByteArrayWrapper(m.key);
+                    return keyHasher.apply(key)
+                            .thenCompose(keyHash -> current.left.put(owner, writer, key, keyHash, 0, m.existing, m.updated,
+                                    BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, keyHasher, tid, working, writeHasher, current.right));
+                },
+                (a, b) -> b)
+                .thenCompose(newRoot -> working.commit(owner, writer, newRoot.right, tid)
+                        .thenCompose(written -> commit(writer, newRoot)));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ<V>, Multihash> newRoot) {
         root = newRoot;
         return CompletableFuture.completedFuture(newRoot.right);
@@ -143,4 +188,14 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                                                        BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer) {
         return root.left.applyToAllMappings(identity, consumer, storage);
     }
+
+    /** Visit every node and mapping in breadth first order, retrieving a level of the tree at a time
+     *
+     * @param maxBlocksPerFetch the maximum number of nodes to request at once
+     * @param visitor
+     * @return the number of nodes in the tree
+     */
+    public CompletableFuture<Long> visitAll(int maxBlocksPerFetch, ChampTraversal.Visitor<V> visitor) {
+        return ChampTraversal.visitAll(root.left, storage, maxBlocksPerFetch, visitor);
+    }
 }
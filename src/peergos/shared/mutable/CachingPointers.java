@@ -35,6 +35,19 @@ public class CachingPointers implements MutablePointers {
         });
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return target.watchPointer(owner, writer, current, timeoutMillis).thenApply(m -> {
+            synchronized (cache) {
+                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+            }
+            return m;
+        });
+    }
+
     @Override
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         synchronized (cache) {
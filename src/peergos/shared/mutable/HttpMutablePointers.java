@@ -17,6 +17,8 @@ public class HttpMutablePointers implements MutablePointersProxy {
 	private static final String P2P_PROXY_PROTOCOL = "/http";
 
     private static final boolean LOGGING = true;
+    // below the read timeout of JavaPoster, so a watch with no change still gets a reply
+    public static final long MAX_WATCH_MILLIS = 10_000;
     private final HttpPoster direct, p2p;
     private final String directUrlPrefix;
 
@@ -93,6 +95,16 @@ public class HttpMutablePointers implements MutablePointersProxy {
         return getPointer(getProxyUrlPrefix(targetId), p2p, owner, writer);
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return direct.postUnzip(directUrlPrefix + Constants.MUTABLE_POINTERS_URL + "watchPointer?owner=" + owner
+                + "&writer=" + writer + "&timeout=" + Math.min(timeoutMillis, MAX_WATCH_MILLIS), current.orElse(new byte[0]))
+                .thenApply(meta -> meta.length == 0 ? Optional.empty() : Optional.of(meta));
+    }
+
     public CompletableFuture<Optional<byte[]>> getPointer(String urlPrefix, HttpPoster poster, PublicKeyHash owner, PublicKeyHash writer) {
         long t1 = System.currentTimeMillis();
         try {
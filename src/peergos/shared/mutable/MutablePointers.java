@@ -28,6 +28,21 @@ public interface MutablePointers {
      */
     CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash owner, PublicKeyHash writer);
 
+    /** Wait for the pointer of a public key to change from a given value
+     *
+     * @param writer The public signing key
+     * @param current The value the caller already has
+     * @param timeoutMillis How long to wait for a change
+     * @return The new value as soon as it differs from current, otherwise the current value after the timeout.
+     * Implementations which can't wait return the current value straight away.
+     */
+    default CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                            PublicKeyHash writer,
+                                                            Optional<byte[]> current,
+                                                            long timeoutMillis) {
+        return getPointer(owner, writer);
+    }
+
     /**
      * Get the CAS key-hash for the data pointed to by a writer-key.
      * @param writerKeyHash
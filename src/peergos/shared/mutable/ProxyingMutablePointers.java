@@ -36,6 +36,16 @@ public class ProxyingMutablePointers implements MutablePointers {
                 target -> p2p.getPointer(target, owner, writer));
     }
 
+    @Override
+    public CompletableFuture<Optional<byte[]>> watchPointer(PublicKeyHash owner,
+                                                           PublicKeyHash writer,
+                                                           Optional<byte[]> current,
+                                                           long timeoutMillis) {
+        return redirectCall(owner,
+                () -> local.watchPointer(owner, writer, current, timeoutMillis),
+                target -> p2p.getPointer(target, owner, writer));
+    }
+
     public <V> CompletableFuture<V> redirectCall(PublicKeyHash ownerKey, Supplier<CompletableFuture<V>> direct, Function<Multihash, CompletableFuture<V>> proxied) {
         return core.getUsername(ownerKey)
                 .thenCompose(owner -> core.getChain(owner)
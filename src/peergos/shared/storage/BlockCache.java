@@ -0,0 +1,250 @@
+package peergos.shared.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+/** A thread safe cache of immutable blocks, bounded by the total size of the blocks.
+ *
+ *  The cache is split into stripes by key, each with its own lock. Each stripe uses the W-TinyLFU policy: new blocks
+ *  enter a small LRU window, and when they are evicted from it they are only admitted to the main region if they
+ *  have been requested more often than the block they would replace. The main region is a segmented LRU, where
+ *  blocks that are hit a second time are promoted to a protected segment. This keeps frequently used blocks resident
+ *  when there is a scan of many blocks which are only used once.
+ */
+public class BlockCache {
+    private static final int STRIPES = 16;
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final Stripe[] stripes;
+    private final long maxBytes;
+
+    public BlockCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(maxBytes / STRIPES);
+    }
+
+    private static int spread(Multihash key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    public Optional<byte[]> get(Multihash key) {
+        int hash = spread(key);
+        return stripe(hash).get(key, hash);
+    }
+
+    public void put(Multihash key, byte[] value) {
+        int hash = spread(key);
+        stripe(hash).put(key, hash, value);
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    public Stats stats() {
+        long hits = 0, misses = 0, evictions = 0, rejections = 0, size = 0, count = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                hits += s.hits;
+                misses += s.misses;
+                evictions += s.evictions;
+                rejections += s.rejections;
+                size += s.windowBytes + s.probationBytes + s.protectedBytes;
+                count += s.window.size() + s.probation.size() + s.protectedSegment.size();
+            }
+        }
+        return new Stats(hits, misses, evictions, rejections, size, count);
+    }
+
+    public static class Stats {
+        public final long hits, misses, evictions, rejections, sizeInBytes, blockCount;
+
+        public Stats(long hits, long misses, long evictions, long rejections, long sizeInBytes, long blockCount) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.rejections = rejections;
+            this.sizeInBytes = sizeInBytes;
+            this.blockCount = blockCount;
+        }
+
+        @Override
+        public String toString() {
+            return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", rejections: " + rejections
+                    + ", blocks: " + blockCount + ", size: " + sizeInBytes;
+        }
+    }
+
+    private static final class Stripe {
+        private final long windowMax, protectedMax, mainMax;
+        private final FrequencySketch sketch;
+        // access ordered, so the eldest entry is the least recently used
+        private final LinkedHashMap<Multihash, byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Multihash, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Multihash, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private long windowBytes, probationBytes, protectedBytes;
+        private long hits, misses, evictions, rejections;
+
+        Stripe(long maxBytes) {
+            this.windowMax = Math.max(1, (long) (maxBytes * WINDOW_FRACTION));
+            this.mainMax = maxBytes - windowMax;
+            this.protectedMax = (long) (mainMax * PROTECTED_FRACTION);
+            // assume blocks are a few KiB on average when sizing the frequency sketch
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxBytes / 4096)));
+        }
+
+        synchronized Optional<byte[]> get(Multihash key, int hash) {
+            sketch.increment(hash);
+            byte[] value = window.get(key);
+            if (value == null) {
+                value = protectedSegment.get(key);
+                if (value == null) {
+                    value = probation.remove(key);
+                    if (value != null) {
+                        probationBytes -= value.length;
+                        promote(key, value);
+                    }
+                }
+            }
+            if (value == null) {
+                misses++;
+                return Optional.empty();
+            }
+            hits++;
+            return Optional.of(value);
+        }
+
+        private void promote(Multihash key, byte[] value) {
+            protectedSegment.put(key, value);
+            protectedBytes += value.length;
+            // demote the least recently used protected blocks to make room
+            while (protectedBytes > protectedMax) {
+                Map.Entry<Multihash, byte[]> eldest = eldest(protectedSegment);
+                protectedSegment.remove(eldest.getKey());
+                protectedBytes -= eldest.getValue().length;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationBytes += eldest.getValue().length;
+            }
+        }
+
+        synchronized void put(Multihash key, int hash, byte[] value) {
+            if (value.length > windowMax + mainMax)
+                return;
+            if (window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key))
+                return; // blocks are immutable
+            window.put(key, value);
+            windowBytes += value.length;
+            while (windowBytes > windowMax) {
+                Map.Entry<Multihash, byte[]> candidate = eldest(window);
+                window.remove(candidate.getKey());
+                windowBytes -= candidate.getValue().length;
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+
+        /** Add a block evicted from the window to the main region, if it is used more often than the blocks it
+         *  would displace.
+         */
+        private void admit(Multihash key, byte[] value) {
+            if (value.length > mainMax) {
+                rejections++;
+                return;
+            }
+            int candidateFrequency = sketch.frequency(spread(key));
+            List<Map.Entry<Multihash, byte[]>> victims = new ArrayList<>();
+            long freed = 0;
+            long needed = probationBytes + protectedBytes + value.length - mainMax;
+            Iterator<Map.Entry<Multihash, byte[]>> probationOrder = probation.entrySet().iterator();
+            Iterator<Map.Entry<Multihash, byte[]>> protectedOrder = protectedSegment.entrySet().iterator();
+            while (freed < needed) {
+                Map.Entry<Multihash, byte[]> victim = probationOrder.hasNext() ? probationOrder.next() : protectedOrder.next();
+                if (sketch.frequency(spread(victim.getKey())) >= candidateFrequency) {
+                    rejections++;
+                    return;
+                }
+                victims.add(victim);
+                freed += victim.getValue().length;
+            }
+            for (Map.Entry<Multihash, byte[]> victim : victims) {
+                Multihash victimKey = victim.getKey();
+                int size = victim.getValue().length;
+                if (probation.remove(victimKey) != null)
+                    probationBytes -= size;
+                else {
+                    protectedSegment.remove(victimKey);
+                    protectedBytes -= size;
+                }
+                evictions++;
+            }
+            probation.put(key, value);
+            probationBytes += value.length;
+        }
+
+        private static Map.Entry<Multihash, byte[]> eldest(LinkedHashMap<Multihash, byte[]> map) {
+            return map.entrySet().iterator().next();
+        }
+    }
+
+    /** A count-min sketch of 4 bit counters, which are halved periodically so that old popularity decays.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0xb8a2c0f9, 0x7f4a7c15, 0x4c2e9a5d};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int expectedItems) {
+            int width = 1;
+            while (width < expectedItems)
+                width <<= 1;
+            this.mask = width - 1;
+            this.counters = new byte[width * DEPTH];
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 15;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counters[i] < 15) {
+                    counters[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                reset();
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int row = 0; row < DEPTH; row++)
+                min = Math.min(min, counters[index(hash, row)]);
+            return min;
+        }
+
+        private void reset() {
+            for (int i = 0; i < counters.length; i++)
+                counters[i] = (byte) (counters[i] >> 1);
+            additions /= 2;
+        }
+    }
+}
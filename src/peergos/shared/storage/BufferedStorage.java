@@ -0,0 +1,143 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Holds cbor block writes in memory, and serves reads of them, so that a sequence of updates to a merkle tree can be
+ *  applied without writing out the intermediate blocks. Only the buffered blocks that are reachable from the final
+ *  root are written to the target, in a single call, by commit.
+ */
+public class BufferedStorage extends DelegatingStorage {
+
+    private final ContentAddressedStorage target;
+    private final Hasher hasher;
+    private final Map<Multihash, byte[]> buffered = new HashMap<>();
+
+    public BufferedStorage(ContentAddressedStorage target, Hasher hasher) {
+        super(target);
+        this.target = target;
+        this.hasher = hasher;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        // the buffered blocks only exist here
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Multihash> put(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            byte[] block,
+                                            Hasher hasher,
+                                            TransactionId tid) {
+        // blocks are only signed when they are committed
+        return hasher.sha256(block)
+                .thenApply(sha256 -> buffer(CommittableStorage.hashToCid(sha256, false), block));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash owner,
+                                                  PublicKeyHash writer,
+                                                  List<byte[]> signedHashes,
+                                                  List<byte[]> blocks,
+                                                  TransactionId tid) {
+        List<Multihash> res = new ArrayList<>();
+        for (int i=0; i < blocks.size(); i++) {
+            byte[] signature = signedHashes.get(i);
+            byte[] sha256 = Arrays.copyOfRange(signature, signature.length - 32, signature.length);
+            res.add(buffer(CommittableStorage.hashToCid(sha256, false), blocks.get(i)));
+        }
+        return Futures.of(res);
+    }
+
+    private Multihash buffer(Multihash hash, byte[] block) {
+        synchronized (buffered) {
+            buffered.put(hash, block);
+        }
+        return hash;
+    }
+
+    private Optional<byte[]> getBuffered(Multihash hash) {
+        synchronized (buffered) {
+            return Optional.ofNullable(buffered.get(hash));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        Optional<byte[]> local = getBuffered(hash);
+        if (local.isPresent())
+            return Futures.of(Optional.of(CborObject.fromByteArray(local.get())));
+        return target.get(hash);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        Optional<byte[]> local = getBuffered(hash);
+        if (local.isPresent())
+            return Futures.of(local);
+        return target.getRaw(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        List<Optional<byte[]>> local = hashes.stream()
+                .map(this::getBuffered)
+                .collect(Collectors.toList());
+        List<Multihash> remote = IntStream.range(0, hashes.size())
+                .filter(i -> ! local.get(i).isPresent())
+                .mapToObj(hashes::get)
+                .collect(Collectors.toList());
+        if (remote.isEmpty())
+            return Futures.of(local);
+        return target.getAll(remote).thenApply(found -> {
+            List<Optional<byte[]>> res = new ArrayList<>();
+            int next = 0;
+            for (Optional<byte[]> block : local)
+                res.add(block.isPresent() ? block : found.get(next++));
+            return res;
+        });
+    }
+
+    /** Write the buffered blocks reachable from root to the target, children before parents, and discard the rest.
+     *
+     * @param root The final root of the tree
+     * @return The number of blocks written
+     */
+    public CompletableFuture<Integer> commit(PublicKeyHash owner,
+                                             SigningPrivateKeyAndPublicHash writer,
+                                             Multihash root,
+                                             TransactionId tid) {
+        List<byte[]> toWrite = new ArrayList<>();
+        synchronized (buffered) {
+            Set<Multihash> seen = new HashSet<>();
+            LinkedList<Multihash> queue = new LinkedList<>();
+            queue.add(root);
+            while (! queue.isEmpty()) {
+                Multihash hash = queue.poll();
+                byte[] block = buffered.get(hash);
+                if (block == null || ! seen.add(hash))
+                    continue;
+                toWrite.add(block);
+                queue.addAll(CborObject.fromByteArray(block).links());
+            }
+            buffered.clear();
+        }
+        if (toWrite.isEmpty())
+            return Futures.of(0);
+        Collections.reverse(toWrite);
+        return Futures.combineAllInOrder(toWrite.stream()
+                .map(block -> hasher.sha256(block).thenApply(writer.secret::signMessage))
+                .collect(Collectors.toList()))
+                .thenCompose(signatures -> target.put(owner, writer.publicKeyHash, signatures, toWrite, tid))
+                .thenApply(hashes -> hashes.size());
+    }
+}
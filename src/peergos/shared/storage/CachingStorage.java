@@ -7,22 +7,34 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
 
+/** A cache of small blocks in front of another storage, with concurrent requests for the same block coalesced into
+ *  a single request to the target.
+ */
 public class CachingStorage extends DelegatingStorage {
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
-    private final int maxValueSize, cacheSize;
+    private final BlockCache cache;
+    private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new ConcurrentHashMap<>();
+    private final int maxValueSize;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    /**
+     *
+     * @param target
+     * @param cacheBytes the maximum total size of cached blocks
+     * @param maxValueSize blocks this size or larger are not cached
+     */
+    public CachingStorage(ContentAddressedStorage target, long cacheBytes, int maxValueSize) {
         super(target);
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = new BlockCache(cacheBytes);
         this.maxValueSize = maxValueSize;
-        this.cacheSize = cacheSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+    }
+
+    public BlockCache.Stats cacheStats() {
+        return cache.stats();
     }
 
     @Override
@@ -32,7 +44,15 @@ public class CachingStorage extends DelegatingStorage {
 
     @Override
     public ContentAddressedStorage directToOrigin() {
-        return new CachingStorage(target.directToOrigin(), cacheSize, maxValueSize);
+        return new CachingStorage(target.directToOrigin(), cache.maxBytes(), maxValueSize);
+    }
+
+    private void cacheAll(List<Multihash> hashes, List<byte[]> blocks) {
+        for (int i=0; i < blocks.size(); i++) {
+            byte[] block = blocks.get(i);
+            if (block.length < maxValueSize)
+                cache.put(hashes.get(i), block);
+        }
     }
 
     @Override
@@ -43,45 +63,11 @@ public class CachingStorage extends DelegatingStorage {
                                                   TransactionId tid) {
         return target.put(owner, writer, signedHashes, blocks, tid)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    cacheAll(res, blocks);
                     return res;
                 });
     }
 
-    @Override
-    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key).thenAccept(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
-            }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
-    }
-
     @Override
     public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash owner,
                                                      PublicKeyHash writer,
@@ -91,38 +77,85 @@ public class CachingStorage extends DelegatingStorage {
                                                      ProgressConsumer<Long> progressConsumer) {
         return target.putRaw(owner, writer, signatures, blocks, tid, progressConsumer)
                 .thenApply(res -> {
-                    for (int i=0; i < blocks.size(); i++) {
-                        byte[] block = blocks.get(i);
-                        if (block.length < maxValueSize)
-                            cache.put(res.get(i), block);
-                    }
+                    cacheAll(res, blocks);
                     return res;
                 });
     }
 
     @Override
-    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
+    public CompletableFuture<Optional<CborObject>> get(Multihash key) {
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cached.get())));
+        return coalesce(pending, key, () -> target.get(key), cbor -> cbor.map(CborObject::toByteArray));
+    }
 
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return CompletableFuture.completedFuture(cached);
+        return coalesce(pendingRaw, key, () -> target.getRaw(key), raw -> raw);
+    }
 
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        Map<Multihash, byte[]> found = new HashMap<>();
+        List<Multihash> missing = new ArrayList<>();
+        for (Multihash hash : hashes) {
+            Optional<byte[]> cached = cache.get(hash);
+            if (cached.isPresent())
+                found.put(hash, cached.get());
+            else
+                missing.add(hash);
+        }
+        if (missing.isEmpty())
+            return Futures.of(hashes.stream().map(h -> Optional.of(found.get(h))).collect(Collectors.toList()));
+        return target.getAll(missing).thenApply(blocks -> {
+            for (int i = 0; i < missing.size(); i++) {
+                Optional<byte[]> block = blocks.get(i);
+                if (block.isPresent()) {
+                    found.put(missing.get(i), block.get());
+                    if (block.get().length > 0 && block.get().length < maxValueSize)
+                        cache.put(missing.get(i), block.get());
+                }
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
-            return rawOpt;
+            return hashes.stream()
+                    .map(h -> Optional.ofNullable(found.get(h)))
+                    .collect(Collectors.toList());
+        });
+    }
+
+    /** Make a single request to the target for concurrent requests of the same block.
+     */
+    private <T> CompletableFuture<T> coalesce(Map<Multihash, CompletableFuture<T>> inFlight,
+                                              Multihash key,
+                                              Supplier<CompletableFuture<T>> fetch,
+                                              Function<T, Optional<byte[]>> toBytes) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<T> existing = inFlight.putIfAbsent(key, result);
+        if (existing != null)
+            return existing;
+        CompletableFuture<T> fetched;
+        try {
+            fetched = fetch.get();
+        } catch (Throwable t) {
+            inFlight.remove(key);
+            result.completeExceptionally(t);
+            return result;
+        }
+        fetched.thenAccept(value -> {
+            Optional<byte[]> bytes = toBytes.apply(value);
+            // cache before removing from in flight so later requests always find one or the other
+            if (bytes.isPresent() && bytes.get().length > 0 && bytes.get().length < maxValueSize)
+                cache.put(key, bytes.get());
+            inFlight.remove(key);
+            result.complete(value);
         }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
+            inFlight.remove(key);
+            result.completeExceptionally(t);
             return null;
         });
+        return result;
     }
 }
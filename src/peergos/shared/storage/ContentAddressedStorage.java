@@ -6,6 +6,7 @@ import peergos.shared.corenode.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.api.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -149,6 +150,17 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<byte[]>> getRaw(Multihash hash);
 
+    /**
+     * Get many blocks at once, which remote stores can do in a few requests rather than one per block
+     * @param hashes The hashes of the blocks
+     * @return The blocks in the same order as the hashes, with Optional.empty() for any which cannot be found
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
+    }
+
     /**
      * Update an existing pin with a new root. This is useful when modifying a tree of ipld objects where only a small
      * number of components are changed
@@ -262,18 +274,50 @@ public interface ContentAddressedStorage {
     }
 
     default CompletableFuture<Long> getRecursiveBlockSize(Multihash block) {
-        return getLinks(block).thenCompose(links -> {
-            List<CompletableFuture<Long>> subtrees = links.stream()
-                    .filter(m -> ! m.isIdentity())
-                    .map(this::getRecursiveBlockSize)
-                    .collect(Collectors.toList());
-            return getSize(block)
-                    .thenCompose(sizeOpt -> {
-                        CompletableFuture<Long> reduced = Futures.reduceAll(subtrees,
-                                0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b);
-                        return reduced.thenApply(sum -> sum + sizeOpt.orElse(0));
-                    });
-        });
+        return getRecursiveBlockSize(Collections.singletonList(block));
+    }
+
+    /**
+     * Get the total size of a set of blocks and every block reachable from them. The graph is walked a level at a
+     * time, retrieving the cbor blocks in a level with bulk gets of at most DEFAULT_MAX_BLOCKS_PER_FETCH blocks. Raw
+     * blocks have no links, so only their size is requested.
+     * @param level The blocks to start from
+     * @return The total size in bytes
+     */
+    default CompletableFuture<Long> getRecursiveBlockSize(List<Multihash> level) {
+        List<Multihash> blocks = level.stream()
+                .filter(m -> ! m.isIdentity())
+                .collect(Collectors.toList());
+        if (blocks.isEmpty())
+            return Futures.of(0L);
+        int maxBlocksPerFetch = ChampTraversal.DEFAULT_MAX_BLOCKS_PER_FETCH;
+        List<Multihash> raw = blocks.stream()
+                .filter(m -> m instanceof Cid && ((Cid) m).codec == Cid.Codec.Raw)
+                .collect(Collectors.toList());
+        List<Multihash> cbor = blocks.stream()
+                .filter(m -> ! (m instanceof Cid && ((Cid) m).codec == Cid.Codec.Raw))
+                .collect(Collectors.toList());
+        CompletableFuture<Long> rawSize = Futures.reduceAll(ArrayOps.group(raw, maxBlocksPerFetch), 0L,
+                (total, batch) -> Futures.combineAllInOrder(batch.stream()
+                        .map(this::getSize)
+                        .collect(Collectors.toList()))
+                        .thenApply(sizes -> total + sizes.stream().mapToLong(s -> s.orElse(0)).sum()),
+                (a, b) -> a + b);
+        List<Multihash> nextLevel = new ArrayList<>();
+        CompletableFuture<Long> cborSize = Futures.reduceAll(ArrayOps.group(cbor, maxBlocksPerFetch), 0L,
+                (total, batch) -> getAll(batch).thenApply(found -> {
+                    long batchSize = 0;
+                    for (Optional<byte[]> block : found) {
+                        if (! block.isPresent())
+                            continue;
+                        batchSize += block.get().length;
+                        nextLevel.addAll(CborObject.fromByteArray(block.get()).links());
+                    }
+                    return total + batchSize;
+                }),
+                (a, b) -> a + b);
+        return rawSize.thenCompose(rawTotal -> cborSize.thenCompose(levelSize -> getRecursiveBlockSize(nextLevel)
+                .thenApply(deeper -> deeper + levelSize + rawTotal)));
     }
 
     default CompletableFuture<Long> getChangeInContainedSize(MaybeMultihash original, Multihash updated) {
@@ -334,6 +378,7 @@ public interface ContentAddressedStorage {
         public static final String GC = "repo/gc";
         public static final String BLOCK_PUT = "block/put";
         public static final String BLOCK_GET = "block/get";
+        public static final String BLOCK_GET_ALL = "block/get-all";
         public static final String BLOCK_RM = "block/rm";
         public static final String BLOCK_STAT = "block/stat";
         public static final String PIN_ADD = "pin/add";
@@ -342,6 +387,8 @@ public interface ContentAddressedStorage {
         public static final String REFS = "refs";
         public static final String REFS_LOCAL = "refs/local";
 
+        public static final int MAX_BLOCKS_PER_GET_ALL = 256;
+
         private final boolean isPeergosServer;
         private final Random r = new Random();
 
@@ -561,6 +608,65 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            if (! isPeergosServer) // IPFS doesn't have a bulk get
+                return ContentAddressedStorage.super.getAll(hashes);
+            List<Multihash> remote = hashes.stream()
+                    .filter(h -> ! h.isIdentity())
+                    .distinct()
+                    .collect(Collectors.toList());
+            List<CompletableFuture<Map<Multihash, byte[]>>> batches = ArrayOps.group(remote, MAX_BLOCKS_PER_GET_ALL)
+                    .stream()
+                    .map(batch -> poster.postUnzip(apiPrefix + BLOCK_GET_ALL, new CborObject.CborList(batch.stream()
+                            .map(h -> new CborObject.CborByteArray(h.toBytes()))
+                            .collect(Collectors.toList())).serialize())
+                            .thenApply(HTTP::parseBlockFrames))
+                    .collect(Collectors.toList());
+            return Futures.combineAllInOrder(batches).thenApply(results -> {
+                Map<Multihash, byte[]> found = new HashMap<>();
+                results.forEach(found::putAll);
+                return hashes.stream()
+                        .map(h -> h.isIdentity() ? Optional.of(h.getHash()) : Optional.ofNullable(found.get(h)))
+                        .collect(Collectors.toList());
+            });
+        }
+
+        /** Write a block to a block/get-all response. Each frame is the length of the cid, the cid, the length of the
+         *  block and the block. The response is terminated by a zero length cid, so a truncated response can be
+         *  detected.
+         */
+        public static void writeBlockFrame(DataOutputStream out, Multihash hash, byte[] block) throws IOException {
+            byte[] cid = hash.toBytes();
+            out.writeInt(cid.length);
+            out.write(cid);
+            out.writeInt(block.length);
+            out.write(block);
+        }
+
+        public static void writeBlockFramesEnd(DataOutputStream out) throws IOException {
+            out.writeInt(0);
+        }
+
+        public static Map<Multihash, byte[]> parseBlockFrames(byte[] raw) {
+            Map<Multihash, byte[]> res = new HashMap<>();
+            try {
+                DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+                while (true) {
+                    int cidLength = din.readInt();
+                    if (cidLength == 0)
+                        return res;
+                    byte[] cid = new byte[cidLength];
+                    din.readFully(cid);
+                    byte[] block = new byte[din.readInt()];
+                    din.readFully(block);
+                    res.put(Cid.cast(cid), block);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Truncated response to bulk block get", e);
+            }
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(PublicKeyHash owner, Multihash hash) {
             return poster.get(apiPrefix + PIN_ADD + "?stream-channels=true&arg=" + hash.toString()
@@ -675,6 +781,11 @@ public interface ContentAddressedStorage {
             return local.getRaw(object);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+            return local.getAll(hashes);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
             return local.getLinks(root);
@@ -66,6 +66,11 @@ public abstract class DelegatingStorage implements ContentAddressedStorage {
         return target.getRaw(hash);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return target.getAll(hashes);
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return target.pinUpdate(owner, existing, updated);
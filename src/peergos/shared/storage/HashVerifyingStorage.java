@@ -94,4 +94,14 @@ public class HashVerifyingStorage extends DelegatingStorage {
                         .thenApply(Optional::of))
                         .orElseGet(() -> Futures.of(Optional.empty())));
     }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return source.getAll(hashes)
+                .thenCompose(blocks -> Futures.combineAllInOrder(IntStream.range(0, hashes.size())
+                        .mapToObj(i -> blocks.get(i)
+                                .map(bytes -> verify(bytes, hashes.get(i), () -> bytes).thenApply(Optional::of))
+                                .orElseGet(() -> Futures.of(Optional.empty())))
+                        .collect(Collectors.toList())));
+    }
 }
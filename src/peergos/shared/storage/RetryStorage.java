@@ -115,6 +115,11 @@ public class RetryStorage implements ContentAddressedStorage {
         return runWithRetry(() -> target.getRaw(hash));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getAll(List<Multihash> hashes) {
+        return runWithRetry(() -> target.getAll(hashes));
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> pinUpdate(PublicKeyHash owner, Multihash existing, Multihash updated) {
         return runWithRetry(() -> target.pinUpdate(owner, existing, updated));
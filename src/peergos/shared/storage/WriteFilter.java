@@ -6,14 +6,18 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.*;
 
 public class WriteFilter extends DelegatingStorage {
 
+    @FunctionalInterface
+    public interface KeyFilter {
+        boolean allowWrite(PublicKeyHash owner, PublicKeyHash writer, int size);
+    }
+
     private final ContentAddressedStorage dht;
-    private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
+    private final KeyFilter keyFilter;
 
-    public WriteFilter(ContentAddressedStorage dht, BiFunction<PublicKeyHash, Integer, Boolean> keyFilter) {
+    public WriteFilter(ContentAddressedStorage dht, KeyFilter keyFilter) {
         super(dht);
         this.dht = dht;
         this.keyFilter = keyFilter;
@@ -26,7 +30,7 @@ public class WriteFilter extends DelegatingStorage {
                                                             List<Integer> blockSizes,
                                                             boolean isRaw,
                                                             TransactionId tid) {
-        if (! keyFilter.apply(writer, blockSizes.stream().mapToInt(x -> x).sum()))
+        if (! keyFilter.allowWrite(owner, writer, blockSizes.stream().mapToInt(x -> x).sum()))
             throw new IllegalStateException("Key not allowed to write to this server: " + writer);
         return dht.authWrites(owner, writer, signedHashes, blockSizes, isRaw, tid);
     }
@@ -42,7 +46,7 @@ public class WriteFilter extends DelegatingStorage {
                                                   List<byte[]> signedHashes,
                                                   List<byte[]> blocks,
                                                   TransactionId tid) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
+        if (! keyFilter.allowWrite(owner, writer, blocks.stream().mapToInt(x -> x.length).sum()))
             throw new IllegalStateException("Key not allowed to write to this server: " + writer);
         return dht.put(owner, writer, signedHashes, blocks, tid);
     }
@@ -54,7 +58,7 @@ public class WriteFilter extends DelegatingStorage {
                                                      List<byte[]> blocks,
                                                      TransactionId tid,
                                                      ProgressConsumer<Long> progressConsumer) {
-        if (! keyFilter.apply(writer, blocks.stream().mapToInt(x -> x.length).sum()))
+        if (! keyFilter.allowWrite(owner, writer, blocks.stream().mapToInt(x -> x.length).sum()))
             throw new IllegalStateException("Key not allowed to write to this server: " + writer);
         return dht.putRaw(owner, writer, signatures, blocks, tid, progressConsumer);
     }
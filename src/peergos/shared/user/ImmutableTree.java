@@ -49,4 +49,33 @@ public interface ImmutableTree<V extends Cborable> {
                                         byte[] rawKey,
                                         Optional<V> existing,
                                         TransactionId tid);
+
+    /** Apply a sequence of puts and removes, only writing the final modified nodes of the tree
+     *
+     * @param mutations
+     * @return hash of new tree root
+     */
+    CompletableFuture<Multihash> applyBatch(PublicKeyHash owner,
+                                            SigningPrivateKeyAndPublicHash writer,
+                                            List<Mutation<V>> mutations,
+                                            TransactionId tid);
+
+    class Mutation<V extends Cborable> {
+        public final byte[] key;
+        public final Optional<V> existing, updated;
+
+        public Mutation(byte[] key, Optional<V> existing, Optional<V> updated) {
+            this.key = key;
+            this.existing = existing;
+            this.updated = updated;
+        }
+
+        public static <V extends Cborable> Mutation<V> put(byte[] key, Optional<V> existing, V value) {
+            return new Mutation<>(key, existing, Optional.of(value));
+        }
+
+        public static <V extends Cborable> Mutation<V> remove(byte[] key, Optional<V> existing) {
+            return new Mutation<>(key, existing, Optional.empty());
+        }
+    }
 }
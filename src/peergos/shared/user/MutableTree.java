@@ -7,6 +7,7 @@ import peergos.shared.MaybeMultihash;
 import peergos.shared.storage.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public interface MutableTree {
@@ -56,6 +57,37 @@ public interface MutableTree {
                                          TransactionId tid);
 
 
+    /**
+     *
+     * @param base The WriterData at the current mutable pointer for the writer
+     * @param mutations The puts and removes to apply, in order
+     * @return the new root WriterData
+     */
+    CompletableFuture<WriterData> applyBatch(WriterData base,
+                                             PublicKeyHash owner,
+                                             SigningPrivateKeyAndPublicHash sharingKey,
+                                             List<Mutation> mutations,
+                                             TransactionId tid);
+
+    class Mutation {
+        public final byte[] mapKey;
+        public final MaybeMultihash existing, updated;
+
+        public Mutation(byte[] mapKey, MaybeMultihash existing, MaybeMultihash updated) {
+            this.mapKey = mapKey;
+            this.existing = existing;
+            this.updated = updated;
+        }
+
+        public static Mutation put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            return new Mutation(mapKey, existing, MaybeMultihash.of(value));
+        }
+
+        public static Mutation remove(byte[] mapKey, MaybeMultihash existing) {
+            return new Mutation(mapKey, existing, MaybeMultihash.empty());
+        }
+    }
+
     class CasException extends RuntimeException {
         public CasException(Object actualExisting, Object claimedExisting) {
             super("CAS exception updating cryptree node. existing: " + actualExisting + ", claimed: " + claimedExisting);
@@ -11,8 +11,10 @@ import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class MutableTreeImpl implements MutableTree {
 	private static final Logger LOG = Logger.getGlobal();
@@ -56,6 +58,26 @@ public class MutableTreeImpl implements MutableTree {
                 .thenApply(base::withChamp);
     }
 
+    @Override
+    public CompletableFuture<WriterData> applyBatch(WriterData base,
+                                                    PublicKeyHash owner,
+                                                    SigningPrivateKeyAndPublicHash writer,
+                                                    List<Mutation> mutations,
+                                                    TransactionId tid) {
+        List<ImmutableTree.Mutation<CborObject.CborMerkleLink>> champMutations = mutations.stream()
+                .map(m -> new ImmutableTree.Mutation<>(m.mapKey,
+                        m.existing.toOptional().map(CborObject.CborMerkleLink::new),
+                        m.updated.toOptional().map(CborObject.CborMerkleLink::new)))
+                .collect(Collectors.toList());
+        return (base.tree.isPresent() ?
+                ChampWrapper.create(base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c) :
+                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, c -> (CborObject.CborMerkleLink)c)
+        ).thenCompose(tree -> tree.applyBatch(owner, writer, champMutations, tid))
+                .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.batch (" + mutations.size()
+                        + " mutations) => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
+                .thenApply(base::withChamp);
+    }
+
     @Override
     public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
         if (! base.tree.isPresent())
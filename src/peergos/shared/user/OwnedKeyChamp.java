@@ -12,6 +12,7 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class OwnedKeyChamp {
 
@@ -36,6 +37,25 @@ public class OwnedKeyChamp {
                 .thenCompose(hash -> ipfs.put(owner, writer.publicKeyHash, writer.secret.signMessage(hash), raw, tid));
     }
 
+    /** Create a new champ containing the given owner proofs
+     *
+     * @return the root hash of the new champ
+     */
+    public static CompletableFuture<Multihash> createFrom(PublicKeyHash owner,
+                                                          SigningPrivateKeyAndPublicHash writer,
+                                                          List<OwnerProof> proofs,
+                                                          ContentAddressedStorage ipfs,
+                                                          Hasher hasher,
+                                                          TransactionId tid) {
+        return Futures.combineAllInOrder(proofs.stream()
+                .map(proof -> ipfs.put(owner, writer, proof.serialize(), hasher, tid)
+                        .thenApply(valueHash -> new Pair<>(keyToBytes(proof.ownedKey), new CborObject.CborMerkleLink(valueHash))))
+                .collect(Collectors.toList()))
+                .thenCompose(mappings -> ChampWrapper.build(owner, writer, mappings.stream(), b -> Futures.of(b.data),
+                        tid, ipfs, hasher, c -> (CborObject.CborMerkleLink)c))
+                .thenApply(ChampWrapper::getRoot);
+    }
+
     public static CompletableFuture<OwnedKeyChamp> build(Multihash root, ContentAddressedStorage ipfs, Hasher hasher) {
         return ChampWrapper.create(root, b -> Futures.of(b.data), ipfs, hasher, c -> (CborObject.CborMerkleLink)c)
                 .thenApply(c -> new OwnedKeyChamp(root, c, ipfs));
@@ -210,16 +210,22 @@ public class WriterData implements Cborable {
                             .thenCompose(boxerHash -> network.dhtClient.putBoxingKey(oldSigner.publicKeyHash,
                             oldSigner.secret.signMessage(boxerHash),
                             followRequestReceiver, tid
-                    )).thenCompose(boxerHash -> OwnedKeyChamp.createEmpty(oldSigner.publicKeyHash, oldSigner,
-                            network.dhtClient, network.hasher, tid)
-                            .thenCompose(ownedRoot -> {
+                    )).thenCompose(boxerHash -> getOwnedKeyChamp(network.dhtClient, network.hasher)
+                            // need to add all our owned keys back with the new owner, except for the new signer itself
+                            .thenCompose(okChamp -> okChamp.applyToAllMappings(new ArrayList<OwnerProof>(), (proofs, p) -> {
+                                if (! p.left.equals(signer.publicKeyHash))
+                                    proofs.add(OwnerProof.build(ownedKeys.get(p.left), signer.publicKeyHash));
+                                return Futures.of(proofs);
+                            }, network.dhtClient))
+                            .thenCompose(proofs -> OwnedKeyChamp.createFrom(oldSigner.publicKeyHash, signer, proofs,
+                                    network.dhtClient, network.hasher, tid))
+                            .thenApply(ownedRoot -> {
                                 Map<String, OwnerProof> newNamedOwnedKeys = namedOwnedKeys.entrySet()
                                         .stream()
                                         .collect(Collectors.toMap(e -> e.getKey(),
                                                 e -> OwnerProof.build(ownedKeys.get(e.getValue().ownedKey), signer.publicKeyHash)));
 
-                                // need to add all our owned keys back with the new owner, except for the new signer itself
-                                WriterData base = new WriterData(signer.publicKeyHash,
+                                return new WriterData(signer.publicKeyHash,
                                         Optional.of(newAlgorithm),
                                         publicData,
                                         Optional.of(new PublicKeyHash(boxerHash)),
@@ -227,13 +233,6 @@ public class WriterData implements Cborable {
                                         newNamedOwnedKeys,
                                         newEntryPoints,
                                         tree);
-                                return getOwnedKeyChamp(network.dhtClient, network.hasher)
-                                        .thenCompose(okChamp -> okChamp.applyToAllMappings(base, (nwd, p) ->
-                                                p.left.equals(signer.publicKeyHash) ? Futures.of(nwd) :
-                                                nwd.addOwnedKey(oldSigner.publicKeyHash, signer,
-                                                        OwnerProof.build(ownedKeys.get(p.left), signer.publicKeyHash),
-                                                        network.dhtClient, network.hasher), network.dhtClient)
-                                        );
                             }));
                 })
                 .thenApply(version -> version.get(signer).props)
@@ -378,24 +378,12 @@ public class CryptreeNode implements Cborable {
                                                                    Hasher hasher,
                                                                    NetworkAccess network,
                                                                    AbsoluteCapability us) {
-        CompletableFuture<Set<RetrievedCapability>> childrenFuture = getDirectChildren(network, us, version);
-
-        CompletableFuture<Optional<RetrievedCapability>> moreChildrenFuture = getNextChunk(version, us, network,
-                Optional.empty(), hasher);
-
-        return childrenFuture.thenCompose(children -> moreChildrenFuture.thenCompose(moreChildrenSource -> {
-                    CompletableFuture<Set<RetrievedCapability>> moreChildren = moreChildrenSource
-                            .map(d -> d.fileAccess.getChildren(version, hasher, network, d.capability))
-                            .orElse(CompletableFuture.completedFuture(Collections.emptySet()));
-                    return moreChildren.thenApply(moreRetrievedChildren -> {
-                        Set<RetrievedCapability> results = Stream.concat(
-                                children.stream(),
-                                moreRetrievedChildren.stream())
-                                .collect(Collectors.toSet());
-                        return results;
-                    });
-                })
-        );
+        // collect the capabilities from every chunk first, so all the children are retrieved in bulk
+        return getAllChildrenCapabilities(version, us, hasher, network)
+                .thenCompose(caps -> network.retrieveAllMetadata(caps.stream()
+                        .map(n -> n.cap)
+                        .collect(Collectors.toList()), version))
+                .thenApply(HashSet::new);
     }
 
     public CompletableFuture<Optional<RetrievedCapability>> getChild(String name,
@@ -15,6 +15,12 @@ public class Erasure {
     public static byte[][] split(byte[] input, GaloisField f, int originalBlobs, int allowedFailures)
     {
         long t1 = System.currentTimeMillis();
+        if (f instanceof GaloisField256) {
+            byte[][] res = ReedSolomon256.get(originalBlobs, allowedFailures).split(input);
+            long t2 = System.currentTimeMillis();
+            LOG.info("Erasure encoding took "+(t2-t1)+ " mS");
+            return res;
+        }
         int[] ints = convert(input, f);
 
         int n = originalBlobs + allowedFailures*2;
@@ -57,14 +63,26 @@ public class Erasure {
         return recombine(new GaloisField256(), encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
     }
 
+    /** Recombine fragments, where missing fragments are either null or empty
+     */
     public static byte[] recombine(GaloisField f, byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
         long t1 = System.currentTimeMillis();
         try {
+            if (f instanceof GaloisField256) {
+                Optional<byte[]> res = ReedSolomon256.get(originalBlobs, allowedFailures).recombine(encoded, truncateTo);
+                if (res.isPresent())
+                    return res.get();
+                // some fragments are corrupt rather than missing, so fall back to correcting errors
+                byte[][] withMissing = new byte[encoded.length][];
+                int tbSize = Arrays.stream(encoded).mapToInt(b -> b == null ? 0 : b.length).max().getAsInt();
+                for (int i=0; i < encoded.length; i++)
+                    withMissing[i] = encoded[i] == null || encoded[i].length == 0 ? new byte[tbSize] : encoded[i];
+                return correctErrors(f, withMissing, truncateTo, originalBlobs, allowedFailures);
+            }
             int n = originalBlobs + allowedFailures * 2;
             int encodeSize = (f.size() / n) * n;
             int inputSize = encodeSize * originalBlobs / n;
-            int nec = encodeSize - inputSize;
             int symbolSize = inputSize / originalBlobs;
             if (encoded.length == 0)
                 return new byte[0];
@@ -83,24 +101,34 @@ public class Erasure {
                     return Arrays.copyOfRange(res.toByteArray(), 0, truncateTo);
                 }
             }
-
-            ByteArrayOutputStream res = new ByteArrayOutputStream();
-            for (int i = 0; i < tbSize; i += symbolSize) {
-                ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                // take a symbol from each stream
-                for (int j = 0; j < n; j++)
-                    bout.write(encoded[j], i, symbolSize);
-                int[] decodedInts = GaloisPolynomial.decode(convert(bout.toByteArray(), f), nec, f);
-                byte[] raw = convert(decodedInts, f);
-                res.write(raw, 0, inputSize);
-            }
-            return Arrays.copyOfRange(res.toByteArray(), 0, truncateTo);
+            return correctErrors(f, encoded, truncateTo, originalBlobs, allowedFailures);
         } finally {
             long t2 = System.currentTimeMillis();
             LOG.info("Erasure decoding took " + (t2 - t1) + " mS");
         }
     }
 
+    private static byte[] correctErrors(GaloisField f, byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
+    {
+        int n = originalBlobs + allowedFailures * 2;
+        int encodeSize = (f.size() / n) * n;
+        int inputSize = encodeSize * originalBlobs / n;
+        int nec = encodeSize - inputSize;
+        int symbolSize = inputSize / originalBlobs;
+        int tbSize = encoded[0].length;
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (int i = 0; i < tbSize; i += symbolSize) {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            // take a symbol from each stream
+            for (int j = 0; j < n; j++)
+                bout.write(encoded[j], i, symbolSize);
+            int[] decodedInts = GaloisPolynomial.decode(convert(bout.toByteArray(), f), nec, f);
+            byte[] raw = convert(decodedInts, f);
+            res.write(raw, 0, inputSize);
+        }
+        return Arrays.copyOfRange(res.toByteArray(), 0, truncateTo);
+    }
+
     public static int[] convert(byte[] in, GaloisField f)
     {
         if (f.size() >= 256) {
@@ -0,0 +1,337 @@
+package peergos.shared.user.fs.erasure;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A table driven Reed-Solomon code over GF(2^8) which works directly on byte arrays.
+ *
+ *  The fragments are identical to those produced by GaloisPolynomial. Each stripe of input is a systematic codeword
+ *  whose parity symbols are the remainder of division by the generator (x + a^0)(x + a^1)...(x + a^(nec-1)). The
+ *  symbols of a codeword are dealt out to the fragments in order, so each fragment gets symbolSize bytes per stripe.
+ *
+ *  Encoding runs the generator division as a shift register packed into longs, writing every fragment in one pass
+ *  over the input. Missing fragments are recovered as erasures, with a recovery matrix that is computed once per set
+ *  of missing fragments and then applied to every stripe. Stripes are independent, so both run in parallel.
+ */
+public class ReedSolomon256 {
+    private static final int SIZE = 256;
+    private static final int STRIPES_PER_TASK = 1024;
+
+    // exp is doubled so that the sum of two logs never needs reducing mod 255
+    private static final int[] EXP = new int[2 * SIZE];
+    private static final int[] LOG = new int[SIZE];
+    // MUL[a][b] = a * b
+    private static final byte[][] MUL = new byte[SIZE][SIZE];
+    static {
+        GaloisField256 f = new GaloisField256();
+        for (int i=0; i < EXP.length; i++)
+            EXP[i] = f.exp(i);
+        for (int i=0; i < 255; i++)
+            LOG[EXP[i]] = i;
+        for (int a=1; a < SIZE; a++)
+            for (int b=1; b < SIZE; b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    private static int inverse(int a) {
+        if (a == 0)
+            throw new IllegalStateException("Divided by zero! Blackhole created.. ");
+        return EXP[255 - LOG[a]];
+    }
+
+    private static final Map<List<Integer>, ReedSolomon256> coders = new HashMap<>();
+
+    public static synchronized ReedSolomon256 get(int originalFragments, int allowedFailures) {
+        return coders.computeIfAbsent(Arrays.asList(originalFragments, allowedFailures),
+                p -> new ReedSolomon256(originalFragments, allowedFailures));
+    }
+
+    private final int originalFragments, totalFragments;
+    private final int dataSymbols, paritySymbols, symbolSize;
+    // feedback[c] holds c * (the generator coefficients below the leading 1), packed big endian into longs
+    private final long[][] feedback;
+    // parity[i][m] is the coefficient of data symbol i in parity symbol m
+    private final byte[][] parity;
+
+    public ReedSolomon256(int originalFragments, int allowedFailures) {
+        this.originalFragments = originalFragments;
+        this.totalFragments = originalFragments + allowedFailures * 2;
+        int encodeSize = (SIZE / totalFragments) * totalFragments;
+        this.dataSymbols = encodeSize * originalFragments / totalFragments;
+        this.paritySymbols = encodeSize - dataSymbols;
+        this.symbolSize = dataSymbols / originalFragments;
+        if (symbolSize * originalFragments != dataSymbols)
+            throw new IllegalStateException("Bad alignment of bytes in chunking. " +
+                    dataSymbols + " != " + symbolSize + " * " + originalFragments);
+
+        int[] generator = {1};
+        for (int i=0; i < paritySymbols; i++) {
+            int[] next = new int[generator.length + 1];
+            for (int j=0; j < generator.length; j++) {
+                next[j] ^= generator[j];
+                next[j + 1] ^= mul(generator[j], EXP[i]);
+            }
+            generator = next;
+        }
+        int registerLongs = (paritySymbols + 7) / 8;
+        feedback = new long[SIZE][registerLongs];
+        for (int c=0; c < SIZE; c++)
+            for (int k=0; k < paritySymbols; k++)
+                feedback[c][k >>> 3] |= ((long) mul(generator[k + 1], c)) << (56 - 8 * (k & 7));
+
+        parity = new byte[dataSymbols][paritySymbols];
+        long[] register = new long[registerLongs];
+        byte[] unit = new byte[dataSymbols];
+        for (int i=0; i < dataSymbols; i++) {
+            unit[i] = 1;
+            divide(unit, 0, dataSymbols, register);
+            unit[i] = 0;
+            for (int m=0; m < paritySymbols; m++)
+                parity[i][m] = paritySymbol(register, m);
+        }
+    }
+
+    /** Divide one stripe of data, zero padded to dataSymbols, by the generator, leaving the remainder in register.
+     */
+    private void divide(byte[] input, int offset, int length, long[] register) {
+        Arrays.fill(register, 0);
+        int last = register.length - 1;
+        for (int i=0; i < dataSymbols; i++) {
+            int d = i < length ? input[offset + i] & 0xff : 0;
+            long[] fb = feedback[d ^ (int) (register[0] >>> 56)];
+            for (int k=0; k < last; k++)
+                register[k] = ((register[k] << 8) | (register[k + 1] >>> 56)) ^ fb[k];
+            register[last] = (register[last] << 8) ^ fb[last];
+        }
+    }
+
+    private static byte paritySymbol(long[] register, int m) {
+        return (byte) (register[m >>> 3] >>> (56 - 8 * (m & 7)));
+    }
+
+    public byte[][] split(byte[] input) {
+        int stripes = (input.length + dataSymbols - 1) / dataSymbols;
+        byte[][] res = new byte[totalFragments][stripes * symbolSize];
+        int tasks = (stripes + STRIPES_PER_TASK - 1) / STRIPES_PER_TASK;
+        IntStream.range(0, tasks).parallel().forEach(t -> {
+            long[] register = new long[feedback[0].length];
+            int end = Math.min(stripes, (t + 1) * STRIPES_PER_TASK);
+            for (int s = t * STRIPES_PER_TASK; s < end; s++) {
+                int offset = s * dataSymbols;
+                int length = Math.min(dataSymbols, input.length - offset);
+                for (int j=0; j < originalFragments; j++) {
+                    int toCopy = Math.min(symbolSize, length - j * symbolSize);
+                    if (toCopy > 0)
+                        System.arraycopy(input, offset + j * symbolSize, res[j], s * symbolSize, toCopy);
+                }
+                divide(input, offset, length, register);
+                for (int m=0; m < paritySymbols; m++) {
+                    int symbol = dataSymbols + m;
+                    res[symbol / symbolSize][s * symbolSize + symbol % symbolSize] = paritySymbol(register, m);
+                }
+            }
+        });
+        return res;
+    }
+
+    private static boolean isMissing(byte[] fragment) {
+        return fragment == null || fragment.length == 0;
+    }
+
+    /** Recombine fragments, treating null or empty fragments as missing. An empty input is split into empty
+     *  fragments, so if there are no non-empty fragments, but some are present, and the original length is 0, then
+     *  the result is empty.
+     *
+     * @return The original data, or empty if the fragments are inconsistent (e.g. some are corrupt rather than missing)
+     */
+    public Optional<byte[]> recombine(byte[][] encoded, int truncateTo) {
+        if (encoded.length == 0)
+            return Optional.of(new byte[0]);
+        if (encoded.length != totalFragments)
+            throw new IllegalStateException("Expected " + totalFragments + " fragments, but got " + encoded.length);
+        Optional<byte[]> first = Stream.of(encoded)
+                .filter(f -> ! isMissing(f))
+                .findFirst();
+        if (! first.isPresent()) {
+            if (truncateTo == 0 && Stream.of(encoded).anyMatch(Objects::nonNull))
+                return Optional.of(new byte[0]);
+            throw new IllegalStateException("All fragments are missing!");
+        }
+        int fragmentLength = first.get().length;
+        int stripes = fragmentLength / symbolSize;
+        byte[] res = new byte[stripes * dataSymbols];
+
+        List<Integer> missingData = new ArrayList<>();
+        for (int j=0; j < originalFragments; j++)
+            if (isMissing(encoded[j]))
+                for (int t=0; t < symbolSize; t++)
+                    missingData.add(j * symbolSize + t);
+
+        if (missingData.isEmpty()) {
+            copyData(encoded, res, 0, stripes);
+            return Optional.of(truncate(res, truncateTo));
+        }
+
+        Recovery recovery = new Recovery(encoded, missingData);
+        int tasks = (stripes + STRIPES_PER_TASK - 1) / STRIPES_PER_TASK;
+        boolean consistent = IntStream.range(0, tasks).parallel().allMatch(t -> {
+            int start = t * STRIPES_PER_TASK;
+            int end = Math.min(stripes, start + STRIPES_PER_TASK);
+            copyData(encoded, res, start, end);
+            return recovery.recover(encoded, res, start, end);
+        });
+        if (! consistent)
+            return Optional.empty();
+        return Optional.of(truncate(res, truncateTo));
+    }
+
+    private void copyData(byte[][] encoded, byte[] res, int startStripe, int endStripe) {
+        for (int j=0; j < originalFragments; j++) {
+            if (isMissing(encoded[j]))
+                continue;
+            for (int s = startStripe; s < endStripe; s++)
+                System.arraycopy(encoded[j], s * symbolSize, res, s * dataSymbols + j * symbolSize, symbolSize);
+        }
+    }
+
+    private static byte[] truncate(byte[] data, int length) {
+        return data.length == length ? data : Arrays.copyOfRange(data, 0, length);
+    }
+
+    /** Solves for the missing data symbols of a stripe from dataSymbols of the received symbols. As the code is MDS,
+     *  any dataSymbols of the symbols determine the codeword. The received data symbols are used, plus as many
+     *  received parity symbols as there are missing data symbols, and one further parity symbol, if there is one, is
+     *  used to check the result.
+     */
+    private class Recovery {
+        // symbol indices within a codeword of the received symbols used, and the missing data symbols
+        private final int[] sources, missing;
+        // rows[u][c] = MUL[the coefficient of sources[c] in missing[u]]
+        private final byte[][][] rows;
+        private final int check;
+        private final byte[][] checkRows;
+
+        Recovery(byte[][] encoded, List<Integer> missingData) {
+            int u = missingData.size();
+            this.missing = missingData.stream().mapToInt(i -> i).toArray();
+            List<Integer> knownData = new ArrayList<>();
+            List<Integer> receivedParity = new ArrayList<>();
+            for (int j=0; j < totalFragments; j++) {
+                if (isMissing(encoded[j]))
+                    continue;
+                for (int t=0; t < symbolSize; t++) {
+                    int symbol = j * symbolSize + t;
+                    if (symbol < dataSymbols)
+                        knownData.add(symbol);
+                    else
+                        receivedParity.add(symbol - dataSymbols);
+                }
+            }
+            if (receivedParity.size() < u)
+                throw new IllegalStateException("Too many missing fragments to recover! (" + u / symbolSize + ")");
+            List<Integer> usedParity = receivedParity.subList(0, u);
+            this.check = receivedParity.size() > u ? receivedParity.get(u) : -1;
+
+            // each used parity symbol gives an equation: sum over missing i of P[i][m] d_i = p_m + sum over known i
+            byte[][] a = new byte[u][u];
+            for (int r=0; r < u; r++)
+                for (int col=0; col < u; col++)
+                    a[r][col] = parity[missing[col]][usedParity.get(r)];
+            int[][] inv = invert(a);
+
+            this.sources = new int[knownData.size() + u];
+            for (int c=0; c < knownData.size(); c++)
+                sources[c] = knownData.get(c);
+            for (int r=0; r < u; r++)
+                sources[knownData.size() + r] = dataSymbols + usedParity.get(r);
+
+            this.rows = new byte[u][sources.length][];
+            for (int col=0; col < u; col++) {
+                for (int c=0; c < knownData.size(); c++) {
+                    int coefficient = 0;
+                    for (int r=0; r < u; r++)
+                        coefficient ^= mul(inv[col][r], parity[knownData.get(c)][usedParity.get(r)] & 0xff);
+                    rows[col][c] = MUL[coefficient];
+                }
+                for (int r=0; r < u; r++)
+                    rows[col][knownData.size() + r] = MUL[inv[col][r]];
+            }
+
+            this.checkRows = new byte[dataSymbols][];
+            if (check >= 0)
+                for (int i=0; i < dataSymbols; i++)
+                    checkRows[i] = MUL[parity[i][check] & 0xff];
+        }
+
+        /**
+         * @return whether the recovered stripes passed the check
+         */
+        boolean recover(byte[][] encoded, byte[] res, int startStripe, int endStripe) {
+            byte[] y = new byte[sources.length];
+            for (int s = startStripe; s < endStripe; s++) {
+                for (int c=0; c < sources.length; c++)
+                    y[c] = symbol(encoded, s, sources[c]);
+                int base = s * dataSymbols;
+                for (int u=0; u < missing.length; u++) {
+                    byte[][] row = rows[u];
+                    int acc = 0;
+                    for (int c=0; c < y.length; c++)
+                        acc ^= row[c][y[c] & 0xff];
+                    res[base + missing[u]] = (byte) acc;
+                }
+                if (check >= 0) {
+                    int acc = symbol(encoded, s, dataSymbols + check);
+                    for (int i=0; i < dataSymbols; i++)
+                        acc ^= checkRows[i][res[base + i] & 0xff];
+                    if ((acc & 0xff) != 0)
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private byte symbol(byte[][] encoded, int stripe, int symbol) {
+        return encoded[symbol / symbolSize][stripe * symbolSize + symbol % symbolSize];
+    }
+
+    /** Invert a square matrix over GF(2^8) by Gauss-Jordan elimination
+     */
+    private static int[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][2 * n];
+        for (int r=0; r < n; r++) {
+            for (int c=0; c < n; c++)
+                a[r][c] = matrix[r][c] & 0xff;
+            a[r][n + r] = 1;
+        }
+        for (int col=0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && a[pivot][col] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular recovery matrix!");
+            int[] tmp = a[pivot];
+            a[pivot] = a[col];
+            a[col] = tmp;
+            int scale = inverse(a[col][col]);
+            for (int c=0; c < 2 * n; c++)
+                a[col][c] = mul(a[col][c], scale);
+            for (int r=0; r < n; r++) {
+                int factor = a[r][col];
+                if (r == col || factor == 0)
+                    continue;
+                for (int c=0; c < 2 * n; c++)
+                    a[r][c] ^= mul(factor, a[col][c]);
+            }
+        }
+        int[][] res = new int[n][];
+        for (int r=0; r < n; r++)
+            res[r] = Arrays.copyOfRange(a[r], n, 2 * n);
+        return res;
+    }
+}